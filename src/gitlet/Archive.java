@@ -0,0 +1,341 @@
+/* This class writes the snapshot of a commit as a tar or a zip archive to a
+ * channel, without touching the working directory or the index. The tree is
+ * walked lazily, one directory at a time, and each blob is streamed to the
+ * archive as it comes, so the memory used does not grow with the size of
+ * the snapshot.
+ * While a blob is written, the next "archive.prefetch" blobs (16 by
+ * default, 0 to disable) are read ahead by a pool of threads, so the disk
+ * always has reads in flight. Only blobs of at most PREFETCH_LIMIT bytes are
+ * read ahead into memory; larger blobs are streamed with Data.copyBlob when
+ * their turn comes.
+ * The entries have the mode 644 and the time 0, commits having no time, so
+ * the archive of a commit is always the same bytes. The tar archives are in
+ * the ustar format, with a pax header for the paths and sizes it can not
+ * hold. */
+
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static gitlet.Utils.*;
+
+public class Archive {
+    /* the largest blob read ahead into memory */
+    private static final long PREFETCH_LIMIT = 1024 * 1024;
+    private static final int BLOCK = 512;
+    /* the largest size of the octal field of a tar header */
+    private static final long MAX_TAR_SIZE = 077777777777L;
+
+    /* the entries of the trees being walked, the deepest on top */
+    private final Deque<Iterator<Item>> walk = new ArrayDeque<>();
+    /* the blobs found by the walk and not yet written, in order */
+    private final Deque<Item> ahead = new ArrayDeque<>();
+    private final int window;
+    private final ExecutorService pool;
+
+    /** A file of the snapshot. CONTENT is the blob read ahead, or null if
+     * it is streamed when written. */
+    private static class Item {
+        private final String path;
+        private final String type;
+        private final ObjectId id;
+        private long size;
+        private CompletableFuture<byte[]> content;
+
+        Item(String path, String type, ObjectId id) {
+            this.path = path;
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    /** An archive format. */
+    private interface Sink {
+        /** Writes the header of the file PATH of SIZE bytes. */
+        void begin(String path, long size) throws IOException;
+
+        /** @return the channel of the content of the current file. */
+        WritableByteChannel channel();
+
+        /** Ends the current file of SIZE bytes. */
+        void end(long size) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    private Archive(ObjectId tree) {
+        window = (int) Config.getLong("archive.prefetch", 16);
+        pool = window > 0 ? Executors.newFixedThreadPool(Math.min(window,
+            Runtime.getRuntime().availableProcessors())) : null;
+        walk.push(readTree(tree, "").iterator());
+    }
+
+    /** Writes the snapshot of COMMIT to OUT as an archive of FORMAT, "tar"
+     * or "zip". */
+    public static void write(ObjectId commit, String format,
+        WritableByteChannel out) {
+        Sink sink;
+        if ("tar".equals(format)) {
+            sink = new Tar(out);
+        } else if ("zip".equals(format)) {
+            sink = new Zip(out);
+        } else {
+            error("Unknown archive format '" + format + "'");
+            return;
+        }
+        Archive archive = new Archive(Data.getCommitTree(commit));
+        try {
+            for (Item item = archive.next(); item != null; item = archive
+                .next()) {
+                sink.begin(item.path, item.size);
+                if (item.content != null) {
+                    writeFully(sink.channel(), item.content.join());
+                } else {
+                    Data.copyBlob(item.id, sink.channel());
+                }
+                sink.end(item.size);
+            }
+            sink.finish();
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        } finally {
+            if (archive.pool != null) {
+                archive.pool.shutdownNow();
+            }
+        }
+    }
+
+    /** @return the next blob to write, whose size is known and whose
+     * content may be read ahead, or null at the end. The blobs after it are
+     * found and read ahead up to the window. */
+    private Item next() {
+        while (ahead.size() <= window) {
+            Item item = walkNext();
+            if (item == null) {
+                break;
+            }
+            item.size = Data.getBlobSize(item.id);
+            if (pool != null && item.size <= PREFETCH_LIMIT) {
+                item.content = CompletableFuture.supplyAsync(Context.wrap(
+                    () -> readBlob(item.id)), pool);
+            }
+            ahead.add(item);
+        }
+        return ahead.poll();
+    }
+
+    /** @return the next blob of the walk, or null at the end. */
+    private Item walkNext() {
+        while (!walk.isEmpty()) {
+            Iterator<Item> entries = walk.peek();
+            if (!entries.hasNext()) {
+                walk.pop();
+                continue;
+            }
+            Item item = entries.next();
+            if ("tree".equals(item.type)) {
+                walk.push(readTree(item.id, item.path + "/").iterator());
+            } else {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /** @return the entries of the tree ID, whose path is PREFIX. */
+    private static List<Item> readTree(ObjectId id, String prefix) {
+        List<Item> items = new ArrayList<>();
+        Data.forEachTreeEntry(id, (type, oid, name) -> items.add(new Item(
+            prefix + name, type, oid)));
+        return items;
+    }
+
+    private static byte[] readBlob(ObjectId id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Data.copyBlob(id, Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static void writeFully(WritableByteChannel out, byte[] bytes)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /* The ustar format: each file is a header block followed by its
+     * content, padded to a whole block, and the archive ends with two empty
+     * blocks. */
+    private static class Tar implements Sink {
+        private final WritableByteChannel out;
+
+        Tar(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public void begin(String path, long size) throws IOException {
+            byte[] name = path.getBytes(StandardCharsets.UTF_8);
+            int split = splitName(name);
+            if (split < 0 || size > MAX_TAR_SIZE) {
+                writePax(path, size);
+                split = 0;
+                name = Arrays.copyOf(name, Math.min(name.length, 100));
+            }
+            byte[] header = new byte[BLOCK];
+            if (split > 0) {
+                System.arraycopy(name, 0, header, 345, split);
+            }
+            System.arraycopy(name, split > 0 ? split + 1 : 0, header, 0,
+                name.length - (split > 0 ? split + 1 : 0));
+            writeHeader(header, Math.min(size, MAX_TAR_SIZE), '0');
+        }
+
+        /** @return the index of the slash where NAME is split into the
+         * prefix and the name fields, 0 if it fits in the name field, or -1
+         * if it fits nowhere. */
+        private static int splitName(byte[] name) {
+            if (name.length <= 100) {
+                return 0;
+            }
+            for (int i = Math.min(name.length - 1, 155); i > 0; i -= 1) {
+                if (name[i] == '/' && name.length - i - 1 <= 100) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** Writes a pax header with the PATH and the SIZE of the next
+         * file. */
+        private void writePax(String path, long size) throws IOException {
+            StringBuilder records = new StringBuilder();
+            records.append(paxRecord("path", path));
+            records.append(paxRecord("size", Long.toString(size)));
+            byte[] content = records.toString().getBytes(StandardCharsets
+                .UTF_8);
+            byte[] header = new byte[BLOCK];
+            byte[] name = "PaxHeader".getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(name, 0, header, 0, name.length);
+            writeHeader(header, content.length, 'x');
+            writeFully(out, content);
+            end(content.length);
+        }
+
+        /** @return the record "<length> <key>=<value>\n", whose length
+         * counts its own digits. */
+        private static String paxRecord(String key, String value) {
+            int length = key.length() + value.getBytes(StandardCharsets.UTF_8)
+                .length + 3;
+            int total = length + Integer.toString(length).length();
+            if (Integer.toString(total).length() > Integer.toString(length)
+                .length()) {
+                total += 1;
+            }
+            return total + " " + key + "=" + value + "\n";
+        }
+
+        /** Fills the other fields of HEADER, whose name is set, and writes
+         * it. */
+        private void writeHeader(byte[] header, long size, char type)
+            throws IOException {
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, size);
+            octal(header, 136, 12, 0);
+            header[156] = (byte) type;
+            byte[] magic = ("ustar\0" + "00").getBytes(StandardCharsets
+                .US_ASCII);
+            System.arraycopy(magic, 0, header, 257, magic.length);
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            long sum = 0;
+            for (byte b : header) {
+                sum += b & 0xff;
+            }
+            octal(header, 148, 7, sum);
+            writeFully(out, header);
+        }
+
+        /** Writes VALUE in octal into the LENGTH bytes of HEADER from
+         * OFFSET, padded with zeros and ended by a NULL byte. */
+        private static void octal(byte[] header, int offset, int length,
+            long value) {
+            String digits = Long.toOctalString(value);
+            digits = "0".repeat(length - 1 - digits.length()) + digits;
+            byte[] bytes = digits.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(bytes, 0, header, offset, bytes.length);
+            header[offset + length - 1] = 0;
+        }
+
+        @Override
+        public WritableByteChannel channel() {
+            return out;
+        }
+
+        @Override
+        public void end(long size) throws IOException {
+            int padding = (int) ((BLOCK - size % BLOCK) % BLOCK);
+            writeFully(out, new byte[padding]);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writeFully(out, new byte[2 * BLOCK]);
+        }
+    }
+
+    /* The zip format, deflated, with the sizes and the CRC written after
+     * each file, so the content is streamed once. */
+    private static class Zip implements Sink {
+        private final ZipOutputStream zip;
+        private final WritableByteChannel channel;
+
+        Zip(WritableByteChannel out) {
+            OutputStream stream = Channels.newOutputStream(out);
+            this.zip = new ZipOutputStream(stream);
+            this.channel = Channels.newChannel(zip);
+        }
+
+        @Override
+        public void begin(String path, long size) throws IOException {
+            ZipEntry entry = new ZipEntry(path);
+            entry.setTime(0);
+            zip.putNextEntry(entry);
+        }
+
+        @Override
+        public WritableByteChannel channel() {
+            return channel;
+        }
+
+        @Override
+        public void end(long size) throws IOException {
+            zip.closeEntry();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            zip.finish();
+            zip.flush();
+        }
+    }
+}
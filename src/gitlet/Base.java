@@ -5,144 +5,123 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.HashSet;
-import java.util.TreeMap;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.function.Consumer;
 import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 
 import static gitlet.Utils.*;
 import static gitlet.Wrapper.*;
 
 public class Base {
-    public static final String BASE_PATH = Data.getBasePath();
-    public static final int BASE_LENGTH = BASE_PATH.length();
+    /* two weeks, in seconds */
+    private static final long PRUNE_EXPIRE = 14 * 24 * 60 * 60;
+    /* the bitmaps kept by gc at most, and the commits between two of them
+     * on a first-parent line */
+    private static final long MAX_BITMAPS = 100;
+    private static final int BITMAP_SPACING = 100;
 
     /** Initializes the repository. */
-    public static void init() {
+    public static void init(String backend) {
         Data.init();
-        String oid = Data.writeCommit(writeTree(), "initial commit");
+        if (!"loose".equals(backend)) {     // read when the store is opened
+            Config.set(ObjectStore.CONFIG_KEY, backend);
+        }
+        ObjectId oid = Data.writeCommit(writeTree(), "initial commit");
         createBranch("master", oid);
         Data.writeHead("master");
     }
 
     /** Creates a new blob object with the given file. */
-    public static String hashBlob(String filename) {
-        File file = new File(filename);
-        assertFileExists(file);
+    public static ObjectId hashBlob(String filename) {
+        File file = Data.file(filename);
+        assertCondition(file.exists(), "File does not exist: " + filename);
+        assertCondition(file.isFile(), "Not a file: " + filename);
         return hashBlob(file);
     }
 
-    public static String hashBlob(File file) {
-        return Data.hashObject(readContents(file), "blob");
+    public static ObjectId hashBlob(File file) {
+        return Data.hashFile(file, true);
     }
 
     /** adds the file to the staging area. */
     public static void add(String filename) {
-        File file = new File(filename);
-        assertCondition(file.exists(), "File does not exist: " + file
-            .getPath());
+        File file = Data.file(filename);
+        assertCondition(file.exists(), "File does not exist: " + filename);
         String fullPath = file.getAbsolutePath();
-        assertCondition(fullPath.startsWith(BASE_PATH), "Not in repository: " 
-            + filename);
-        // remove the entry from the index if it exists
-        unstageFile(getRelativePath(fullPath));
-
-        List<File> newFiles = getFiles(file);
-        Map<String, String> index = Data.readIndex();
-        for (File newfile : newFiles) {
-            String id = hashBlob(newfile);
-            String relatPath = getRelativePath(newfile);
-            index.put(relatPath, id);
+        assertCondition(fullPath.startsWith(Data.basePath()), "Not in "
+            + "repository: " + filename);
+        // hash the files before taking the index lock
+        PathTable.Builder builder = PathTable.builder();
+        for (File newfile : getFiles(file)) {
+            builder.add(getRelativePath(newfile), hashBlob(newfile));
         }
-        Data.writeIndex(index);
+        PathTable entries = builder.build();
+        String relatPath = getRelativePath(fullPath);
+        SparseCheckout sparse = SparseCheckout.read();
+        if (sparse.isFull()) {
+            Data.replaceIndexTree(relatPath, entries);
+            return;
+        }
+        // remove the entry from the index if it exists, the skip-worktree
+        // entries are not in the working directory but are still tracked
+        Data.updateIndex(index -> index.removeTree(relatPath).putAll(sparse
+            .skipped(index)).putAll(entries));
     }
 
     /** removes the file from the staging area. */
     public static void rm(String filename) {
-        File file = new File(filename);
-        String fullPath = file.getAbsolutePath();
-        assertCondition(fullPath.startsWith(BASE_PATH), "Not in repository: "
-            + filename);
+        String fullPath = Data.file(filename).getAbsolutePath();
+        assertCondition(fullPath.startsWith(Data.basePath()), "Not in "
+            + "repository: " + filename);
         String relatPath = getRelativePath(fullPath);
-        Set<String> unstagedFiles = unstageFile(relatPath);
+        List<String> unstagedFiles = Data.removeIndexTree(relatPath);
         assertCondition(!unstagedFiles.isEmpty(), "No reason to remove the "
             + "file.");
         
         // Remove the files from the working directory.
         for (String unstagedFile : unstagedFiles) {
-            File unstaged = new File(BASE_PATH + unstagedFile);
+            File unstaged = new File(Data.basePath() + unstagedFile);
             if (unstaged.exists()) {
                 unstaged.delete();
             }
         }
     }
 
-    /** unstages the matched files from the index.
-     * @return the set of files that were unstaged. */
-    private static Set<String> unstageFile(String path) {
-        Map<String, String> index = Data.readIndex();
-        Set<String> oldKeys = new HashSet<>(index.keySet());
-        index.keySet().removeIf(p -> p.startsWith(path));
-        Data.writeIndex(index);
-        oldKeys.removeAll(index.keySet());
-        return oldKeys;
-    }
-
     /** Create a tree object from the current index.
      * @return the hash of the new tree object. */
-    public static String writeTree() {
-        Map<String, String> index = Data.readIndex();
-        return writeTree(index);
-    }
-
-    private static String writeTree(Map<String, String> index) {
-        // transfrom the index entries into tree entries
-        Map<String, List<String>> tree = new TreeMap<>((x, y) -> y.length() 
-            - x.length());
-        tree.put("", new ArrayList<>());
-        for (String file : index.keySet()) {
-            // create all the parent directories of the file in the tree
-            for (String key = dirname(file); !key.isEmpty(); key 
-                = dirname(key)) {
-                if (!tree.containsKey(key)) {
-                    tree.put(key, new ArrayList<>());
-                }
-            }
-            String entry = String.format("%s %s %s\n", "blob", index.get(file), 
-                basename(file));
-            tree.get(dirname(file)).add(entry);
-        }
-        // construct the tree object
-        String tid = null;
-        for (String dir : tree.keySet()) {
-            String content = String.join("", tree.get(dir));
-            tid = Data.hashObject(content.getBytes(StandardCharsets
-                .UTF_8), "tree");
-            String parent = dirname(dir);
-            String base = basename(dir);
-            String entry = String.format("%s %s %s\n", "tree", tid, base);
-            tree.get(parent).add(entry);
-        }
-        return tid;
+    public static ObjectId writeTree() {
+        return writeTree(Data.readIndex());
+    }
+
+    /** Writes the tree objects of INDEX, see TreeBuilder.
+     * @return the hash of the root tree. */
+    private static ObjectId writeTree(PathTable index) {
+        return TreeBuilder.write(index);
     }
 
     /** Commits the changes in the working directory to the repository, creates
      * a new commit object, and updatess the HEAD pointer to point to the new
      * commit.
      * @return the hash of the new commit object. */
-    public static String commit(String message) {
-        String parent = Data.getHead();
-        String oid = Data.writeCommit(writeTree(), message, parent);
-        Data.updateHead(oid);
+    public static ObjectId commit(String message) {
+        ObjectId parent = Data.getHead();
+        ObjectId oid = Data.writeCommit(writeTree(), message, parent);
+        Data.updateHead(oid, parent);
         return oid;
     }
 
     /** @return the log of all the commits. */
     public static String log() {
-        String oid = Data.getHead();
-        List<String> commits = Data.getCommitAncestors(oid);
+        ObjectId oid = Data.getHead();
+        List<ObjectId> commits = Data.getCommitAncestors(oid);
         Collection<String> lines = map(commits, (cid) -> {
             String message = Data.getCommitMessage(cid);
             return String.format("commit %s\n\n%s\n", cid, message);
@@ -151,48 +130,58 @@ public class Base {
     }
 
     /** @return the contents of the tree object. */
-    public static String lsTree(String oid) {
-        Map<String, String> tree = readTree(oid);
-        Collection<String> lines = map(tree.keySet(), (key) -> String
-            .format("%s %s", tree.get(key), key));
+    public static String lsTree(ObjectId oid) {
+        List<String> lines = new ArrayList<>();
+        readTree(oid).forEach((path, id) -> lines.add(String.format("%s %s",
+            id, path)));
         return String.join("\n", lines);
     }
 
     /** Reads the tree information given by OID.  
      * @return the the contents of a tree object by the format of index. */
-    private static Map<String, String> readTree(String oid) {
-        Map<String, String> contents = new HashMap<>();
-        List<String[]> entries = new ArrayList<>();
-        readTree(oid, "", entries);
-        forEach(entries, e -> contents.put(e[0], e[1]));
-        return contents;
+    private static PathTable readTree(ObjectId oid) {
+        PathTable.Builder contents = PathTable.builder();
+        readTree(oid, "", contents);
+        return contents.build();
     }
 
-    private static void readTree(String oid, String base, List<String[]> 
+    private static void readTree(ObjectId oid, String base, PathTable.Builder
         entries) {
-        String content = new String(Data.readObject(oid, "tree"), 
-            StandardCharsets.UTF_8);
-        for (String line : content.split("\n")) {
-            String[] fields = line.split(" ");     // type, oid, name
-            if ("blob".equals(fields[0])) {
-                entries.add(new String[] {joinPaths(base, fields[2]), 
-                    fields[1]});
-            } else if ("tree".equals(fields[0])) {
-                readTree(fields[1], joinPaths(base, fields[2]), entries);
+        Data.forEachTreeEntry(oid, (type, id, name) -> {
+            if ("blob".equals(type)) {
+                entries.add(joinPaths(base, name), id);
+            } else if ("tree".equals(type)) {
+                readTree(id, joinPaths(base, name), entries);
             }
-        }
+        });
     }
 
     public static void checkoutBranch(String branch) {
         String current = Data.readHead();
         assertCondition(!(Data.isBranch(current) && current.equals(branch)), 
             String.format("Already on '%s'", branch));
-        String oid = getBranch(branch);
-        checkout(oid);
-        Data.writeHead(branch);
+        ObjectId oid = getBranch(branch);
+        LockFile lock = Worktree.lock();
+        try {
+            assertNotCheckedOut(branch);
+            checkout(oid);
+            Data.writeHead(branch);
+        } finally {
+            lock.rollback();
+        }
     }
 
-    public static void checkoutCommit(String oid) {
+    /** Asserts that no worktree is on BRANCH. The lock of the worktrees
+     * must be held. */
+    private static void assertNotCheckedOut(String branch) {
+        Worktree other = Worktree.checkedOut(Data.commonDir(), branch);
+        if (other != null) {
+            error(String.format("'%s' is already checked out at '%s'", branch,
+                other.workDir().getPath()));
+        }
+    }
+
+    public static void checkoutCommit(ObjectId oid) {
         checkout(oid);
         Data.writeHead(oid);
     }
@@ -200,28 +189,55 @@ public class Base {
     /** Reads the commit OID and overwrites the working directory with the 
      * commit. 
      * After this operation, the staging area will be empty, i.e., the index is
-     * identical with the target commit. */
-    private static void checkout(String oid) {
+     * identical with the target commit. Only the files in the sparse checkout
+     * are compared with and written to the working directory. */
+    private static void checkout(ObjectId oid) {
         // 0. current commit    1. target commit    2. current working dir
-        String tid0 = Data.getCommitTree(Data.getHead());
-        String tid1 = Data.getCommitTree(oid);
-        Map<String, String> fileSet0 = readTree(tid0);
-        Map<String, String> fileSet1 = readTree(tid1);
-        Map<String, String> fileSet2 = readWorkingDir();
+        SparseCheckout sparse = SparseCheckout.read();
+        ObjectId tid0 = Data.getCommitTree(Data.getHead());
+        ObjectId tid1 = Data.getCommitTree(oid);
+        PathTable index = readTree(tid1);
+        PathTable fileSet0 = sparse.filter(readTree(tid0));
+        PathTable fileSet1 = sparse.filter(index);
+        PathTable fileSet2 = readWorkingDir();
 
         // checks if all the files will be overwritten is tracked.
-        boolean allTracked = all(fileSet1.keySet(), (file) -> isIdentical(file, 
+        boolean allTracked = all(fileSet1.paths(), (file) -> isIdentical(file,
             fileSet0, fileSet2));
         assertCondition(allTracked, "Not all files are tracked.");
         // deletes all the files that will be overwritten.
-        Collection<String> deletedFiles = filter(fileSet0.keySet(), (file) -> 
+        Collection<String> deletedFiles = filter(fileSet0.paths(), (file) -> 
             isIdentical(file, fileSet0, fileSet2));
-        forEach(deletedFiles, (file) -> deleteFile(join(BASE_PATH, file)));
+        forEach(deletedFiles, (file) -> deleteFile(join(Data.basePath(),
+            file)));
         // copies the files from the index to the working directory.
-        forEach(fileSet1.keySet(), (file) -> writeWorkingDir(file, fileSet1
-            .get(file)));
+        fileSet1.forEach(Base::writeWorkingDir);
         // rewrites the index with the target commit.
-        Data.writeIndex(fileSet1);
+        Data.writeIndex(index);
+    }
+
+    /** Changes the sparse checkout to SPARSE. The files of the index which
+     * leave the cone are deleted from the working directory, which fails if
+     * one of them has been modified, and the files which enter the cone are
+     * written. */
+    public static void sparseCheckout(SparseCheckout sparse) {
+        SparseCheckout old = SparseCheckout.read();
+        PathTable index = Data.readIndex();
+        PathTable leaving = old.filter(index).filter(path -> !sparse.contains(
+            path));
+        PathTable entering = sparse.filter(index).filter(path -> !old
+            .contains(path));
+        PathTable work = readWorkingDir();
+        boolean allClean = all(leaving.paths(), (file) -> isIdentical(file,
+            leaving, work));
+        assertCondition(allClean, "Not all files are clean.");
+        boolean noneInTheWay = all(entering.paths(), (file) -> !join(
+            Data.basePath(), file).exists() || entering.get(file).equals(
+            restrictedHashBlob(file)));
+        assertCondition(noneInTheWay, "Untracked files would be overwritten.");
+        sparse.write();
+        forEach(leaving.paths(), Base::deleteWorkingDir);
+        entering.forEach(Base::writeWorkingDir);
     }
 
     /** Checks if the file FILE is identical in the two sets of files.
@@ -231,23 +247,48 @@ public class Base {
      * @return true if 1. file not in set1 && file not in set2
      *                 2. file in set1 && file in set2
      *                    && set1.get(file) == set2.get(file) */
-    private static boolean isIdentical(String file, Map<String, String> set1, 
-        Map<String, String> set2) {
-        boolean cond1 = set1.containsKey(file);
-        boolean cond2 = set2.containsKey(file);
-        return !cond1 && !cond2 || cond1 && cond2 && set1.get(file)
-            .equals(set2.get(file));
-    }
-
-    /** @return the files and corresponding hashes in the working directory. */
-    private static Map<String, String> readWorkingDir() {
-        Map<String, String> contents = new HashMap<>();
-        File base = new File(BASE_PATH);
-        Collection<String> paths = map(getFiles(base), (file) -> 
-            getRelativePath(file));
+    private static boolean isIdentical(String file, PathTable set1,
+        PathTable set2) {
+        return Objects.equals(set1.get(file), set2.get(file));
+    }
+
+    /** @return the files and corresponding hashes in the working directory.
+     * The directories outside of the sparse checkout are not scanned, and the
+     * unchanged ones are not listed again if the untracked cache is enabled,
+     * see UntrackedCache. */
+    private static PathTable readWorkingDir() {
+        PathTable.Builder contents = PathTable.builder();
+        List<String> paths = new ArrayList<>();
+        UntrackedCache cache = UntrackedCache.read();
+        listWorkingDir("", cache.list(""), SparseCheckout.read(), cache,
+            paths);
+        cache.write();
         Collection<String> files = removeIgnored(paths);
-        forEach(files, (file) -> contents.put(file, restrictedHashBlob(file)));
-        return contents;
+        forEach(files, (file) -> contents.add(file, restrictedHashBlob(file)));
+        return contents.build();
+    }
+
+    /** Adds to PATHS the paths of the files under the directory PATH, whose
+     * entries are NAMES, skipping the directories outside of SPARSE, the
+     * other repositories and worktrees, and the .gitlet of this one, which
+     * is ignored anyway. */
+    private static void listWorkingDir(String path, List<String> names,
+        SparseCheckout sparse, UntrackedCache cache, List<String> paths) {
+        String prefix = path.isEmpty() ? "" : path + "/";
+        for (String name : names) {
+            if (!name.endsWith("/")) {
+                paths.add(prefix + name);
+                continue;
+            }
+            String dir = prefix + name.substring(0, name.length() - 1);
+            if (!sparse.containsDir(dir) || dir.startsWith(".gitlet")) {
+                continue;
+            }
+            List<String> entries = cache.list(dir);
+            if (!entries.contains(".gitlet") && !entries.contains(".gitlet/")) {
+                listWorkingDir(dir, entries, sparse, cache, paths);
+            }
+        }
     }
 
     private static Collection<String> removeIgnored(Collection<String> paths) {
@@ -273,11 +314,28 @@ public class Base {
      * the repository root. 
      * @param oid the hash of the object to be written. Assumes the object is a
      * blob. */
-    private static void writeWorkingDir(String path, String oid) {
-        byte[] content = Data.readObject(oid, "blob");
-        File file = join(BASE_PATH, path);
+    private static void writeWorkingDir(String path, ObjectId oid) {
+        writeFile(join(Data.basePath(), path), oid);
+    }
+
+    /** Writes the blob OID to FILE, creating its directories. */
+    private static void writeFile(File file, ObjectId oid) {
+        file.getParentFile().mkdirs();
         createFile(file);
-        writeContents(file, content);
+        Data.copyBlob(oid, file);
+    }
+
+    /** Deletes the file PATH of the working directory, and its directories
+     * which become empty. */
+    private static void deleteWorkingDir(String path) {
+        File file = join(Data.basePath(), path);
+        deleteFile(file);
+        File base = new File(Data.basePath());
+        File dir = file.getParentFile();
+        // a directory which is not empty is not deleted
+        while (!dir.equals(base) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
     }
 
     /** @return the status of the repository. */
@@ -295,100 +353,376 @@ public class Base {
         return content;
     }
 
-    private static String statusHeadIndex(Map<String, String> index) {
-        // 0. head - index   1. head & index   2. index - head
-        //    deleted files     modified files    new files
-        String oid = Data.getHead();
-        Map<String, String> commitSet = readTree(Data.getCommitTree(oid));
-        Set<String> set0 = difference(commitSet.keySet(), index.keySet());
-        Set<String> set1 = intersection(commitSet.keySet(), index.keySet());
-        Set<String> set2 = difference(index.keySet(), commitSet.keySet());
-        Collection<String> modified = filter(set1, (file) -> !isIdentical(file,
-            commitSet, index));
-
-        String newFileStr  = "    new file: %s\n";
-        String modifiedStr = "    modified: %s\n";
-        String deletedStr  = "    deleted: %s\n";
-        StringBuilder content = new StringBuilder();
-        content.append("Changes to be committed:\n");
-        forEach(set2, (f) -> content.append(String.format(newFileStr, f)));
-        forEach(modified, (f) -> content.append(String.format(modifiedStr, 
-            f)));
-        forEach(set0, (f) -> content.append(String.format(deletedStr, f)));
-        content.append("\n");
-        return content.toString();
-    }
-
-    private static String statusIndexWorkingDir(Map<String, String> index) {
-        // 0. index - work dir   1. index & work dir   2. work dir - index
-        //    untracked files       modified files        deleted files
-        Map<String, String> workSet = readWorkingDir();
-        Set<String> set0 = difference(workSet.keySet(), index.keySet());
-        Set<String> set1 = intersection(workSet.keySet(), index.keySet());
-        Set<String> set2 = difference(index.keySet(), workSet.keySet());
-        Collection<String> modified = filter(set1, (file) -> !isIdentical(file,
-            workSet, index));
-
-        String modifiedStr = "    modified: %s\n";
-        String deletedStr  = "    deleted: %s\n";
-        String untrackedStr  = "    %s\n";
-        StringBuilder content = new StringBuilder();
-        content.append("Changes not staged for commit:\n");
-        forEach(modified, (f) -> content.append(String.format(modifiedStr, 
-            f)));
-        forEach(set2, (f) -> content.append(String.format(deletedStr, f)));
-        content.append("\n");
-        content.append("Untracked files:\n");
-        forEach(set0, (f) -> content.append(String.format(untrackedStr, f)));
-        return content.toString();
+    private static String statusHeadIndex(PathTable index) {
+        // head - index: deleted files, index - head: new files, and the
+        // files in both with different hashes are modified
+        ObjectId oid = Data.getHead();
+        PathTable commitSet = readTree(Data.getCommitTree(oid));
+        StringBuilder newFiles = new StringBuilder();
+        StringBuilder modified = new StringBuilder();
+        StringBuilder deleted = new StringBuilder();
+        PathTable.mergeJoin(commitSet, index, (file, head, staged) -> {
+            if (head == null) {
+                newFiles.append(String.format("    new file: %s\n", file));
+            } else if (staged == null) {
+                deleted.append(String.format("    deleted: %s\n", file));
+            } else if (!head.equals(staged)) {
+                modified.append(String.format("    modified: %s\n", file));
+            }
+        });
+        return "Changes to be committed:\n" + newFiles + modified + deleted
+            + "\n";
+    }
+
+    private static String statusIndexWorkingDir(PathTable index) {
+        // index - work dir: deleted files, work dir - index: untracked files,
+        // and the files in both with different hashes are modified. The
+        // skip-worktree files are not in the working directory.
+        index = SparseCheckout.read().filter(index);
+        PathTable workSet = readWorkingDir();
+        StringBuilder modified = new StringBuilder();
+        StringBuilder deleted = new StringBuilder();
+        StringBuilder untracked = new StringBuilder();
+        PathTable.mergeJoin(index, workSet, (file, staged, work) -> {
+            if (staged == null) {
+                untracked.append(String.format("    %s\n", file));
+            } else if (work == null) {
+                deleted.append(String.format("    deleted: %s\n", file));
+            } else if (!staged.equals(work)) {
+                modified.append(String.format("    modified: %s\n", file));
+            }
+        });
+        return "Changes not staged for commit:\n" + modified + deleted + "\n"
+            + "Untracked files:\n" + untracked;
     }
 
     /** creates a new tag. */
-    public static void createTag(String name, String oid) {
+    public static void createTag(String name, ObjectId oid) {
         assertCondition(!Data.isTag(name), String.format("tag '%s' already " 
             + "exists", name));
         Data.createRef("refs/tags/" + name, oid);
     }
 
-    public static String tagList() {
-        Collection<String> tags = getTags();
-        StringBuilder content = new StringBuilder();
-        forEach(tags, (tag) -> content.append(tag + "\n"));
-        return content.toString();
-    }
-
-    private static Collection<String> getTags() {
-        List<File> paths = getFiles(Data.TAG_DIR);
-        return map(paths, (path) -> basename(path.getAbsolutePath()));
+    /** Calls ACTION with the names of all the tags in sorted order. */
+    public static void forEachTag(Consumer<String> action) {
+        Data.refs().forEach("refs/tags/", action);
     }
 
     /** creates a new branch.
      * @param name the name of the branch to be created. i.e. "master"
-     * @param content the id of a commit object or the name of another branch. 
-     * i.e. "master" */
-    public static void createBranch(String name, String content) {
+     * @param oid the id of the commit the branch points to. */
+    public static void createBranch(String name, ObjectId oid) {
         assertCondition(!Data.isBranch(name), String.format("branch '%s' "
             + "already exists", name));
-        Data.createRef("refs/heads/" + name, content);
+        Data.createRef("refs/heads/" + name, oid);
     }
 
-    public static String branchList() {
-        Collection<String> branches = getBranches();
-        StringBuilder content = new StringBuilder();
-        forEach(branches, (branch) -> content.append(branch + "\n"));
-        return content.toString();
+    /** Calls ACTION with the names of all the branches in sorted order. */
+    public static void forEachBranch(Consumer<String> action) {
+        Data.refs().forEach("refs/heads/", action);
     }
 
-    private static Collection<String> getBranches() {
-        List<File> paths = getFiles(Data.BRANCH_DIR);
-        return map(paths, (path) -> basename(path.getAbsolutePath()));
+    /** Registers the repository at PATH as the remote NAME. */
+    public static void addRemote(String name, String path) {
+        assertCondition(Config.get("remote." + name + ".path", null) == null,
+            String.format("remote %s already exists.", name));
+        Config.set("remote." + name + ".path", Peer.open(path).path());
+    }
+
+    /** @return the repository of the remote NAME. */
+    private static Peer openRemote(String name) {
+        String path = Config.get("remote." + name + ".path", null);
+        assertCondition(path != null, String.format("'%s' does not appear to "
+            + "be a gitlet remote", name));
+        return Peer.open(path);
+    }
+
+    /** Clones the repository at PATH into the current directory, which is
+     * not a repository yet. The remote is registered as "origin", its
+     * branches are fetched and its current branch is checked out. */
+    public static String clone(String path) {
+        Peer remote = Peer.open(path);
+        Data.init();
+        Config.set("remote.origin.path", remote.path());
+        String report = fetch("origin", remote);
+        ObjectId head = remote.resolve("HEAD");
+        String branch = remote.headBranch();
+        if (branch != null) {
+            createBranch(branch, head);
+            Data.writeHead(branch);
+        } else {
+            Data.writeHead(head);
+        }
+        PathTable files = readTree(Data.getCommitTree(head));
+        files.forEach(Base::writeWorkingDir);
+        Data.writeIndex(files);
+        return report;
+    }
+
+    /** Fetches the branches and the tags of the remote NAME. The branches
+     * are stored as "refs/remotes/NAME/<branch>", the new tags are
+     * created. */
+    public static String fetch(String name) {
+        return fetch(name, openRemote(name));
+    }
+
+    private static String fetch(String name, Peer remote) {
+        Map<String, ObjectId> heads = new TreeMap<>();
+        Map<String, ObjectId> tags = new TreeMap<>();
+        remote.forEachRef("refs/heads/", heads::put);
+        remote.forEachRef("refs/tags/", tags::put);
+        Set<ObjectId> wants = new LinkedHashSet<>(heads.values());
+        wants.addAll(tags.values());
+        wants.add(remote.resolve("HEAD"));
+        int count = Transfer.copyObjects(remote, Peer.local(), wants);
+        StringBuilder report = new StringBuilder(String.format("Received %d "
+            + "objects.\n", count));
+        heads.forEach((branch, id) -> {
+            String ref = String.format("refs/remotes/%s/%s", name, branch);
+            ObjectId old = Data.refs().exists(ref) ? Data.getRef(ref) : null;
+            if (!id.equals(old)) {
+                Data.refs().write(ref, id.toString());
+                report.append(formatUpdate(old, id, branch, name + "/"
+                    + branch));
+            }
+        });
+        tags.forEach((tag, id) -> {
+            if (!Data.isTag(tag)) {
+                Data.createRef("refs/tags/" + tag, id);
+                report.append(formatUpdate(null, id, tag, tag));
+            }
+        });
+        return report.toString();
+    }
+
+    /** Pushes the local BRANCH to the branch of the same name of the remote
+     * NAME. Only fast-forward updates are accepted, and a branch checked out
+     * in a worktree of the remote is not updated, since the working directory
+     * would no longer match it. */
+    public static String push(String name, String branch) {
+        assertCondition(Data.isBranch(branch), String.format("src refspec %s "
+            + "does not match any", branch));
+        Peer remote = openRemote(name);
+        Peer local = Peer.local();
+        String ref = "refs/heads/" + branch;
+        ObjectId id = getBranch(branch);
+        ObjectId old = remote.resolve(ref);
+        if (id.equals(old)) {
+            return "Everything up-to-date\n";
+        }
+        assertCondition(!remote.isCheckedOut(branch), String.format(
+            "refusing to update checked out branch: %s", ref));
+        assertCondition(old == null || local.has(old) && Transfer.isAncestor(
+            local, old, id), String.format("rejected %s -> %s "
+            + "(non-fast-forward)", branch, branch));
+        int count = Transfer.copyObjects(local, remote, List.of(id));
+        remote.updateRef(ref, old, id);
+        Data.refs().write(String.format("refs/remotes/%s/%s", name, branch), id
+            .toString());
+        return String.format("Sent %d objects.\n", count) + formatUpdate(old,
+            id, branch, branch);
+    }
+
+    /** @return the line reporting the update of the ref FROM, from OLD,
+     * null for a new ref, to ID in the ref TO. */
+    private static String formatUpdate(ObjectId old, ObjectId id, String from,
+        String to) {
+        String change = old == null ? " * [new ref]" : "   " + old.toString()
+            .substring(0, 7) + ".." + id.toString().substring(0, 7);
+        return String.format("%s %s -> %s\n", change, from, to);
+    }
+
+    /** Creates a linked worktree in the empty or new directory PATH and
+     * checks out BRANCH there, which no other worktree may be on. */
+    public static void addWorktree(String path, String branch) {
+        assertCondition(Data.isBranch(branch), String.format("invalid "
+            + "reference: %s", branch));
+        File workDir = join(Data.file(path).getAbsolutePath());
+        String[] files = workDir.list();
+        assertCondition(!workDir.exists() || files != null && files.length
+            == 0, String.format("'%s' already exists", path));
+        LockFile lock = Worktree.lock();
+        try {
+            assertNotCheckedOut(branch);
+            Worktree worktree = Worktree.create(workDir, branch);
+            PathTable index = readTree(Data.getCommitTree(getBranch(branch)));
+            index.forEach((file, oid) -> writeFile(join(workDir, file), oid));
+            Data.writeIndex(worktree.indexFile(), index);
+        } finally {
+            lock.rollback();
+        }
+    }
+
+    /** @return one line per worktree, the main worktree first, with its
+     * path, its commit and its branch. */
+    public static String listWorktrees() {
+        StringBuilder lines = new StringBuilder();
+        for (Worktree worktree : Worktree.list()) {
+            String branch = worktree.branch();
+            lines.append(String.format("%s %s %s\n", worktree.workDir()
+                .getPath(), worktree.headCommit().toString().substring(0, 7),
+                branch == null ? "(detached HEAD)" : "[" + branch + "]"));
+        }
+        return lines.toString();
+    }
+
+    /** Deletes the linked worktree in PATH and its files, which must match
+     * its index, which must match its HEAD: nothing which is not committed
+     * may be lost. */
+    public static void removeWorktree(String path) {
+        Worktree worktree = Worktree.find(path);
+        assertCondition(worktree != null, String.format("'%s' is not a "
+            + "working tree", path));
+        assertCondition(!worktree.isMain(), String.format("'%s' is a main "
+            + "working tree", path));
+        assertCondition(!worktree.isCurrent(), String.format("'%s' is the "
+            + "current working tree", path));
+        LockFile lock = Worktree.lock();
+        try {
+            File workDir = worktree.workDir();
+            PathTable head = readTree(Data.getCommitTree(worktree
+                .headCommit()));
+            PathTable staged = worktree.index();
+            PathTable index = SparseCheckout.read(worktree.gitletDir())
+                .filter(staged);
+            PathTable.Builder builder = PathTable.builder();
+            int length = workDir.getPath().length() + 1;
+            for (File file : getFiles(workDir)) {
+                String relative = file.getPath().substring(length);
+                if (!".gitlet".equals(relative)) {
+                    builder.add(relative, Data.hashFile(file, false));
+                }
+            }
+            boolean[] clean = {true};
+            PathTable.mergeJoin(head, staged, (file, a, b) -> clean[0] &=
+                Objects.equals(a, b));
+            PathTable.mergeJoin(index, builder.build(), (file, a, b) ->
+                clean[0] &= Objects.equals(a, b));
+            assertCondition(clean[0], String.format("'%s' contains modified "
+                + "or untracked files", path));
+            worktree.delete();
+        } finally {
+            lock.rollback();
+        }
+    }
+
+    /** Packs the refs and prunes the unreachable objects which are older
+     * than "gc.pruneExpire" seconds, two weeks by default. The grace period
+     * protects the objects of commands which are still running. */
+    public static void gc() {
+        Data.packRefs();
+        long expire = Config.getLong("gc.pruneExpire", PRUNE_EXPIRE);
+        prune(System.currentTimeMillis() - 1000 * expire);
+    }
+
+    /** Deletes the objects which are not reachable from the refs, the HEADs
+     * or the indexes of the worktrees and were last written before EXPIRE,
+     * in milliseconds since the epoch, see ObjectStore.prune: e.g. a pack
+     * older than EXPIRE is rewritten without its unreachable objects. The
+     * bitmaps of some commits, see selectBitmaps, are saved for the next
+     * run, which only walks the commits made since them. */
+    public static void prune(long expire) {
+        LockFile lock = new LockFile(BitmapIndex.file());
+        lock.lock();        // one gc at a time
+        try {
+            BitmapIndex objects = BitmapIndex.ofStore();
+            Reachability reachability = new Reachability(objects, BitmapIndex
+                .read());
+            Set<ObjectId> tips = new LinkedHashSet<>();
+            List<Worktree> worktrees = Worktree.list();
+            for (Worktree worktree : worktrees) {
+                tips.add(worktree.headCommit());
+            }
+            Data.refs().forEach("refs/heads/", name -> tips.add(Data.getRef(
+                "refs/heads/" + name)));
+            List<ObjectId> commits = selectBitmaps(objects, tips);
+            Data.refs().forEach("refs/", name -> tips.add(Data.getRef("refs/"
+                + name)));
+            reachability.addBitmaps(commits);
+            BitSet reachable = new BitSet(objects.size());
+            for (ObjectId tip : tips) {
+                reachability.mark(tip, reachable);
+            }
+            for (Worktree worktree : worktrees) {
+                worktree.index().forEach((path, id) -> reachability.mark(id,
+                    reachable));
+            }
+            // the objects written since the index was taken are kept
+            Data.store().prune(id -> {
+                int i = objects.indexOf(id);
+                return i >= 0 && !reachable.get(i);
+            }, expire);
+            objects.retain(reachable, commits).write(lock);
+            lock.commit();
+        } finally {
+            lock.rollback();    // no-op if committed
+        }
+    }
+
+    /** @return at most "gc.maxBitmaps" commits of OBJECTS to save the
+     * bitmaps of: the BRANCHES, then their first-parent ancestors every
+     * BITMAP_SPACING commits, taken from each line in turn until the lines
+     * meet. A walk from any commit, e.g. one of the many tags, soon reaches
+     * one of them, so the other ref tips need no bitmap of their own. */
+    private static List<ObjectId> selectBitmaps(BitmapIndex objects,
+        Collection<ObjectId> branches) {
+        int max = (int) Config.getLong("gc.maxBitmaps", MAX_BITMAPS);
+        Set<ObjectId> selected = new LinkedHashSet<>();
+        List<ObjectId> lines = new ArrayList<>();
+        Set<ObjectId> walked = new HashSet<>();
+        for (ObjectId tip : branches) {
+            if (selected.size() < max && objects.indexOf(tip) >= 0
+                && "commit".equals(Data.getObjectType(tip)) && walked.add(
+                tip)) {
+                selected.add(tip);
+                lines.add(tip);
+            }
+        }
+        while (selected.size() < max && !lines.isEmpty()) {
+            for (int i = 0; i < lines.size() && selected.size() < max;) {
+                ObjectId commit = lines.get(i);
+                for (int n = 0; commit != null && n < BITMAP_SPACING; n += 1) {
+                    List<ObjectId> parents = Data.getCommitParents(commit);
+                    commit = parents.isEmpty() ? null : parents.get(0);
+                    if (commit != null && (objects.indexOf(commit) < 0
+                        || !walked.add(commit))) {
+                        commit = null;      // missing, or met another line
+                    }
+                }
+                if (commit == null) {
+                    lines.remove(i);
+                } else {
+                    selected.add(commit);
+                    lines.set(i, commit);
+                    i += 1;
+                }
+            }
+        }
+        return new ArrayList<>(selected);
+    }
+
+    /** Imports the history given by the records of IN, printing the
+     * progress records to PROGRESS, see FastImport. */
+    public static String fastImport(InputStream in, PrintStream progress) {
+        return FastImport.run(in, progress);
+    }
+
+    /** @return the origin of each line of the file FILENAME in the HEAD,
+     * see Blame. */
+    public static String blame(String filename) {
+        String fullPath = join(Data.file(filename).getAbsolutePath())
+            .getPath();
+        assertCondition(fullPath.startsWith(Data.basePath()), "Not in "
+            + "repository: " + filename);
+        return Blame.blame(Data.getHead(), getRelativePath(fullPath));
     }
 
     /** @return the least common ancestor of the two commits. if not found such
      * ancestor, returns null. */
-    public static String mergeBase(String cid1, String cid2) {
-        Set<String> ancestors1 = new HashSet<>(Data.getCommitAncestors(cid1));
-        for (String ancestor : Data.getCommitAncestors(cid2)) {
+    public static ObjectId mergeBase(ObjectId cid1, ObjectId cid2) {
+        Set<ObjectId> ancestors1 = new HashSet<>(Data.getCommitAncestors(
+            cid1));
+        for (ObjectId ancestor : Data.getCommitAncestors(cid2)) {
             if (ancestors1.contains(ancestor)) {
                 return ancestor;
             }
@@ -398,56 +732,30 @@ public class Base {
 
     public static String merge(String name) {
         // TODO: check if the working directory is clean
-        String remote = getOid(name);
-        String local = Data.getHead();
-        String lca = mergeBase(local, remote);
+        ObjectId remote = getOid(name);
+        ObjectId local = Data.getHead();
+        ObjectId lca = mergeBase(local, remote);
         if (lca.equals(remote)) {           // non-fast-forward merge
             return "Already up to date.";
         } else if (lca.equals(local)) {     // fast-forward merge 
             checkout(remote);
-            Data.updateHead(remote);
+            Data.updateHead(remote, local);
             return "Fast-forward merge.";
         }
         // three-way merge
-        String merged = threeWayMerge(lca, local, remote, String.format("Merge"
-            + " with '%s'", name));
+        ObjectId merged = threeWayMerge(lca, local, remote, String.format(
+            "Merge with '%s'", name));
         checkout(merged);
-        Data.updateHead(merged);
+        Data.updateHead(merged, local);
         return "Merge made by the three-way merge.";
     }
 
-    private static String threeWayMerge(String base, String local, String 
-        remote, String msg) {
-        Map<String, String> baseTree = readTree(Data.getCommitTree(base));
-        Map<String, String> localTree = readTree(Data.getCommitTree(local));
-        Map<String, String> remoteTree = readTree(Data.getCommitTree(remote));
-        assertCondition(!isConflict(baseTree, localTree, remoteTree),
-            "Conflicts existed.");
-        Map<String, String> merged = threeWayMerge(baseTree, localTree,
-            remoteTree);
-        return Data.writeCommit(writeTree(merged), msg, local, remote);
-    }
-
-    private static boolean isConflict(Map<String, String> base,
-        Map<String, String> local, Map<String, String> remote) {
-        Set<String> targetFiles = union(local.keySet(), remote.keySet());
-        return any(targetFiles, (file) -> !isIdentical(file, base, local) &&
-            !isIdentical(file, base, remote));
-    }
-
-    private static Map<String, String> threeWayMerge(Map<String, String>
-        base, Map<String, String> local, Map<String, String> remote) {
-        Map<String, String> merged = new HashMap<>();
-        Set<String> targetFiles = union(local.keySet(), remote.keySet());
-        forEach(targetFiles, (file) -> {
-            String localHash = local.get(file);
-            String remoteHash = remote.get(file);
-            boolean cond = isIdentical(file, base, local);
-            String mergedHash = cond ? remoteHash : localHash;
-            if (mergedHash != null) {
-                merged.put(file, mergedHash);
-            }
-        });
-        return merged;
+    /** Merges the snapshots of the commits LOCAL and REMOTE, whose common
+     * ancestor is BASE, see TreeMerge, and commits the result. */
+    private static ObjectId threeWayMerge(ObjectId base, ObjectId local,
+        ObjectId remote, String msg) {
+        ObjectId tree = TreeMerge.merge(Data.getCommitTree(base), Data
+            .getCommitTree(local), Data.getCommitTree(remote));
+        return Data.writeCommit(tree, msg, local, remote);
     }
 }
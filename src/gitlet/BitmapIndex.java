@@ -0,0 +1,307 @@
+/* This class stores the reachability bitmaps of ".gitlet/bitmaps". The
+ * objects are numbered by their position in a sorted table of ids, and a
+ * bitmap over these numbers is stored for some commits, the branch tips and
+ * some of their ancestors at the time of the last gc. The bitmap of a commit
+ * is the set of all the objects reachable from it: the commit, its
+ * ancestors and all their trees and blobs. These sets never change, so a
+ * reachability query for a commit with a bitmap needs no walk, and a walk
+ * from a newer commit stops at the first commit with a bitmap.
+ * The bitmaps are compressed as runs of 64-bit words: a varint header
+ * (count << 2 | kind) is followed, for literal runs, by the words.
+ * File layout: the magic "GBMP", the number of objects, their raw ids, the
+ * number of bitmaps, then for each bitmap the raw commit id, the length of
+ * the compressed words and the compressed words. The bitmaps are decoded
+ * when they are first used. */
+
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+public class BitmapIndex {
+    private static final byte[] MAGIC = "GBMP".getBytes(StandardCharsets
+        .US_ASCII);
+    private static final int ZERO_RUN = 0;
+    private static final int ONES_RUN = 1;
+    private static final int LITERAL_RUN = 2;
+
+    /* the ids of the objects, sorted */
+    private final ObjectId[] objects;
+    /* the decoded bitmaps, and the offsets of the ones not yet decoded */
+    private final Map<ObjectId, BitSet> bitmaps = new HashMap<>();
+    private final Map<ObjectId, Integer> offsets = new HashMap<>();
+    private final byte[] data;
+
+    /** Creates an index without bitmaps over the sorted OBJECTS. */
+    public BitmapIndex(ObjectId[] objects) {
+        this(objects, null);
+    }
+
+    private BitmapIndex(ObjectId[] objects, byte[] data) {
+        this.objects = objects;
+        this.data = data;
+    }
+
+    /** @return an index over all the objects of the store. */
+    public static BitmapIndex ofStore() {
+        ObjectId[][] objects = {new ObjectId[1024]};
+        int[] size = {0};
+        Data.forEachObject(id -> {
+            if (size[0] == objects[0].length) {
+                objects[0] = Arrays.copyOf(objects[0], 2 * size[0]);
+            }
+            objects[0][size[0]] = id;
+            size[0] += 1;
+        });
+        ObjectId[] sorted = Arrays.copyOf(objects[0], size[0]);
+        Arrays.parallelSort(sorted);
+        return new BitmapIndex(sorted);
+    }
+
+    /** @return the index of the last gc. The file is only a cache, an index
+     * which is missing or can not be read is empty. */
+    public static BitmapIndex read() {
+        BitmapIndex empty = new BitmapIndex(new ObjectId[0]);
+        if (!file().isFile()) {
+            return empty;
+        }
+        byte[] data = readContents(file());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return empty;
+            }
+            ObjectId[] objects = new ObjectId[buffer.getInt()];
+            for (int i = 0; i < objects.length; i += 1) {
+                objects[i] = ObjectId.fromBytes(data, buffer.position());
+                buffer.position(buffer.position() + ObjectId.LENGTH);
+            }
+            BitmapIndex index = new BitmapIndex(objects, data);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i += 1) {
+                ObjectId commit = ObjectId.fromBytes(data, buffer.position());
+                buffer.position(buffer.position() + ObjectId.LENGTH);
+                index.offsets.put(commit, buffer.position());
+                int length = buffer.getInt();
+                buffer.position(buffer.position() + length);
+            }
+            return index;
+        } catch (RuntimeException e) {
+            return empty;       // truncated
+        }
+    }
+
+    public int size() {
+        return objects.length;
+    }
+
+    /** @return the number of the object ID, or -1 if it is not in the
+     * table. */
+    public int indexOf(ObjectId id) {
+        int i = Arrays.binarySearch(objects, id);
+        return i >= 0 ? i : -1;
+    }
+
+    public ObjectId idAt(int i) {
+        return objects[i];
+    }
+
+    /** @return the bitmap of the objects reachable from COMMIT, or null if
+     * the commit has no bitmap. The bitmap must not be modified. */
+    public BitSet get(ObjectId commit) {
+        BitSet bitmap = bitmaps.get(commit);
+        Integer offset = offsets.get(commit);
+        if (bitmap == null && offset != null) {
+            bitmap = decode(data, offset);
+            bitmaps.put(commit, bitmap);
+        }
+        return bitmap;
+    }
+
+    public void put(ObjectId commit, BitSet bitmap) {
+        bitmaps.put(commit, bitmap);
+    }
+
+    /** @return the commits which have a bitmap. */
+    public Set<ObjectId> commits() {
+        Set<ObjectId> commits = new HashSet<>(offsets.keySet());
+        commits.addAll(bitmaps.keySet());
+        return commits;
+    }
+
+    /** @return a map from the numbers of this index to the numbers of the
+     * same objects in OTHER, -1 for the objects OTHER does not contain. Both
+     * tables are sorted, so they are merged in one pass. */
+    public int[] mapTo(BitmapIndex other) {
+        int[] map = new int[objects.length];
+        int j = 0;
+        for (int i = 0; i < objects.length; i += 1) {
+            while (j < other.objects.length && other.objects[j].compareTo(
+                objects[i]) < 0) {
+                j += 1;
+            }
+            map[i] = j < other.objects.length && other.objects[j].equals(
+                objects[i]) ? j : -1;
+        }
+        return map;
+    }
+
+    /** @return BITMAP with its bits renumbered by MAP. */
+    public static BitSet translate(BitSet bitmap, int[] map) {
+        BitSet result = new BitSet();
+        for (int i = bitmap.nextSetBit(0); i >= 0; i = bitmap.nextSetBit(i
+            + 1)) {
+            if (map[i] >= 0) {
+                result.set(map[i]);
+            }
+        }
+        return result;
+    }
+
+    /** @return an index over the objects in KEEP only, with the bitmaps of
+     * COMMITS. */
+    public BitmapIndex retain(BitSet keep, Collection<ObjectId> commits) {
+        ObjectId[] kept = new ObjectId[keep.cardinality()];
+        int[] map = new int[objects.length];
+        Arrays.fill(map, -1);
+        int n = 0;
+        for (int i = keep.nextSetBit(0); i >= 0; i = keep.nextSetBit(i + 1)) {
+            kept[n] = objects[i];
+            map[i] = n;
+            n += 1;
+        }
+        BitmapIndex result = new BitmapIndex(kept);
+        for (ObjectId commit : commits) {
+            BitSet bitmap = get(commit);
+            if (bitmap != null) {
+                result.put(commit, translate(bitmap, map));
+            }
+        }
+        return result;
+    }
+
+    /** @return the file of the index of the repository. */
+    public static File file() {
+        return join(Data.commonDir(), "bitmaps");
+    }
+
+    /** Writes the index to its file through LOCK, which must be held. */
+    public void write(LockFile lock) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(MAGIC);
+        writeInt(out, objects.length);
+        byte[] id = new byte[ObjectId.LENGTH];
+        for (ObjectId object : objects) {
+            object.copyTo(id, 0);
+            out.writeBytes(id);
+        }
+        Set<ObjectId> commits = commits();
+        writeInt(out, commits.size());
+        for (ObjectId commit : commits) {
+            commit.copyTo(id, 0);
+            out.writeBytes(id);
+            byte[] words = encode(get(commit));
+            writeInt(out, words.length);
+            out.writeBytes(words);
+        }
+        lock.write(out.toByteArray());
+    }
+
+    /** @return the words of BITMAP compressed as runs. */
+    static byte[] encode(BitSet bitmap) {
+        long[] words = bitmap.toLongArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < words.length) {
+            int start = i;
+            if (words[i] == 0 || words[i] == -1L) {
+                long word = words[i];
+                while (i < words.length && words[i] == word) {
+                    i += 1;
+                }
+                writeVarint(out, (i - start) << 2 | (word == 0 ? ZERO_RUN
+                    : ONES_RUN));
+            } else {
+                while (i < words.length && words[i] != 0 && words[i] != -1L) {
+                    i += 1;
+                }
+                writeVarint(out, (i - start) << 2 | LITERAL_RUN);
+                for (int j = start; j < i; j += 1) {
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        out.write((int) (words[j] >>> shift));
+                    }
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** @return the bitmap whose length and compressed words are at
+     * OFFSET in DATA. */
+    static BitSet decode(byte[] data, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(offset);
+        int end = buffer.getInt() + buffer.position();
+        long[] words = new long[64];
+        int length = 0;
+        while (buffer.position() < end) {
+            int header = readVarint(buffer);
+            int count = header >>> 2;
+            if (length + count > words.length) {
+                words = Arrays.copyOf(words, Math.max(length + count, 2
+                    * words.length));
+            }
+            for (int i = 0; i < count; i += 1) {
+                switch (header & 3) {
+                    case ZERO_RUN:
+                        words[length] = 0;
+                        break;
+                    case ONES_RUN:
+                        words[length] = -1L;
+                        break;
+                    default:
+                        words[length] = buffer.getLong();
+                }
+                length += 1;
+            }
+        }
+        return BitSet.valueOf(Arrays.copyOf(words, length));
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.writeBytes(ByteBuffer.allocate(4).putInt(value).array());
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
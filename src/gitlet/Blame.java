@@ -0,0 +1,409 @@
+/* This class finds the commit each line of a file comes from. The history is
+ * walked back from the blamed commit, and a commit is only diffed against
+ * its parents when its blob of the file differs from theirs: a commit which
+ * leaves the blob untouched shares the origins of its parent. A line which
+ * a diff maps to a line of a parent comes from the origin of that line,
+ * every other line comes from the commit itself.
+ * The origins are cached in ".gitlet/blame/<sha1 of the path>" for the
+ * commits which changed the file and for the blamed commits, so blaming
+ * again after a new commit only walks and diffs the new commit. The cache
+ * is only a cache: a file which is missing or can not be read is empty.
+ * File layout: the magic "GBLM", the length and the bytes of the path, then
+ * for each commit its raw id, the number of runs and the runs, each the
+ * number of lines followed by the raw id of their origin. */
+
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+public class Blame {
+    private static final byte[] MAGIC = "GBLM".getBytes(StandardCharsets
+        .US_ASCII);
+
+    private final String path;
+    private final File file;
+    /* the names of the path, and for each the entry of the name by tree */
+    private final byte[][] names;
+    private final List<Map<ObjectId, ObjectId>> entries = new ArrayList<>();
+    /* the blob of the file by commit, null if the commit has no such file */
+    private final Map<ObjectId, ObjectId> blobs = new HashMap<>();
+    /* the origins of the lines by commit: read from the cache, computed
+     * in this run, and the ones to add to the cache */
+    private final Map<ObjectId, ObjectId[]> cached;
+    private final Map<ObjectId, ObjectId[]> origins = new HashMap<>();
+    private final Map<ObjectId, ObjectId[]> added = new LinkedHashMap<>();
+
+    private Blame(String path) {
+        this.path = path;
+        this.file = join(Data.commonDir(), "blame", sha1(path));
+        String[] parts = path.split("/");
+        this.names = new byte[parts.length][];
+        for (int i = 0; i < names.length; i += 1) {
+            names[i] = parts[i].getBytes(StandardCharsets.UTF_8);
+            entries.add(new HashMap<>());
+        }
+        this.cached = read(file, path);
+    }
+
+    /** @return the lines of the file PATH in the commit COMMIT, each with
+     * the id of the commit it comes from, the first 8 digits of the id, its
+     * line number and its content. */
+    public static String blame(ObjectId commit, String path) {
+        Blame blame = new Blame(path);
+        ObjectId blob = blame.blob(commit);
+        assertCondition(blob != null, String.format("no such path '%s' in %s",
+            path, commit));
+        ObjectId[] origins = blame.origins(commit);
+        blame.save();
+        String[] lines = readLines(blob);
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < lines.length; i += 1) {
+            out.append(String.format("%s %d) %s\n", origins[i].toString()
+                .substring(0, 8), i + 1, lines[i]));
+        }
+        return out.toString();
+    }
+
+    /** @return the origins of the lines of the file in COMMIT. The commits
+     * to compute are walked in postorder, so each is computed after the
+     * parents it depends on. The walk stops at the cached commits. */
+    private ObjectId[] origins(ObjectId commit) {
+        Deque<ObjectId> stack = new ArrayDeque<>();
+        Set<ObjectId> entered = new HashSet<>();
+        stack.push(commit);
+        while (!stack.isEmpty()) {
+            ObjectId top = stack.peek();
+            if (origins.containsKey(top)) {
+                stack.pop();
+            } else if (cached.containsKey(top)) {
+                origins.put(top, cached.get(top));
+                stack.pop();
+            } else if (entered.add(top)) {
+                for (ObjectId parent : dependencies(top)) {
+                    if (!origins.containsKey(parent)) {
+                        stack.push(parent);
+                    }
+                }
+            } else {
+                stack.pop();
+                origins.put(top, compute(top));
+            }
+        }
+        if (!cached.containsKey(commit)) {
+            added.put(commit, origins.get(commit));
+        }
+        return origins.get(commit);
+    }
+
+    /** @return the parents whose origins COMMIT needs: the first parent
+     * with the same blob, or else every parent which has the file. */
+    private List<ObjectId> dependencies(ObjectId commit) {
+        ObjectId blob = blob(commit);
+        List<ObjectId> parents = new ArrayList<>();
+        for (ObjectId parent : Data.getCommitParents(commit)) {
+            ObjectId parentBlob = blob(parent);
+            if (blob.equals(parentBlob)) {
+                return List.of(parent);
+            } else if (parentBlob != null) {
+                parents.add(parent);
+            }
+        }
+        return parents;
+    }
+
+    /** @return the origins of the lines of COMMIT, whose DEPENDENCIES are
+     * computed. */
+    private ObjectId[] compute(ObjectId commit) {
+        ObjectId blob = blob(commit);
+        List<ObjectId> parents = dependencies(commit);
+        if (parents.size() == 1 && blob.equals(blob(parents.get(0)))) {
+            return origins.get(parents.get(0));     // untouched
+        }
+        String[] lines = readLines(blob);
+        ObjectId[] result = new ObjectId[lines.length];
+        Arrays.fill(result, commit);
+        for (ObjectId parent : parents) {
+            ObjectId[] parentOrigins = origins.get(parent);
+            int[] map = matchLines(readLines(blob(parent)), lines);
+            for (int i = 0; i < lines.length; i += 1) {
+                if (result[i] == commit && map[i] >= 0) {
+                    result[i] = parentOrigins[map[i]];
+                }
+            }
+        }
+        added.put(commit, result);
+        return result;
+    }
+
+    /** @return the blob of the file in COMMIT, or null if there is none. The
+     * entries are looked up by tree, so an unchanged directory is read once
+     * for the whole history. */
+    private ObjectId blob(ObjectId commit) {
+        if (blobs.containsKey(commit)) {
+            return blobs.get(commit);
+        }
+        ObjectId id = Data.getCommitTree(commit);
+        for (int i = 0; i < names.length && id != null; i += 1) {
+            id = entry(i, id);
+        }
+        blobs.put(commit, id);
+        return id;
+    }
+
+    /** @return the entry of the name at DEPTH in the tree TREE, or null if
+     * there is none. */
+    private ObjectId entry(int depth, ObjectId tree) {
+        Map<ObjectId, ObjectId> memo = entries.get(depth);
+        if (!memo.containsKey(tree)) {
+            ObjectId found = null;
+            boolean last = depth == names.length - 1;
+            for (TreeFormat.Cursor c = Data.treeCursor(tree); c.next();) {
+                if (c.nameEquals(names[depth]) && c.isTree() != last) {
+                    found = c.id();
+                    break;
+                }
+            }
+            memo.put(tree, found);
+        }
+        return memo.get(tree);
+    }
+
+    /** @return the lines of the blob ID, without their line breaks. */
+    private static String[] readLines(ObjectId id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Data.copyBlob(id, Channels.newChannel(out));
+        String content = out.toString(StandardCharsets.UTF_8);
+        if (content.isEmpty()) {
+            return new String[0];
+        }
+        if (content.endsWith("\n")) {
+            content = content.substring(0, content.length() - 1);
+        }
+        return content.split("\n", -1);
+    }
+
+    /** @return for each line of B, the number of the same line in A if a
+     * shortest edit script from A to B keeps it, or -1 if it is inserted.
+     * The lines are numbered first, so that comparing two of them is cheap,
+     * then matched with the linear space variant of the algorithm of Myers:
+     * the middle of a shortest script is found from both ends at once, and
+     * the two halves are matched in turn. Its cost is O((N + M) D) in time
+     * for D edits, but only O(N + M) in space. */
+    static int[] matchLines(String[] a, String[] b) {
+        Map<String, Integer> numbers = new HashMap<>();
+        int[] x = new int[a.length];
+        for (int i = 0; i < a.length; i += 1) {
+            x[i] = numbers.computeIfAbsent(a[i], line -> numbers.size());
+        }
+        int[] y = new int[b.length];
+        for (int i = 0; i < b.length; i += 1) {
+            y[i] = numbers.computeIfAbsent(b[i], line -> numbers.size());
+        }
+        int[] map = new int[b.length];
+        Arrays.fill(map, -1);
+        match(x, 0, x.length, y, 0, y.length, map);
+        return map;
+    }
+
+    /** Matches the lines A[A0..A1) to the lines B[B0..B1) in MAP. */
+    private static void match(int[] a, int a0, int a1, int[] b, int b0,
+        int b1, int[] map) {
+        while (a0 < a1 && b0 < b1 && a[a0] == b[b0]) {
+            map[b0] = a0;
+            a0 += 1;
+            b0 += 1;
+        }
+        while (a1 > a0 && b1 > b0 && a[a1 - 1] == b[b1 - 1]) {
+            a1 -= 1;
+            b1 -= 1;
+            map[b1] = a1;
+        }
+        if (a0 == a1 || b0 == b1) {
+            return;
+        }
+        int[] middle = middle(a, a0, a1, b, b0, b1);
+        match(a, a0, middle[0], b, b0, middle[1], map);
+        match(a, middle[0], a1, b, middle[1], b1, map);
+    }
+
+    /** @return the point {x, y} where a shortest edit script from A[A0..A1)
+     * to B[B0..B1), whose first and last lines differ, crosses its middle,
+     * strictly between both ends. */
+    private static int[] middle(int[] a, int a0, int a1, int[] b, int b0,
+        int b1) {
+        int n = a1 - a0;
+        int m = b1 - b0;
+        // forward[k + max] is the furthest x on the diagonal k = x - y from
+        // the start, backward[k + max] the furthest one from the end on the
+        // diagonal k = (n - x) - (m - y), with -1 for a diagonal not reached
+        int max = (n + m + 1) / 2;
+        int[] forward = new int[2 * max + 2];
+        int[] backward = new int[2 * max + 2];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[max + 1] = 0;
+        backward[max + 1] = 0;
+        int delta = n - m;
+        // the paths meet on a forward step if DELTA is odd, else backward
+        boolean odd = delta % 2 != 0;
+        // the diagonals skipped at each end, once their paths left the box
+        int forwardStart = 0;
+        int forwardEnd = 0;
+        int backwardStart = 0;
+        int backwardEnd = 0;
+        for (int d = 0; d <= max; d += 1) {
+            for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                int x = k == -d || k != d && forward[max + k - 1]
+                    < forward[max + k + 1] ? forward[max + k + 1]
+                    : forward[max + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[a0 + x] == b[b0 + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[max + k] = x;
+                int other = max + delta - k;
+                if (x > n) {
+                    forwardEnd += 2;
+                } else if (y > m) {
+                    forwardStart += 2;
+                } else if (odd && other >= 0
+                    && other < backward.length && backward[other] >= 0
+                    && x >= n - backward[other]) {
+                    return new int[] {a0 + x, b0 + y};
+                }
+            }
+            for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                int x = k == -d || k != d && backward[max + k - 1]
+                    < backward[max + k + 1] ? backward[max + k + 1]
+                    : backward[max + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[a1 - x - 1] == b[b1 - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[max + k] = x;
+                int other = max + delta - k;
+                if (x > n) {
+                    backwardEnd += 2;
+                } else if (y > m) {
+                    backwardStart += 2;
+                } else if (!odd && other >= 0
+                    && other < forward.length && forward[other] >= 0
+                    && forward[other] >= n - x) {
+                    int split = forward[other];
+                    return new int[] {a0 + split, b0 + split - (delta - k)};
+                }
+            }
+        }
+        throw new IllegalStateException("No middle snake");
+    }
+
+    /** Adds the new origins to the cache. The file is read again under its
+     * lock, so the origins another process added meanwhile are kept. */
+    private void save() {
+        if (added.isEmpty()) {
+            return;
+        }
+        LockFile lock = new LockFile(file);
+        lock.lock();
+        try {
+            write(lock);
+        } finally {
+            lock.rollback();    // no-op if committed
+        }
+    }
+
+    /** Writes the origins of the cache and the new ones through LOCK, which
+     * must be held. */
+    private void write(LockFile lock) {
+        Map<ObjectId, ObjectId[]> all = read(file, path);
+        all.putAll(added);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(MAGIC);
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, pathBytes.length);
+        out.writeBytes(pathBytes);
+        for (Map.Entry<ObjectId, ObjectId[]> entry : all.entrySet()) {
+            out.writeBytes(entry.getKey().toBytes());
+            ObjectId[] lines = entry.getValue();
+            List<Integer> runs = new ArrayList<>();
+            for (int i = 0; i < lines.length; i += 1) {
+                if (i == 0 || !lines[i].equals(lines[i - 1])) {
+                    runs.add(i);
+                }
+            }
+            writeInt(out, runs.size());
+            for (int i = 0; i < runs.size(); i += 1) {
+                int end = i + 1 < runs.size() ? runs.get(i + 1) : lines.length;
+                writeInt(out, end - runs.get(i));
+                out.writeBytes(lines[runs.get(i)].toBytes());
+            }
+        }
+        lock.write(out.toByteArray());
+        lock.commit();
+    }
+
+    /** @return the origins cached in FILE for PATH, none if the file is
+     * missing, truncated or belongs to another path. */
+    private static Map<ObjectId, ObjectId[]> read(File file, String path) {
+        Map<ObjectId, ObjectId[]> result = new LinkedHashMap<>();
+        if (!file.isFile()) {
+            return result;
+        }
+        byte[] data = readContents(file);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            byte[] pathBytes = new byte[buffer.getInt()];
+            buffer.get(pathBytes);
+            if (!Arrays.equals(magic, MAGIC) || !path.equals(new String(
+                pathBytes, StandardCharsets.UTF_8))) {
+                return new LinkedHashMap<>();
+            }
+            while (buffer.hasRemaining()) {
+                ObjectId commit = readId(data, buffer);
+                List<ObjectId> lines = new ArrayList<>();
+                int runs = buffer.getInt();
+                for (int i = 0; i < runs; i += 1) {
+                    int count = buffer.getInt();
+                    ObjectId origin = readId(data, buffer);
+                    for (int j = 0; j < count; j += 1) {
+                        lines.add(origin);
+                    }
+                }
+                result.put(commit, lines.toArray(new ObjectId[0]));
+            }
+            return result;
+        } catch (RuntimeException e) {
+            return new LinkedHashMap<>();       // truncated
+        }
+    }
+
+    private static ObjectId readId(byte[] data, ByteBuffer buffer) {
+        ObjectId id = ObjectId.fromBytes(data, buffer.position());
+        buffer.position(buffer.position() + ObjectId.LENGTH);
+        return id;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.writeBytes(ByteBuffer.allocate(4).putInt(value).array());
+    }
+}
@@ -0,0 +1,91 @@
+/* This class implements content-defined chunking with the FastCDC algorithm.
+ * A gear hash is rolled over the bytes of the stream and a chunk ends where
+ * the top bits of the hash are all zero, so the boundaries only depend on the
+ * nearby content: an edit changes the chunks around it and leaves the others
+ * untouched. Following FastCDC, the first MIN_SIZE bytes of a chunk are
+ * skipped, a harder mask is used before AVG_SIZE and an easier one after it,
+ * which keeps the chunk sizes close to AVG_SIZE. */
+
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+public class Chunker {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVG_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+    /* AVG_SIZE is 2^16, the masks use 2 bits more and 2 bits less. */
+    private static final long MASK_S = -1L << (64 - 18);
+    private static final long MASK_L = -1L << (64 - 14);
+    private static final long[] GEAR = gearTable();
+
+    /** Splits the content of IN into chunks and calls ACTION with each chunk
+     * in order. At most MAX_SIZE bytes are buffered. */
+    public static void split(InputStream in, Consumer<byte[]> action) {
+        byte[] buffer = new byte[MAX_SIZE];
+        int length = 0;
+        boolean eof = false;
+        try {
+            while (true) {
+                while (length < MAX_SIZE && !eof) {
+                    int n = in.read(buffer, length, MAX_SIZE - length);
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        length += n;
+                    }
+                }
+                if (length == 0) {
+                    return;
+                }
+                int cut = cutPoint(buffer, length);
+                action.accept(Arrays.copyOf(buffer, cut));
+                System.arraycopy(buffer, cut, buffer, 0, length - cut);
+                length -= cut;
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** @return the length of the first chunk of the LENGTH bytes in BUFFER. */
+    static int cutPoint(byte[] buffer, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int normal = Math.min(AVG_SIZE, length);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & MASK_S) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < length; i += 1) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & MASK_L) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    /** @return the random values of the gear hash, generated by SplitMix64
+     * with a fixed seed so that every repository cuts at the same places. */
+    private static long[] gearTable() {
+        long[] table = new long[256];
+        long state = 0x6769746c6574L;   // "gitlet"
+        for (int i = 0; i < table.length; i += 1) {
+            state += 0x9e3779b97f4a7c15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+}
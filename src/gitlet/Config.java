@@ -0,0 +1,114 @@
+/* This class reads the configuration of the repository from .gitlet/config.
+ * Each line of the file is of the form "key = value", e.g.
+ *     core.fsync = batch
+ * Empty lines and lines starting with '#' are ignored. The file is optional,
+ * every key has a default value given by the caller. */
+
+package gitlet;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+public class Config {
+    /** @return the value of KEY, or DEFAULTVALUE if the key is not set. The
+     * config is read once per command, see Context. */
+    public static String get(String key, String defaultValue) {
+        return Context.current().config().getOrDefault(key, defaultValue);
+    }
+
+    /** @return the value of KEY in the config of the repository whose
+     * shared .gitlet directory is GITLETDIR, e.g. a remote, or DEFAULTVALUE
+     * if the key is not set. */
+    public static String get(File gitletDir, String key, String
+        defaultValue) {
+        if (gitletDir.equals(Data.commonDir())) {
+            return get(key, defaultValue);
+        }
+        return parse(join(gitletDir, "config")).getOrDefault(key,
+            defaultValue);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            error(String.format("bad numeric config value '%s' for '%s'",
+                value, key));
+            return defaultValue;
+        }
+    }
+
+    /** @return the value of KEY, "true" or "false", or DEFAULTVALUE if it
+     * is not set. */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        assertCondition(value.equals("true") || value.equals("false"),
+            String.format("bad boolean config value '%s' for '%s'", value,
+            key));
+        return value.equals("true");
+    }
+
+    /** Sets KEY to VALUE in the config file, keeping the other lines. The
+     * file is read and written under its lock, so the keys other commands
+     * set meanwhile are kept. */
+    public static void set(String key, String value) {
+        File file = join(Data.commonDir(), "config");
+        LockFile lock = new LockFile(file);
+        lock.lock();
+        try {
+            List<String> lines = new ArrayList<>();
+            boolean found = false;
+            String content = file.isFile() ? readContentsAsString(file) : "";
+            if (!content.isEmpty()) {
+                for (String line : content.split("\n")) {
+                    int eq = line.indexOf('=');
+                    if (eq != -1 && line.substring(0, eq).trim().equals(key)) {
+                        line = key + " = " + value;
+                        found = true;
+                    }
+                    lines.add(line);
+                }
+            }
+            if (!found) {
+                lines.add(key + " = " + value);
+            }
+            lock.write((String.join("\n", lines) + "\n").getBytes(
+                StandardCharsets.UTF_8));
+            lock.commit();
+        } finally {
+            lock.rollback();    // no-op if committed
+        }
+        Context.current().reloadConfig();
+    }
+
+    /** @return the keys and the values of the config FILE. */
+    static Map<String, String> parse(File file) {
+        Map<String, String> result = new HashMap<>();
+        String content = file.isFile() ? readContentsAsString(file) : "";
+        if (!content.isEmpty()) {
+            for (String line : content.split("\n")) {
+                line = line.trim();
+                int eq = line.indexOf('=');
+                if (line.isEmpty() || line.startsWith("#") || eq == -1) {
+                    continue;
+                }
+                result.put(line.substring(0, eq).trim(), line.substring(eq
+                    + 1).trim());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,170 @@
+/* This class holds the state of one command run on a repository: the
+ * directories of the repository, found from the directory the command is run
+ * in, and what the command loads at most once, i.e. its refs, its config and
+ * its object store and its transaction. Each call of Repository runs in a
+ * new context, so the commands on different repositories, or on the same
+ * one from several threads, share nothing but the files, as two processes
+ * would; the memory store, which stands for the files, is the exception.
+ * The static methods of Data, Config and the others find the context through
+ * the current thread. The tasks a command hands to other threads are wrapped
+ * to run in its context, see wrap. */
+
+package gitlet;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+import static gitlet.Utils.*;
+
+final class Context {
+    private static final ThreadLocal<Context> CURRENT = new ThreadLocal<>();
+
+    /* The directory the command is run in. */
+    final File cwd;
+    /* Points to the .gitlet directory in CWD, which may not exist. */
+    final File viewDir;
+    /* Points to the .gitlet directory of the worktree, which holds its HEAD
+     * and its index. */
+    final File gitletDir;
+    /* Points to the .gitlet directory shared by all the worktrees, which
+     * holds the objects, the refs and the config. It is the GITLETDIR but
+     * in a linked worktree. */
+    final File commonDir;
+    /* The parent directory of the .gitlet of the worktree. */
+    final File baseDir;
+    /* The path of BASEDIR, ending with a slash. */
+    final String basePath;
+    /* The ref database, which loads the packed refs once per command. */
+    final RefDB refs;
+    /* The objects written by the command, see Transaction. */
+    final Transaction transaction = new Transaction();
+    /* read from the worker threads, hence volatile */
+    private volatile Map<String, String> config;
+    private volatile ObjectStore store;
+    /* the stores of the other repositories the command opened, e.g. the
+     * origin of a fetch */
+    private final List<ObjectStore> peerStores = new CopyOnWriteArrayList<>();
+
+    /** The context of the repository containing the directory CWD, or of
+     * the repository to be created in CWD if there is none. */
+    Context(File cwd) {
+        this.cwd = cwd.getAbsoluteFile();
+        this.viewDir = join(this.cwd, ".gitlet");
+        File repo = findRepository(this.cwd);
+        File dotGitlet = repo == null ? viewDir : repo;
+        this.gitletDir = Data.readGitletFile(dotGitlet);
+        this.commonDir = Data.findCommonDir(gitletDir);
+        this.baseDir = dotGitlet.getParentFile();
+        String path = baseDir.getAbsolutePath();
+        this.basePath = path.endsWith("/") ? path : path + "/";
+        this.refs = new RefDB(commonDir, gitletDir);
+    }
+
+    /** Finds the .gitlet from the PATH back to the root directory.
+     * @return the .gitlet directory or file, or null if it doesn't exist. */
+    private static File findRepository(File path) {
+        File gitletDir = join(path, ".gitlet");
+        if (gitletDir.exists()) {
+            return gitletDir;
+        }
+        File parent = join(path, "..");
+        if (path.equals(parent)) {
+            return null;
+        }
+        return findRepository(parent);
+    }
+
+    /** @return the context of the command run by the current thread. */
+    static Context current() {
+        Context context = CURRENT.get();
+        if (context == null) {
+            throw new IllegalStateException("Not in a Gitlet command.");
+        }
+        return context;
+    }
+
+    /** Runs COMMAND in this context on the current thread.
+     * @return the result of COMMAND. */
+    <T> T call(Supplier<T> command) {
+        Context outer = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return command.get();
+        } finally {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+    }
+
+    /** @return TASK, run in the context of the caller by whatever thread
+     * runs it. */
+    static Runnable wrap(Runnable task) {
+        Context context = current();
+        return () -> context.call(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /** @return TASK, run in the context of the caller by whatever thread
+     * runs it. */
+    static <T> Supplier<T> wrap(Supplier<T> task) {
+        Context context = current();
+        return () -> context.call(task);
+    }
+
+    /** @return the keys and the values of the config, read once. */
+    Map<String, String> config() {
+        Map<String, String> values = config;
+        if (values == null) {
+            values = Config.parse(join(commonDir, "config"));
+            config = values;
+        }
+        return values;
+    }
+
+    /** Forgets the config, which is read again when next used. */
+    void reloadConfig() {
+        config = null;
+    }
+
+    /** @return the object store, opened when it is first used, i.e. once
+     * init has written the config. */
+    ObjectStore store() {
+        ObjectStore result = store;
+        if (result == null) {
+            synchronized (this) {
+                if (store == null) {
+                    store = ObjectStore.open(commonDir);
+                }
+                result = store;
+            }
+        }
+        return result;
+    }
+
+    /** @return the object store of the other repository whose shared
+     * directory is COMMONDIR, closed with this context. */
+    ObjectStore openStore(File commonDir) {
+        ObjectStore result = ObjectStore.open(commonDir);
+        peerStores.add(result);
+        return result;
+    }
+
+    /** Closes the object stores the command opened, once it is over. */
+    void close() {
+        ObjectStore result = store;
+        if (result != null) {
+            result.close();
+        }
+        for (ObjectStore peer : peerStores) {
+            peer.close();
+        }
+    }
+}
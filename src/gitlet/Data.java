@@ -1,89 +1,155 @@
 package gitlet;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.Queue;
 import java.util.LinkedList;
 import java.util.HashSet;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
 import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.nio.charset.StandardCharsets;
 
 import static gitlet.Utils.*;
 
 public class Data {
-
-    /* The working directory, the.gitlet directory, and the files in the.gitlet
-     directory. */
-    public static final File CWD = new File(System.getProperty("user.dir"));
-    /* Points to the .gitlet directory in the current working directory, 
-     * which may do not exist. */
-    public static final File VIEW_DIR = join(CWD, ".gitlet");
-    /* Points to the .gitlet directory, if does not find a such directory, then
-     * it points to the VIEW_DIR. */
-    public static final File GITLET_DIR = findGitlet();
-    public static final File HEAD_FILE = join(GITLET_DIR, "HEAD");
-    public static final File INDEX_FILE = join(GITLET_DIR, "index");
-    public static final File REFS_DIR = join(GITLET_DIR, "refs");
-    public static final File OBJS_DIR = join(GITLET_DIR, "objects");
-    public static final File BRANCH_DIR = join(REFS_DIR, "heads");
-    public static final File TAG_DIR = join(REFS_DIR, "tags");
-    /* base directory is the parent directory of the .gitlet directory */
-    public static final File BASE_DIR = join(GITLET_DIR, "..");
-    public static final File IGNORES_FILE = join(BASE_DIR, ".gitletignore");
+    /* The first line of the .gitlet file of a linked worktree. */
+    static final String GITDIR_PREFIX = "gitdir: ";
 
     public static final String REF_PREFIX = "ref: ";
     public static final int REF_PREFIX_LEN = REF_PREFIX.length();
     private static final byte NULL_BYTE = 0;
+    /* The length of the longest object type, i.e. "chunked". */
+    private static final int MAX_TYPE_LEN = 7;
+    /* The number of chunks of one file which may be hashed concurrently. */
+    private static final int CHUNK_WINDOW = 64;
+
+    /***************
+     * Directories *
+     ***************/
+    /* The directories are those of the repository of the command, see
+     * Context. */
+
+    /** @return the .gitlet directory in the directory of the command, which
+     * may not exist. */
+    public static File viewDir() {
+        return Context.current().viewDir;
+    }
+
+    /** @return the .gitlet directory of the worktree, which holds its HEAD
+     * and its index. */
+    public static File gitletDir() {
+        return Context.current().gitletDir;
+    }
+
+    /** @return the .gitlet directory shared by all the worktrees, which
+     * holds the objects, the refs and the config. */
+    public static File commonDir() {
+        return Context.current().commonDir;
+    }
+
+    public static File indexFile() {
+        return join(gitletDir(), "index");
+    }
+
+    /** @return the path of the root of the worktree, ending with a slash. */
+    public static String basePath() {
+        return Context.current().basePath;
+    }
+
+    public static File ignoresFile() {
+        return join(Context.current().baseDir, ".gitletignore");
+    }
+
+    /** @return the ref database, which loads the packed refs once per
+     * command. */
+    public static RefDB refs() {
+        return Context.current().refs;
+    }
+
+    /** @return the file PATH given by the user, relative to the directory
+     * of the command unless it is absolute. */
+    public static File file(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(Context.current().cwd,
+            path);
+    }
 
     /*********************
      * Commit Operations *
      *********************/
-    private static class Commit {
-        private final String tree;
-        private final String message;
-        private final List<String> parents;
+    static class Commit {
+        final ObjectId tree;
+        final String message;
+        final List<ObjectId> parents;
 
-        Commit(String tid, String msg, String... pids) {
+        Commit(ObjectId tid, String msg, List<ObjectId> pids) {
             this.tree = tid;
             this.message = msg;
-            this.parents = Arrays.asList(pids);
+            this.parents = pids;
         }
     }
 
-    public static String writeCommit(String tid, String msg, String... pids) {
-        String parentStr = String.join(" ", pids);
-        parentStr = parentStr.isEmpty() ? "" : String.format("parent %s\n",
-            parentStr);
-        String content = String.format("tree %s\n%s\n%s\n", tid, parentStr, msg);
-        return hashObject(content.getBytes(StandardCharsets.UTF_8), "commit");
+    public static ObjectId writeCommit(ObjectId tid, String msg, ObjectId...
+        pids) {
+        return hashObject(formatCommit(tid, msg, pids), "commit");
     }
 
-    private static Commit readCommit(String id) {
-        String content = new String(readObject(id, "commit"), StandardCharsets
-            .UTF_8);
+    /** @return the content of the commit object of the tree TID with the
+     * message MSG and the parents PIDS. */
+    static byte[] formatCommit(ObjectId tid, String msg, ObjectId... pids) {
+        StringBuilder content = new StringBuilder();
+        content.append("tree ").append(tid).append('\n');
+        if (pids.length > 0) {
+            content.append("parent");
+            for (ObjectId pid : pids) {
+                content.append(' ').append(pid);
+            }
+            content.append('\n');
+        }
+        content.append('\n').append(msg).append('\n');
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Commit readCommit(ObjectId id) {
+        return parseCommit(readObject(id, "commit"));
+    }
+
+    /** Parses the CONTENT of a commit object. */
+    static Commit parseCommit(byte[] bytes) {
+        String content = new String(bytes, StandardCharsets.UTF_8);
         String[] lines = content.split("\n+");
-        String tree = lines[0].split(" ")[1];
+        ObjectId tree = ObjectId.fromHex(lines[0].split(" ")[1]);
         String[] tokens = lines[1].split(" ");
         boolean hasParent = tokens[0].equals("parent");
         String message = hasParent ? lines[2] : lines[1];
-        String[] parents = hasParent ? Arrays.copyOfRange(tokens, 1, tokens
-            .length) : new String[0];
+        List<ObjectId> parents = new ArrayList<>();
+        for (int i = 1; hasParent && i < tokens.length; i += 1) {
+            parents.add(ObjectId.fromHex(tokens[i]));
+        }
         return new Commit(tree, message, parents);
     }
 
-    public static String getCommitTree(String id) {
+    public static ObjectId getCommitTree(ObjectId id) {
         return readCommit(id).tree;
     }
 
-    public static String getCommitMessage(String id) {
+    public static String getCommitMessage(ObjectId id) {
         return readCommit(id).message;
     }
 
-    public static List<String> getCommitParents(String id) {
+    public static List<ObjectId> getCommitParents(ObjectId id) {
         return readCommit(id).parents;
     }
 
@@ -92,18 +158,17 @@ public class Data {
      * This method is used for log command and finding the LCA of two commits.
      * @returns the list of the commits that are ancestors of the given commit.
      */
-    public static List<String> getCommitAncestors(String id) {
-        List<String> ancestors = new ArrayList<>();
-        Set<String> visited = new HashSet<>();
-        Queue<String> queue = new LinkedList<>();
+    public static List<ObjectId> getCommitAncestors(ObjectId id) {
+        List<ObjectId> ancestors = new ArrayList<>();
+        Set<ObjectId> visited = new HashSet<>();
+        Queue<ObjectId> queue = new LinkedList<>();
         visited.add(id);
         queue.add(id);
         while (!queue.isEmpty()) {
-            String commit = queue.poll();
+            ObjectId commit = queue.poll();
             ancestors.add(commit);
-            for (String parent : getCommitParents(commit)) {
-                if (!visited.contains(parent)) {
-                    visited.add(commit);
+            for (ObjectId parent : getCommitParents(commit)) {
+                if (visited.add(parent)) {
                     queue.add(parent);
                 }
             }
@@ -115,29 +180,38 @@ public class Data {
      * Ref Operations *
      ******************/
     public static boolean isCommitId(String id) {
-        return id.matches("^[0-9a-f]{40}$");
+        return ObjectId.isHex(id);
     }
 
     public static boolean isBranch(String name) {
-        File branchFile = join(BRANCH_DIR, name);
-        return branchFile.exists() && branchFile.isFile();
+        return refs().exists("refs/heads/" + name);
     }
 
     public static boolean isTag(String name) {
-        File tagFile = join(TAG_DIR, name);
-        return tagFile.exists() && tagFile.isFile();
+        return refs().exists("refs/tags/" + name);
     }
 
-    /** Write the content to the HEAD directly. */
-    public static void writeHead(String content) {
-        writeRef("HEAD", content);
+    /** @return true if NAME is a fetched branch, e.g. "origin/master". */
+    public static boolean isRemoteBranch(String name) {
+        return refs().exists("refs/remotes/" + name);
+    }
+
+    /** Points the HEAD to the local BRANCH. */
+    public static void writeHead(String branch) {
+        assertCondition(isBranch(branch), "Invalid ref content: " + branch);
+        refs().write("HEAD", REF_PREFIX + "refs/heads/" + branch);
+    }
+
+    /** Detaches the HEAD at the commit ID. */
+    public static void writeHead(ObjectId id) {
+        refs().write("HEAD", id.toString());
     }
 
     /** This operation is the reverse of writeHead. It reads the content of the
      * HEAD.
      * @return the local branch name or the commit id pointed by the HEAD. */
     public static String readHead() {
-        String content = readContentsAsString(HEAD_FILE);
+        String content = refs().read("HEAD");
         if (content.startsWith(REF_PREFIX)) {
             return basename(content.substring(REF_PREFIX_LEN));
         } else {
@@ -145,177 +219,481 @@ public class Data {
         }
     }
 
-    public static void updateHead(String ref) {
-        updateRef("HEAD", ref);
+    /** Moves the commit pointed by the HEAD from OLDID to NEWID. Fails if
+     * another process has moved it meanwhile. */
+    public static void updateHead(ObjectId newId, ObjectId oldId) {
+        updateRef("HEAD", newId, oldId);
     }
 
     /** Returns the id of the current HEAD commit. */
-    public static String getHead() {
+    public static ObjectId getHead() {
         return getRef("HEAD");
     }
 
-    /** Write the content to the REF directly.
-     * if the content is a local branch name, then write "ref: refs/heads/name"
-     * if the content is a commit id, then write the commit id directly.
-     * @param ref is the path of the ref to write, relative to the .gitlet 
-     * directory, e.g. "refs/heads/master".
-     * @param content is just the commit id or the local branch name, i.e. 
-     * "master". */
-    private static void writeRef(String ref, String content) {
-        File refFile = join(GITLET_DIR, ref);
-        if (isBranch(content)) {
-            writeContents(refFile, REF_PREFIX + "refs/heads/" + content);
-        } else if (isCommitId(content)) {
-            writeContents(refFile, content);
-        } else {
-            error("Invalid ref content: " + content);
-        }
-    }
-
     /** @param ref the path of the ref to get, relative to the .gitlet 
      * directory.
      * @return the id of the commit pointed by the given ref */
-    public static String getRef(String ref) {
-        File refFile = join(GITLET_DIR, ref);
-        String content = readContentsAsString(refFile);
+    public static ObjectId getRef(String ref) {
+        String content = refs().read(ref);
+        assertCondition(content != null, "unknown ref: " + ref);
         if (content.startsWith(REF_PREFIX)) {
             return getRef(content.substring(REF_PREFIX_LEN));
         } else {
-            return content;
+            return ObjectId.fromHex(content);
         }
     }
 
-    /** Update the deepest-ref with the given content. */
-    public static void updateRef(String ref, String content) {
-        File refFile = join(GITLET_DIR, ref);
-        String refContent = readContentsAsString(refFile);
-        if (refContent.startsWith(REF_PREFIX)) {
-            updateRef(refContent.substring(REF_PREFIX_LEN), content);
+    /** Update the deepest-ref with the given id, if it still points to
+     * EXPECTED. */
+    public static void updateRef(String ref, ObjectId id, ObjectId expected) {
+        String refContent = refs().read(ref);
+        if (refContent != null && refContent.startsWith(REF_PREFIX)) {
+            updateRef(refContent.substring(REF_PREFIX_LEN), id, expected);
         } else {
-            writeContents(refFile, content);
+            refs().compareAndSwap(ref, expected.toString(), id.toString());
         }
     }
 
-    /** Create a new ref with the given content.
+    /** Create a new ref pointing to the commit ID. Fails if the ref has been
+     * created by another process.
      * @param ref the path of the ref to create, relative to the .gitlet 
      * directory. */
-    public static void createRef(String ref, String content) {
-        File refFile = join(GITLET_DIR, ref);
-        createFile(refFile);
-        writeRef(ref, content);
+    public static void createRef(String ref, ObjectId id) {
+        refs().compareAndSwap(ref, null, id.toString());
     }
 
-    /** Initializes the .gitlet directory and creates the necessary files. */
-    public static void init() {
-        createDirectory(VIEW_DIR);
-        createDirectory(join(VIEW_DIR, "refs"));
-        createDirectory(join(VIEW_DIR, "objects"));
-        createDirectory(join(VIEW_DIR, "refs", "heads"));
-        createDirectory(join(VIEW_DIR, "refs", "tags"));
-        createFile(join(VIEW_DIR, "HEAD"));
-        createFile(join(VIEW_DIR, "index"));
+    /** Moves the loose refs into the packed-refs file. */
+    public static void packRefs() {
+        refs().pack();
     }
 
-    private static File findGitlet() {
-        File repo = findRepository(CWD);
-        return repo == null ? VIEW_DIR : repo;
-    }
-
-    /** Finds the .gitlet directory from the PATH back to the root directory.
-     * @return the .gitlet directory, or null if it doesn't exist. */
-    private static File findRepository(File path) {
-        File gitletDir = join(path, ".gitlet");
-        if (gitletDir.exists() && gitletDir.isDirectory()) {
-            return gitletDir;
+    /** Initializes the .gitlet directory and creates the necessary files. */
+    public static void init() {
+        createDirectory(viewDir());
+        createDirectory(join(viewDir(), "refs"));
+        createDirectory(join(viewDir(), "objects"));
+        createDirectory(join(viewDir(), "refs", "heads"));
+        createDirectory(join(viewDir(), "refs", "tags"));
+        createFile(join(viewDir(), "HEAD"));
+        createFile(join(viewDir(), "index"));
+    }
+
+    /** @return the directory the .gitlet file DOTGITLET of a linked
+     * worktree points to, or DOTGITLET itself if it is a directory. */
+    static File readGitletFile(File dotGitlet) {
+        if (!dotGitlet.isFile()) {
+            return dotGitlet;
         }
-        File parent = join(path, "..");
-        if (path.equals(parent)) {
-            return null;
+        String content = readContentsAsString(dotGitlet).trim();
+        assertCondition(content.startsWith(GITDIR_PREFIX), "Invalid gitlet "
+            + "file: " + dotGitlet.getPath());
+        return dotGitlet.getParentFile().toPath().resolve(content.substring(
+            GITDIR_PREFIX.length())).normalize().toFile();
+    }
+
+    /** @return the shared directory of the worktree directory GITLETDIR,
+     * given by its "commondir" file, relative to GITLETDIR. */
+    static File findCommonDir(File gitletDir) {
+        File commonDir = join(gitletDir, "commondir");
+        if (!commonDir.isFile()) {
+            return gitletDir;
         }
-        return findRepository(parent);
+        return join(gitletDir, readContentsAsString(commonDir).trim());
     }
 
     /** Create a new gitlet object with the given content and type.
      * @return the SHA-1 of the new object. */
-    public static String hashObject(byte[] content, String type) {
-        byte[] withType = addTypeInfo(content, type);
-        String id = sha1(withType);
-        File objFile = join(OBJS_DIR, id);
-        if (!objFile.exists()) {    // create object file if it doesn't exist
-            createFile(objFile);
-            writeContents(objFile, withType);
-        }
+    public static ObjectId hashObject(byte[] content, String type) {
+        byte[] header = typeHeader(type);
+        ObjectId id = ObjectId.hash(header, content);
+        store().write(id, header, content);     // create if not exists
         return id;
     }
 
     /** Just calculate the SHA value of the specified content.
      * @return the SHA-1 value of the content. */
-    public static String restrictedHashObject(byte[] content, String type) {
-        byte[] withType = addTypeInfo(content, type);
-        return sha1(withType);
+    public static ObjectId restrictedHashObject(byte[] content, String type) {
+        return ObjectId.hash(typeHeader(type), content);
+    }
+
+    /** @return the object store of the repository, opened when it is
+     * first used, i.e. once init has written the config. */
+    public static ObjectStore store() {
+        return Context.current().store();
+    }
+
+    /** @return true if the store has the object ID, pending in this
+     * transaction or not. */
+    public static boolean hasObject(ObjectId id) {
+        return store().has(id);
+    }
+
+    /** Creates the blob object of FILE. Files of at least
+     * "core.chunkThreshold" bytes are stored as a chunked blob: the file is
+     * split by Chunker into chunks, which are stored as deduplicated blobs,
+     * and a manifest object of type "chunked" lists them in order. The
+     * chunking is disabled if the threshold is not set.
+     * @param write if false, only calculates the id of the object.
+     * @return the id of the blob or of the manifest. */
+    public static ObjectId hashFile(File file, boolean write) {
+        long threshold = Config.getLong("core.chunkThreshold", 0);
+        if (threshold <= 0 || file.length() < threshold) {
+            byte[] content = readContents(file);
+            return write ? hashObject(content, "blob")
+                : restrictedHashObject(content, "blob");
+        }
+        List<CompletableFuture<ObjectId>> chunkIds = new ArrayList<>();
+        List<Integer> chunkSizes = new ArrayList<>();
+        // bounds the chunks which are read but not yet hashed
+        Semaphore window = new Semaphore(CHUNK_WINDOW);
+        try (InputStream in = new FileInputStream(file)) {
+            Chunker.split(in, chunk -> {
+                window.acquireUninterruptibly();
+                chunkSizes.add(chunk.length);
+                chunkIds.add(CompletableFuture.supplyAsync(Context.wrap(
+                    () -> {
+                        try {
+                            return write ? hashObject(chunk, "blob")
+                                : restrictedHashObject(chunk, "blob");
+                        } finally {
+                            window.release();
+                        }
+                    })));
+            });
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+        StringBuilder manifest = new StringBuilder();
+        for (int i = 0; i < chunkIds.size(); i += 1) {
+            manifest.append(String.format("%s %d\n", chunkIds.get(i).join(),
+                chunkSizes.get(i)));
+        }
+        byte[] content = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        return write ? hashObject(content, "chunked")
+            : restrictedHashObject(content, "chunked");
+    }
+
+    /** Writes the content of the blob ID to OUT. A chunked blob is
+     * reassembled chunk by chunk. The payloads are sent with transferObject,
+     * so they never pass through the heap. */
+    public static void copyBlob(ObjectId id, WritableByteChannel out) {
+        if (!"chunked".equals(getObjectType(id))) {
+            transferObject(id, "blob", out);
+            return;
+        }
+        forEachChunk(id, chunk -> transferObject(chunk, "blob", out));
+    }
+
+    /** @return the size of the content of the blob ID, reassembled if it
+     * is chunked. Only the headers and the manifest are read. */
+    public static long getBlobSize(ObjectId id) {
+        try (ObjectStore.Source source = store().open(id)) {
+            String type = getObjectType(source, id);
+            if ("chunked".equals(type)) {
+                return manifestSize(readObject(source, id, type));
+            }
+            return source.size() - typeHeader(type).length;
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** Calls ACTION with the ids of the chunks of the chunked blob ID in
+     * order. */
+    public static void forEachChunk(ObjectId id, Consumer<ObjectId> action) {
+        forEachChunk(readObject(id, "chunked"), action);
     }
 
-    static byte[] addTypeInfo(byte[] content, String type) {
+    /** Calls ACTION with the chunks listed in the CONTENT of a manifest. */
+    static void forEachChunk(byte[] content, Consumer<ObjectId> action) {
+        String manifest = new String(content, StandardCharsets.UTF_8);
+        for (String line : manifest.split("\n")) {
+            action.accept(ObjectId.fromHex(line.split(" ")[0]));
+        }
+    }
+
+    /** @return the size of the blob reassembled from the chunks listed in
+     * the CONTENT of a manifest. */
+    static long manifestSize(byte[] content) {
+        long size = 0;
+        String manifest = new String(content, StandardCharsets.UTF_8);
+        for (String line : manifest.split("\n")) {
+            size += Long.parseLong(line.split(" ")[1]);
+        }
+        return size;
+    }
+
+    /** Writes the content of the blob ID to FILE. */
+    public static void copyBlob(ObjectId id, File file) {
+        try (FileChannel out = FileChannel.open(file.toPath(),
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            copyBlob(id, out);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** Calls ACTION once with the id of every object in the store, in no
+     * particular order. */
+    public static void forEachObject(Consumer<ObjectId> action) {
+        store().forEach(action);
+    }
+
+    /** Visits the entries of a tree object. */
+    public interface TreeVisitor {
+        /** @param type "blob" or "tree". */
+        void visit(String type, ObjectId id, String name);
+    }
+
+    /** Calls VISITOR with each entry of the tree ID in order. */
+    public static void forEachTreeEntry(ObjectId id, TreeVisitor visitor) {
+        forEachTreeEntry(readObject(id, "tree"), visitor);
+    }
+
+    /** Calls VISITOR with each entry of the CONTENT of a tree object. */
+    static void forEachTreeEntry(byte[] bytes, TreeVisitor visitor) {
+        for (TreeFormat.Cursor c = new TreeFormat.Cursor(bytes); c.next();) {
+            visitor.visit(c.type(), c.id(), c.name());
+        }
+    }
+
+    /** @return a cursor over the entries of the tree ID. */
+    public static TreeFormat.Cursor treeCursor(ObjectId id) {
+        return new TreeFormat.Cursor(readObject(id, "tree"));
+    }
+
+    /** @return the type of the object ID, reading only its header. */
+    public static String getObjectType(ObjectId id) {
+        try (ObjectStore.Source source = store().open(id)) {
+            return getObjectType(source, id);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** @return the type of the object ID read from SOURCE, which may be
+     * another store. */
+    static String getObjectType(ObjectStore.Source source, ObjectId id)
+        throws IOException {
+        byte[] header = readHeader(source, id);
+        return new String(header, 0, header.length - 1, StandardCharsets
+            .UTF_8);
+    }
+
+    /** Sends the payload of the object ID to OUT. Only the header is parsed,
+     * the payload of a file is transferred with FileChannel.transferTo,
+     * which lets the kernel copy it straight to the destination file or to
+     * stdout. */
+    public static void transferObject(ObjectId id, String type,
+        WritableByteChannel out) {
+        try (ObjectStore.Source source = store().open(id)) {
+            long position = checkHeader(source, id, type);
+            long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, size - position,
+                    out);
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** @return the type of the object read from SOURCE followed by the NULL
+     * byte. */
+    private static byte[] readHeader(ObjectStore.Source source, ObjectId id)
+        throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MAX_TYPE_LEN + 1);
+        int n = 0;
+        while (header.hasRemaining() && n >= 0) {
+            n = source.read(header, header.position());
+        }
+        byte[] bytes = header.array();
+        for (int i = 0; i < header.position(); i += 1) {
+            if (bytes[i] == NULL_BYTE) {
+                return Arrays.copyOf(bytes, i + 1);
+            }
+        }
+        error("Invalid object format: " + id);
+        return null;
+    }
+
+    /** Checks that the object read from SOURCE is of the given TYPE.
+     * @return the position of the payload. */
+    private static long checkHeader(ObjectStore.Source source, ObjectId id,
+        String type) throws IOException {
+        byte[] header = readHeader(source, id);
+        String actualType = new String(header, 0, header.length - 1,
+            StandardCharsets.UTF_8);
+        assertCondition(type.equals(actualType), "Object type mismatch,"
+            + " expected " + type + " but got " + actualType);
+        return header.length;
+    }
+
+    /** @return the header of an object of the given TYPE, i.e. the type
+     * followed by the NULL byte. The header is hashed and written in front of
+     * the content, without copying the content into a new array. */
+    static byte[] typeHeader(String type) {
         byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
-        byte[] result = new byte[content.length + typeBytes.length + 1];
-        System.arraycopy(typeBytes, 0, result, 0, typeBytes.length);
+        byte[] result = Arrays.copyOf(typeBytes, typeBytes.length + 1);
         result[typeBytes.length] = NULL_BYTE;
-        System.arraycopy(content, 0, result, typeBytes.length + 1, content
-            .length);
         return result;
     }
 
     /** Read the content of a gitlet object with the given id and type.
      * @return the content of the object. */
-    public static byte[] readObject(String id, String type) {
-        File objFile = join(OBJS_DIR, id);
-        assert objFile.exists() : "Object " + id + " does not exist.";
-
-        byte[] content = readContents(objFile);
-        int nullIndex = indexOf(content, NULL_BYTE);
-        assert nullIndex != -1 : "Invalid object format: " + id;
-        String actualType = new String(content, 0, nullIndex, StandardCharsets
-            .UTF_8);
-        assertCondition(type.equals(actualType), "Object type mismatch," 
-            + " expected " + type + " but got " + actualType);
-        return Arrays.copyOfRange(content, nullIndex + 1, content.length);
+    public static byte[] readObject(ObjectId id, String type) {
+        try (ObjectStore.Source source = store().open(id)) {
+            return readObject(source, id, type);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** Reads the content of the object ID from SOURCE, which may be another
+     * store or a batch. */
+    static byte[] readObject(ObjectStore.Source source, ObjectId id, String
+        type) throws IOException {
+        long position = checkHeader(source, id, type);
+        // reads the payload straight into an array of its exact size
+        ByteBuffer content = ByteBuffer.allocate((int) (source.size()
+            - position));
+        while (content.hasRemaining()) {
+            int n = source.read(content, position + content.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        return content.array();
     }
 
     /** Write the index entries to the index file. */
-    public static void writeIndex(Map<String, String> index) {
-        StringBuilder content = new StringBuilder();
-        for (String path : index.keySet()) {
-            String sha1 = index.get(path);
-            content.append(String.format("%s %s\n", path, sha1));
+    public static void writeIndex(PathTable index) {
+        writeIndex(indexFile(), index);
+    }
+
+    /** Writes the index entries to FILE, the index of another worktree. */
+    public static void writeIndex(File file, PathTable index) {
+        LockFile lock = new LockFile(file);
+        lock.lock();
+        try {
+            writeIndex(file, lock, index);
+        } finally {
+            lock.rollback();    // no-op if committed
         }
-        writeContents(INDEX_FILE, content.toString());
     }
 
-    /** Read the index entries from the index file. */
-    public static Map<String, String> readIndex() {
-        Map<String, String> index = new HashMap<>();
-        String content = readContentsAsString(INDEX_FILE);
-        if (content.isEmpty()) {
+    /** Writes the index entries to FILE through LOCK, which must be held, as
+     * a new base of the split index if it is enabled, see SplitIndex. */
+    private static void writeIndex(File file, LockFile lock, PathTable
+        index) {
+        if (SplitIndex.enabled()) {
+            SplitIndex.write(file, lock, index);
+            return;
+        }
+        lock.write(formatIndex(index).getBytes(StandardCharsets.UTF_8));
+        lock.commit();
+        SplitIndex.deleteBases(file, null);
+    }
+
+    /** Locks the index, replaces the entries with the result of UPDATE and
+     * writes them back. Concurrent writers wait for the lock, so no entry is
+     * lost.
+     * @return the entries before the update. */
+    public static PathTable updateIndex(Function<PathTable, PathTable>
+        update) {
+        LockFile lock = new LockFile(indexFile());
+        lock.lock();
+        try {
+            PathTable index = readIndex();
+            writeIndex(indexFile(), lock, update.apply(index));
             return index;
+        } finally {
+            lock.rollback();    // no-op if committed
         }
-        for (String line : content.split("\n")) {
-            String[] parts = line.split(" ");   // path sha1
-            index.put(parts[0], parts[1]);
+    }
+
+    /** Replaces the entries of the file or the directory PATH by ENTRIES.
+     * With the split index, the change is appended to its journal without
+     * reading the index. */
+    public static void replaceIndexTree(String path, PathTable entries) {
+        if (!SplitIndex.enabled()) {
+            updateIndex(index -> index.removeTree(path).putAll(entries));
+            return;
         }
-        return index;
+        LockFile lock = new LockFile(indexFile());
+        lock.lock();
+        try {
+            SplitIndex.append(indexFile(), lock, path, entries);
+        } finally {
+            lock.rollback();
+        }
+    }
+
+    /** Removes the entries of the file or the directory PATH.
+     * @return the paths which were removed. */
+    public static List<String> removeIndexTree(String path) {
+        if (!SplitIndex.enabled()) {
+            return updateIndex(index -> index.removeTree(path)).tree(path);
+        }
+        LockFile lock = new LockFile(indexFile());
+        lock.lock();
+        try {
+            List<String> removed = readIndex().tree(path);
+            if (!removed.isEmpty()) {
+                SplitIndex.append(indexFile(), lock, path, PathTable.EMPTY);
+            }
+            return removed;
+        } finally {
+            lock.rollback();
+        }
+    }
+
+    /** Formats the entries in sorted order, one "path sha1" per line. */
+    static String formatIndex(PathTable index) {
+        StringBuilder content = new StringBuilder();
+        for (PathTable.Cursor c = index.cursor(); c.next();) {
+            content.append(c.path()).append(' ').append(c.id()).append('\n');
+        }
+        return content.toString();
     }
 
-    /** Returns the base path of the current working directory. */
-    public static String getBasePath() {
-        String path = BASE_DIR.getAbsolutePath();
-        return path.endsWith("/") ? path : path + "/";
+    /** Read the index entries from the index file. An index written by an
+     * older version may be unsorted, the builder sorts it. */
+    public static PathTable readIndex() {
+        return readIndex(indexFile());
+    }
+
+    /** Reads the index entries from FILE, the index of any worktree, which
+     * may be the journal of a split index. */
+    public static PathTable readIndex(File file) {
+        String content = readContentsAsString(file);
+        if (SplitIndex.isJournal(content)) {
+            return SplitIndex.read(file, content);
+        }
+        return parseIndex(content);
+    }
+
+    /** @return the entries of CONTENT, one "path sha1" per line. */
+    static PathTable parseIndex(String content) {
+        PathTable.Builder index = PathTable.builder();
+        int start = 0;
+        while (start < content.length()) {
+            int end = content.indexOf('\n', start);
+            end = end < 0 ? content.length() : end;
+            int space = content.lastIndexOf(' ', end);    // path sha1
+            index.add(content.substring(start, space), ObjectId.fromHex(
+                content.substring(space + 1, end)));
+            start = end + 1;
+        }
+        return index.build();
     }
 
     public static List<String> getIgnorePatterns() {
-        if (!IGNORES_FILE.exists()) {
+        if (!ignoresFile().exists()) {
             return Arrays.asList();
         }
-        String content = readContentsAsString(IGNORES_FILE);
+        String content = readContentsAsString(ignoresFile());
         if (content.isEmpty()) {
             return Arrays.asList();
         }
@@ -324,17 +702,17 @@ public class Data {
 
     /** Asserts that the current directory is in an initialized Gitlet directory. */
     public static void assertInitialized() {
-        assertCondition(GITLET_DIR.exists(), "Not in an initialized Gitlet "
+        assertCondition(gitletDir().exists(), "Not in an initialized Gitlet "
                 + "directory.");
     }
 
     public static void assertNotInitialized() {
-        assertCondition(!VIEW_DIR.exists(), "A Gitlet version-control system"
+        assertCondition(!viewDir().exists(), "A Gitlet version-control system"
                 + " already exists in the current directory.");
     }
 
-    public static void assertObjectExists(String id) {
-        File objFile = join(OBJS_DIR, id);
-        assertFileExists(objFile);
+    public static void assertObjectExists(ObjectId id) {
+        assertCondition(hasObject(id), String.format("Not a valid object "
+            + "name %s", id));
     }
 }
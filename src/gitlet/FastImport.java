@@ -0,0 +1,412 @@
+/* This class imports a history from a stream of records, a subset of the
+ * format of git fast-import. The records are:
+ *
+ *   blob                         commit <ref>
+ *   mark :<name>                 mark :<name>
+ *   data <size>                  data <size>
+ *   <size bytes>                 <message of size bytes>
+ *                                from <commit>
+ *   reset <ref>                  merge <commit>
+ *   from <commit>                M <mode> <blob> <path>
+ *                                D <path>
+ *   checkpoint                   deleteall
+ *   progress <text>
+ *   done
+ *
+ * where a <commit> or a <blob> is a mark ":<name>" or an id, and a <commit>
+ * may also be a ref. The mark, from and merge lines are optional, the modes
+ * are ignored and the author and committer lines are skipped. A commit
+ * without from continues its branch.
+ * The trees of the branches are kept in memory, directory by directory: a
+ * commit only writes the directories it changes, and a directory is only
+ * read from the store when a change reaches it. The objects are added to a
+ * batch of the ObjectStore, a pack instead of loose files in the default
+ * store, and the refs are updated at the end and at each checkpoint, once
+ * the batch is complete. Blobs are stored whole, even
+ * above "core.chunkThreshold". */
+
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+public class FastImport {
+    private final InputStream in;
+    private final PrintStream progress;
+    /* the line read ahead by a record which ended without it */
+    private String pushedBack;
+    private final Map<String, ObjectId> marks = new HashMap<>();
+    private final Map<String, Branch> branches = new LinkedHashMap<>();
+    private ObjectStore.Batch batch = Data.store().batch();
+    private int commits;
+    private int objects;
+
+    /** A directory of a tree being imported. Its entries are read from the
+     * tree ID when first needed, and ID is cleared once they change. */
+    private static class Dir {
+        private ObjectId id;
+        private TreeMap<String, Dir> dirs;
+        private TreeMap<String, ObjectId> files;
+
+        Dir(ObjectId id) {
+            this.id = id;
+        }
+    }
+
+    /** A branch being imported, with its tip, null before its first commit,
+     * and its tree. EXPECTED is the value of the ref in the repository. */
+    private static class Branch {
+        private ObjectId tip;
+        private Dir tree = new Dir(null);
+        private String expected;
+    }
+
+    private FastImport(InputStream in, PrintStream progress) {
+        this.in = new BufferedInputStream(in, 64 * 1024);
+        this.progress = progress;
+    }
+
+    /** Imports the records of IN. The progress records are printed to
+     * PROGRESS as they are read.
+     * @return the numbers of commits and objects imported. */
+    public static String run(InputStream in, PrintStream progress) {
+        FastImport importer = new FastImport(in, progress);
+        try {
+            importer.readRecords();
+            importer.checkpoint();
+        } finally {
+            importer.batch.abort();     // no-op once finished
+        }
+        return String.format("Imported %d commits, %d objects.\n", importer
+            .commits, importer.objects);
+    }
+
+    private void readRecords() {
+        for (String line = readLine(); line != null; line = readLine()) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            } else if (line.equals("blob")) {
+                readBlob();
+            } else if (line.startsWith("commit ")) {
+                readCommit(line.substring("commit ".length()));
+            } else if (line.startsWith("reset ")) {
+                readReset(line.substring("reset ".length()));
+            } else if (line.equals("checkpoint")) {
+                checkpoint();
+            } else if (line.startsWith("progress ")) {
+                progress.println(line);
+            } else if (line.equals("done")) {
+                return;
+            } else {
+                error("Unsupported command: " + line);
+            }
+        }
+    }
+
+    private void readBlob() {
+        String mark = readMark();
+        ObjectId id = store(readData(), "blob");
+        if (mark != null) {
+            marks.put(mark, id);
+        }
+    }
+
+    private void readCommit(String ref) {
+        Branch branch = branch(ref);
+        String mark = readMark();
+        String line = readLine();
+        while (line != null && (line.startsWith("author ") || line
+            .startsWith("committer ") || line.startsWith("original-oid "))) {
+            line = readLine();
+        }
+        pushedBack = line;
+        String message = new String(readData(), StandardCharsets.UTF_8);
+        if (message.endsWith("\n")) {
+            message = message.substring(0, message.length() - 1);
+        }
+        List<ObjectId> parents = new ArrayList<>();
+        line = readLine();
+        if (line != null && line.startsWith("from ")) {
+            reset(branch, resolveCommit(line.substring("from ".length())));
+            line = readLine();
+        }
+        if (branch.tip != null) {
+            parents.add(branch.tip);
+        }
+        while (line != null && line.startsWith("merge ")) {
+            parents.add(resolveCommit(line.substring("merge ".length())));
+            line = readLine();
+        }
+        for (; line != null; line = readLine()) {
+            if (line.startsWith("M ")) {
+                String[] fields = line.split(" ", 4);
+                assertCondition(fields.length == 4, "Invalid M line: " + line);
+                put(branch.tree, fields[3], resolveBlob(fields[2]));
+            } else if (line.startsWith("D ")) {
+                delete(branch.tree, line.substring("D ".length()).split("/"),
+                    0);
+            } else if (line.equals("deleteall")) {
+                branch.tree = new Dir(null);
+            } else {
+                break;
+            }
+        }
+        pushedBack = line;
+        ObjectId tree = writeTree(branch.tree);
+        branch.tip = store(Data.formatCommit(tree, message, parents.toArray(
+            new ObjectId[0])), "commit");
+        commits += 1;
+        if (mark != null) {
+            marks.put(mark, branch.tip);
+        }
+    }
+
+    private void readReset(String ref) {
+        Branch branch = branch(ref);
+        String line = readLine();
+        if (line != null && line.startsWith("from ")) {
+            reset(branch, resolveCommit(line.substring("from ".length())));
+        } else {
+            pushedBack = line;
+            reset(branch, null);
+        }
+    }
+
+    /** @return the branch REF, which starts from the commit of the ref in
+     * the repository, if any. */
+    private Branch branch(String ref) {
+        assertCondition(ref.startsWith("refs/"), "Invalid ref: " + ref);
+        Branch branch = branches.get(ref);
+        if (branch == null) {
+            branch = new Branch();
+            branch.expected = Data.refs().read(ref);
+            if (branch.expected != null) {
+                reset(branch, Data.getRef(ref));
+            }
+            branches.put(ref, branch);
+        }
+        return branch;
+    }
+
+    /** Moves BRANCH to the commit TIP, or to no commit if TIP is null. */
+    private void reset(Branch branch, ObjectId tip) {
+        if (tip == null || !tip.equals(branch.tip)) {
+            branch.tip = tip;
+            branch.tree = new Dir(tip == null ? null : readCommit(tip).tree);
+        }
+    }
+
+    /** Completes the batch, then updates the refs of the branches. */
+    private void checkpoint() {
+        objects += batch.size();
+        batch.finish();
+        batch = Data.store().batch();
+        branches.forEach((ref, branch) -> {
+            String tip = branch.tip == null ? null : branch.tip.toString();
+            if (tip != null && !tip.equals(branch.expected)) {
+                Data.refs().compareAndSwap(ref, branch.expected, tip);
+                branch.expected = tip;
+            }
+        });
+    }
+
+    /** @return the mark of a "mark :<name>" line, or null if there is
+     * none. */
+    private String readMark() {
+        String line = readLine();
+        if (line != null && line.startsWith("mark :")) {
+            return line.substring("mark :".length());
+        }
+        pushedBack = line;
+        return null;
+    }
+
+    /** @return the content of a "data <size>" record. The line break after
+     * the content is optional. */
+    private byte[] readData() {
+        String line = readLine();
+        assertCondition(line != null && line.startsWith("data "), "Expected "
+            + "data but got: " + line);
+        try {
+            int size = Integer.parseInt(line.substring("data ".length()));
+            byte[] data = in.readNBytes(size);
+            assertCondition(data.length == size, "Unexpected end of stream");
+            in.mark(1);
+            if (in.read() != '\n') {
+                in.reset();
+            }
+            return data;
+        } catch (NumberFormatException e) {
+            error("Invalid data line: " + line);
+            return null;
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** @return the next line without its line break, or null at the end of
+     * the stream. */
+    private String readLine() {
+        if (pushedBack != null) {
+            String line = pushedBack;
+            pushedBack = null;
+            return line;
+        }
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            while (b >= 0 && b != '\n') {
+                line.write(b);
+                b = in.read();
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private ObjectId resolveBlob(String name) {
+        if (name.startsWith(":")) {
+            ObjectId id = marks.get(name.substring(1));
+            assertCondition(id != null, "Unknown mark: " + name);
+            return id;
+        }
+        assertCondition(ObjectId.isHex(name), "Invalid blob: " + name);
+        return ObjectId.fromHex(name);
+    }
+
+    private ObjectId resolveCommit(String name) {
+        if (name.startsWith(":") || ObjectId.isHex(name)) {
+            return resolveBlob(name);
+        }
+        Branch branch = branches.get(name);
+        if (branch != null && branch.tip != null) {
+            return branch.tip;
+        }
+        assertCondition(Data.refs().read(name) != null, "Invalid commit: "
+            + name);
+        return Data.getRef(name);
+    }
+
+    /** Adds the object of CONTENT and TYPE to the batch, unless it is
+     * already in the batch or in the store.
+     * @return the id of the object. */
+    private ObjectId store(byte[] content, String type) {
+        byte[] header = Data.typeHeader(type);
+        ObjectId id = ObjectId.hash(header, content);
+        if (!batch.contains(id) && !Data.hasObject(id)) {
+            batch.add(id, header, content);
+        }
+        return id;
+    }
+
+    /** @return the content of the object ID, from the batch being written
+     * or from the store. */
+    private byte[] read(ObjectId id, String type) {
+        try (ObjectStore.Source source = batch.open(id)) {
+            return source != null ? Data.readObject(source, id, type) : Data
+                .readObject(id, type);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    private Data.Commit readCommit(ObjectId id) {
+        return Data.parseCommit(read(id, "commit"));
+    }
+
+    /** Reads the entries of DIR if they are not read yet. */
+    private void load(Dir dir) {
+        if (dir.files != null) {
+            return;
+        }
+        dir.dirs = new TreeMap<>();
+        dir.files = new TreeMap<>();
+        if (dir.id != null) {
+            Data.forEachTreeEntry(read(dir.id, "tree"), (type, id, name) -> {
+                if ("tree".equals(type)) {
+                    dir.dirs.put(name, new Dir(id));
+                } else {
+                    dir.files.put(name, id);
+                }
+            });
+        }
+    }
+
+    /** Sets the file PATH of the tree ROOT to BLOB. A file or a directory
+     * in the way is replaced. */
+    private void put(Dir root, String path, ObjectId blob) {
+        String[] names = path.split("/");
+        Dir dir = root;
+        for (int i = 0; i < names.length - 1; i += 1) {
+            load(dir);
+            dir.id = null;
+            Dir child = dir.dirs.get(names[i]);
+            if (child == null) {
+                dir.files.remove(names[i]);
+                child = new Dir(null);
+                dir.dirs.put(names[i], child);
+            }
+            dir = child;
+        }
+        load(dir);
+        dir.id = null;
+        dir.dirs.remove(names[names.length - 1]);
+        dir.files.put(names[names.length - 1], blob);
+    }
+
+    /** Deletes the file or the directory NAMES[I..] of DIR, and the
+     * directories it leaves empty.
+     * @return true if something was deleted. */
+    private boolean delete(Dir dir, String[] names, int i) {
+        load(dir);
+        boolean deleted;
+        if (i == names.length - 1) {
+            deleted = dir.files.remove(names[i]) != null | dir.dirs.remove(
+                names[i]) != null;
+        } else {
+            Dir child = dir.dirs.get(names[i]);
+            deleted = child != null && delete(child, names, i + 1);
+            if (deleted && child.files.isEmpty() && child.dirs.isEmpty()) {
+                dir.dirs.remove(names[i]);
+            }
+        }
+        if (deleted) {
+            dir.id = null;
+        }
+        return deleted;
+    }
+
+    /** Writes the directories of DIR which changed, sorted like the trees
+     * of TreeBuilder.
+     * @return the id of the tree of DIR. */
+    private ObjectId writeTree(Dir dir) {
+        if (dir.id != null) {
+            return dir.id;
+        }
+        load(dir);      // an empty tree, e.g. after deleteall, has no maps
+        Map<byte[], byte[]> entries = new TreeMap<>(Arrays::compareUnsigned);
+        dir.dirs.forEach((name, child) -> entries.put(TreeFormat.sortKey(true,
+            name), TreeFormat.entry(true, writeTree(child), name)));
+        dir.files.forEach((name, id) -> entries.put(TreeFormat.sortKey(false,
+            name), TreeFormat.entry(false, id, name)));
+        dir.id = store(TreeFormat.join(entries.values()), "tree");
+        return dir.id;
+    }
+}
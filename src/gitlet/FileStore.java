@@ -0,0 +1,492 @@
+/* This class stores all the objects in one append-only file, for the
+ * filesystems where creating, renaming and listing many small files is
+ * slow, e.g. overlay and network mounts. Writing an object appends one
+ * record to "objects/store.db" instead of creating, fsyncing and renaming a
+ * file, and the records appended by a command are fsynced together through
+ * Transaction.syncFile.
+ * Store layout: the magic "GSTO" and a random generation, then the records
+ *     <raw id> <time> <length> <raw object of length bytes>
+ * where the time, in milliseconds, is the last time the object was
+ * written, which gc compares with its grace period. It is the only field
+ * ever changed in place.
+ * The objects are found by "objects/store.idx", a hash table of the records
+ * of the store up to a given offset: open addressing with linear probing on
+ * the first bytes of the ids, which are uniform, memory-mapped, so opening
+ * the store costs nothing whatever its size. The records appended after the
+ * offset are read when the store is opened, and the index is rewritten once
+ * they are too many. The index is only a cache: an index of another
+ * generation of the store, or which can not be read, is ignored and the
+ * whole store is read again.
+ * The appends of the processes, and the updates of the times, are
+ * serialized by a lock on "objects/store.lock". A record cut by a crash is
+ * ignored and overwritten by the next append. gc compacts the store into a
+ * new file with a new generation, which the other commands notice before
+ * their next write, or when they do not find an object. Each command opens
+ * the store once. */
+
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+public class FileStore implements ObjectStore {
+    private static final byte[] STORE_MAGIC = "GSTO".getBytes(
+        StandardCharsets.US_ASCII);
+    private static final byte[] INDEX_MAGIC = "GSIX".getBytes(
+        StandardCharsets.US_ASCII);
+    private static final int STORE_HEADER = 12;
+    /* the id, the time and the length of a record */
+    private static final int RECORD_HEADER = ObjectId.LENGTH + 12;
+    /* the magic, the generation, the offset covered, the capacity and the
+     * number of records of the index */
+    private static final int INDEX_HEADER = 28;
+    /* the id and the offset of the record of a slot, 0 if it is empty */
+    private static final int SLOT = ObjectId.LENGTH + 8;
+    /* the records out of the index which make it be rewritten */
+    private static final int INDEX_SLACK = 4096;
+    private static final long MAX_BACKOFF_MS = 64;
+
+    private final File storeFile;
+    private final File indexFile;
+    private final File lockFile;
+    private FileChannel lockChannel;
+    private FileChannel store;
+    /* the channels of the store files replaced by a gc, which the sources
+     * already opened may still read, closed with the store */
+    private final List<FileChannel> retired = new ArrayList<>();
+    private Object fileKey;
+    private long generation;
+    /* the index, null if there is none, and the records after it */
+    private ByteBuffer index;
+    private int capacity;
+    private int indexed;
+    private long covered;
+    private final Map<ObjectId, Long> tail = new HashMap<>();
+    /* the end of the records read */
+    private long end;
+
+    private FileStore(File dir) {
+        storeFile = join(dir, "store.db");
+        indexFile = join(dir, "store.idx");
+        lockFile = join(dir, "store.lock");
+        try {
+            reopen();
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** @return the store of the objects directory DIR. */
+    static FileStore open(File dir) {
+        return new FileStore(dir);
+    }
+
+    /** Opens the store file, creating it if needed, and its index. */
+    private void reopen() throws IOException {
+        if (store != null) {
+            retired.add(store);
+        }
+        store = FileChannel.open(storeFile.toPath(), StandardOpenOption
+            .CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (store.size() < STORE_HEADER) {
+            FileLock lock = lock();
+            try {
+                if (store.size() < STORE_HEADER) {
+                    store.truncate(0);
+                    writeFully(store, header(new SecureRandom().nextLong()),
+                        0);
+                    Transaction.syncFile(store);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+        fileKey = fileKey();
+        ByteBuffer header = readFully(0, STORE_HEADER);
+        assertCondition(Arrays.equals(header.array(), 0, STORE_MAGIC.length,
+            STORE_MAGIC, 0, STORE_MAGIC.length), "Invalid object store: "
+            + storeFile);
+        generation = header.getLong(STORE_MAGIC.length);
+        readIndex();
+        tail.clear();
+        end = covered;
+        scan();
+    }
+
+    private static byte[] header(long generation) {
+        return ByteBuffer.allocate(STORE_HEADER).put(STORE_MAGIC).putLong(
+            generation).array();
+    }
+
+    /** Maps the index if it is of this generation of the store. */
+    private void readIndex() throws IOException {
+        index = null;
+        capacity = 0;
+        indexed = 0;
+        covered = STORE_HEADER;
+        if (!indexFile.isFile()) {
+            return;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(),
+            StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                .size());
+        }
+        if (buffer.capacity() < INDEX_HEADER) {
+            return;
+        }
+        byte[] magic = new byte[INDEX_MAGIC.length];
+        buffer.get(0, magic);
+        long offset = buffer.getLong(12);
+        int slots = buffer.getInt(20);
+        if (!Arrays.equals(magic, INDEX_MAGIC) || buffer.getLong(4)
+            != generation || offset > store.size() || buffer.capacity()
+            != INDEX_HEADER + (long) slots * SLOT) {
+            return;
+        }
+        index = buffer;
+        capacity = slots;
+        indexed = buffer.getInt(24);
+        covered = offset;
+    }
+
+    /** Reads the records appended after END, up to the first one which is
+     * incomplete. */
+    private void scan() throws IOException {
+        long size = store.size();
+        while (end + RECORD_HEADER <= size) {
+            ByteBuffer header = readFully(end, RECORD_HEADER);
+            int length = header.getInt(RECORD_HEADER - 4);
+            long next = end + RECORD_HEADER + length;
+            if (length < 0 || next > size) {
+                break;
+            }
+            tail.put(ObjectId.fromBytes(header.array(), 0), end);
+            end = next;
+        }
+    }
+
+    /** @return the offset of the record of ID, or -1 if there is none. */
+    private synchronized long find(ObjectId id) throws IOException {
+        long offset = lookup(id);
+        if (offset < 0 && store.size() > end) {
+            scan();     // appended by another process
+            offset = lookup(id);
+        }
+        if (offset < 0 && !Objects.equals(fileKey, fileKey())) {
+            reopen();   // compacted by gc, maybe with objects appended since
+            offset = lookup(id);
+        }
+        return offset;
+    }
+
+    private long lookup(ObjectId id) {
+        Long offset = tail.get(id);
+        if (offset != null) {
+            return offset;
+        }
+        if (index == null) {
+            return -1;
+        }
+        byte[] bytes = id.toBytes();
+        ByteBuffer key = ByteBuffer.wrap(bytes);
+        for (int slot = id.hashCode() & (capacity - 1);; slot = (slot + 1)
+            & (capacity - 1)) {
+            int position = INDEX_HEADER + slot * SLOT;
+            long found = index.getLong(position + ObjectId.LENGTH);
+            if (found == 0) {
+                return -1;
+            } else if (index.getLong(position) == key.getLong(0) && index
+                .getLong(position + 8) == key.getLong(8) && index.getInt(
+                position + 16) == key.getInt(16)) {
+                return found;
+            }
+        }
+    }
+
+    @Override
+    public boolean has(ObjectId id) {
+        try {
+            return find(id) >= 0;
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** Appends the object ID made of PARTS, or refreshes the time of its
+     * record if it exists. Both are done under the lock, in the current
+     * store file, so a compaction by gc can lose neither. */
+    @Override
+    public synchronized void write(ObjectId id, byte[]... parts) {
+        try {
+            FileLock lock = lock();
+            try {
+                if (!Objects.equals(fileKey, fileKey())) {
+                    reopen();       // compacted by gc
+                }
+                scan();
+                long offset = lookup(id);
+                if (offset >= 0) {
+                    // an unreachable object is used again, gc must not
+                    // prune it
+                    writeFully(store, ByteBuffer.allocate(8).putLong(System
+                        .currentTimeMillis()).array(), offset + ObjectId
+                        .LENGTH);
+                    return;
+                }
+                append(id, parts);
+                if (tail.size() > Math.max(INDEX_SLACK, indexed / 4)) {
+                    writeIndex();
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** Appends the record of the object ID made of PARTS at the end of the
+     * records, over a record cut by a crash. */
+    private void append(ObjectId id, byte[]... parts) throws IOException {
+        if (store.size() > end) {
+            store.truncate(end);
+        }
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+        record.put(id.toBytes()).putLong(System.currentTimeMillis()).putInt(
+            length);
+        for (byte[] part : parts) {
+            record.put(part);
+        }
+        writeFully(store, record.array(), end);
+        tail.put(id, end);
+        end += record.capacity();
+        Transaction.syncFile(store);
+    }
+
+    /** Rewrites the index with all the records read. */
+    private void writeIndex() throws IOException {
+        Map<ObjectId, Long> records = new HashMap<>(tail);
+        forEachIndexed((id, offset) -> records.put(id, offset));
+        writeIndex(indexFile, generation, end, records);
+        readIndex();
+        tail.clear();
+        scan();
+    }
+
+    /** Writes to FILE the index of the RECORDS of the store of GENERATION
+     * which ends at END. */
+    private static void writeIndex(File file, long generation, long end,
+        Map<ObjectId, Long> records) {
+        int slots = Integer.highestOneBit(Math.max(16, 2 * records.size()))
+            * 2;
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER + slots * SLOT);
+        buffer.put(INDEX_MAGIC).putLong(generation).putLong(end).putInt(
+            slots).putInt(records.size());
+        records.forEach((id, offset) -> {
+            int slot = id.hashCode() & (slots - 1);
+            while (buffer.getLong(INDEX_HEADER + slot * SLOT + ObjectId
+                .LENGTH) != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            int position = INDEX_HEADER + slot * SLOT;
+            id.copyTo(buffer.array(), position);
+            buffer.putLong(position + ObjectId.LENGTH, offset);
+        });
+        File tmp = Transaction.tmpFile(file);
+        writeContents(tmp, buffer.array());
+        Transaction.install(tmp, file);
+    }
+
+    private interface RecordAction {
+        void accept(ObjectId id, long offset);
+    }
+
+    private void forEachIndexed(RecordAction action) {
+        for (int slot = 0; slot < capacity; slot += 1) {
+            int position = INDEX_HEADER + slot * SLOT;
+            long offset = index.getLong(position + ObjectId.LENGTH);
+            if (offset != 0) {
+                byte[] bytes = new byte[ObjectId.LENGTH];
+                index.get(position, bytes);
+                action.accept(ObjectId.fromBytes(bytes, 0), offset);
+            }
+        }
+    }
+
+    @Override
+    public Source open(ObjectId id) throws IOException {
+        long offset = find(id);
+        if (offset < 0) {
+            throw new IOException("Object " + id + " does not exist.");
+        }
+        FileChannel channel;
+        synchronized (this) {
+            channel = store;
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        channel.read(length, offset + RECORD_HEADER - 4);
+        return new FileSource(channel, offset + RECORD_HEADER, length.getInt(
+            0), false);
+    }
+
+    @Override
+    public synchronized void forEach(Consumer<ObjectId> action) {
+        try {
+            scan();
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+        forEachIndexed((id, offset) -> action.accept(id));
+        tail.keySet().forEach(action);
+    }
+
+    /** Compacts the store: the records which are kept are copied into a
+     * new store of a new generation, with its index, which replace the old
+     * ones. Nothing is written if no record is dropped. */
+    @Override
+    public synchronized void prune(Predicate<ObjectId> drop, long expire) {
+        try {
+            FileLock lock = lock();
+            try {
+                if (!Objects.equals(fileKey, fileKey())) {
+                    reopen();
+                }
+                scan();
+                Map<ObjectId, Long> kept = new HashMap<>();
+                long newGeneration = new SecureRandom().nextLong();
+                File tmp = Transaction.tmpFile(storeFile);
+                boolean dropped = false;
+                try (FileChannel out = FileChannel.open(tmp.toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    writeFully(out, header(newGeneration), 0);
+                    out.position(STORE_HEADER);
+                    long position = STORE_HEADER;
+                    for (long offset = STORE_HEADER; offset < end;) {
+                        ByteBuffer header = readFully(offset, RECORD_HEADER);
+                        ObjectId id = ObjectId.fromBytes(header.array(), 0);
+                        long length = RECORD_HEADER + header.getInt(
+                            RECORD_HEADER - 4);
+                        if (header.getLong(ObjectId.LENGTH) < expire
+                            && drop.test(id)) {
+                            dropped = true;
+                        } else {
+                            for (long n = 0; n < length;) {
+                                n += store.transferTo(offset + n, length - n,
+                                    out);
+                            }
+                            kept.put(id, position);
+                            position += length;
+                        }
+                        offset += length;
+                    }
+                }
+                if (!dropped) {
+                    deleteFile(tmp);
+                    return;
+                }
+                Transaction.install(tmp, storeFile);
+                writeIndex(indexFile, newGeneration, Files.size(storeFile
+                    .toPath()), kept);
+                reopen();
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** @return the lock of the appends, held by one store at a time. The
+     * threads of a command are serialized by the monitor of its store, and
+     * the stores of the other commands of the process, which the file lock
+     * does not wait for, are polled with an exponential backoff. */
+    private FileLock lock() throws IOException {
+        if (lockChannel == null) {
+            lockChannel = FileChannel.open(lockFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        long backoff = 1;
+        while (true) {
+            try {
+                return lockChannel.lock();
+            } catch (OverlappingFileLockException e) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for "
+                        + lockFile);
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            for (FileChannel channel : retired) {
+                channel.close();
+            }
+            retired.clear();
+            store.close();
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** @return the identity of the store file on disk, which changes when
+     * gc replaces it, or null if the filesystem has none. */
+    private Object fileKey() throws IOException {
+        return Files.readAttributes(storeFile.toPath(), BasicFileAttributes
+            .class).fileKey();
+    }
+
+    private ByteBuffer readFully(long position, int length)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (store.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated object store: "
+                    + storeFile);
+            }
+        }
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long
+        position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/* This class checks the integrity of the object store. Every object is read
+ * once, on a pool of "fsck.threads" threads, see ObjectScan: its
+ * content is streamed through a SHA-1 digest and compared with its name, its
+ * header must be a known type followed by the NULL byte, and the trees,
+ * commits and chunk manifests are parsed while they are read. Each reference
+ * found is recorded in one byte per object, with the type the object is
+ * expected to have. The objects are read through the ObjectStore, e.g. a
+ * packed object from its range of the pack.
+ * A final pass over these bytes reports:
+ * - error: the corrupt objects and the objects of an unexpected type,
+ * - missing: the objects which are referenced but not in the store,
+ * - dangling: the objects which nothing refers to, neither another object
+ *   nor a ref, the HEAD or the index. */
+
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static gitlet.ObjectScan.*;
+
+public class Fsck {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /* The bits of the references to an object. */
+    private static final byte REFERENCED = 1;
+    private static final byte AS_BLOB = 2;
+    private static final byte AS_TREE = 4;
+    private static final byte AS_COMMIT = 8;
+    /* Updates the references of an object atomically. */
+    private static final VarHandle REFS = MethodHandles
+        .arrayElementVarHandle(byte[].class);
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal
+        .withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
+    private final BitmapIndex objects;
+    private final byte[] types;
+    private final byte[] refs;
+    private final Map<ObjectId, String> errors = new ConcurrentHashMap<>();
+    /* the missing objects and the type they are expected to have */
+    private final Map<ObjectId, String> missing = new ConcurrentHashMap<>();
+
+    private Fsck(BitmapIndex objects) {
+        this.objects = objects;
+        this.types = new byte[objects.size()];
+        this.refs = new byte[objects.size()];
+    }
+
+    /** Checks the object store and gives the problems found to REPORT, a
+     * line each, sorted by kind and id.
+     * @return true if no object is corrupt or missing. */
+    public static boolean check(Consumer<String> report) {
+        Fsck fsck = new Fsck(BitmapIndex.ofStore());
+        fsck.checkObjects();
+        fsck.checkRoots();
+        fsck.report().forEach(report);
+        return fsck.errors.isEmpty() && fsck.missing.isEmpty();
+    }
+
+    /** Reads all the objects in parallel. */
+    private void checkObjects() {
+        ObjectScan.forEach("fsck.threads", objects.size(), this::checkObject);
+    }
+
+    /** Rehashes the object I and records its type and references. */
+    private void checkObject(int i) {
+        ObjectId id = objects.idAt(i);
+        ByteBuffer buffer = BUFFER.get();
+        MessageDigest digest = ObjectId.digest();
+        ByteArrayOutputStream content = null;
+        byte type = 0;
+        try (ObjectStore.Source source = Data.store().open(id)) {
+            long position = 0;
+            long end = source.size();
+            boolean eof = false;
+            while (!eof) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end
+                    - position));
+                int n = 0;
+                while (buffer.hasRemaining() && n >= 0) {
+                    n = source.read(buffer, position + buffer.position());
+                }
+                position += buffer.position();
+                eof = n < 0 || position >= end;
+                buffer.flip();
+                int skip = 0;
+                if (type == 0) {        // the header starts the first buffer
+                    type = readType(buffer.array(), buffer.limit());
+                    if (type == INVALID) {
+                        break;
+                    }
+                    skip = headerLength(buffer.array(), buffer.limit());
+                    if (type != BLOB) {     // parsed below
+                        content = new ByteArrayOutputStream();
+                    }
+                }
+                if (content != null) {
+                    content.write(buffer.array(), skip, buffer.limit() - skip);
+                }
+                digest.update(buffer);
+            }
+        } catch (IOException e) {
+            types[i] = INVALID;
+            errors.put(id, e.getMessage());
+            return;
+        }
+        if (type == INVALID) {
+            types[i] = INVALID;
+            errors.put(id, "invalid header");
+            return;
+        }
+        types[i] = type;
+        if (!ObjectId.fromBytes(digest.digest(), 0).equals(id)) {
+            types[i] = INVALID;
+            errors.put(id, "hash mismatch");
+            return;
+        }
+        if (content != null) {
+            try {
+                parse(type, content.toByteArray());
+            } catch (RuntimeException e) {
+                types[i] = INVALID;
+                errors.put(id, "invalid " + TYPE_NAMES[type]);
+            }
+        }
+    }
+
+    /** Records the references in the CONTENT of an object of type TYPE. */
+    private void parse(byte type, byte[] content) {
+        switch (type) {
+            case TREE:
+                for (TreeFormat.Cursor c = new TreeFormat.Cursor(content); c
+                    .next();) {
+                    reference(c.id(), c.isTree() ? AS_TREE : AS_BLOB);
+                }
+                break;
+            case COMMIT:
+                Data.Commit commit = Data.parseCommit(content);
+                reference(commit.tree, AS_TREE);
+                for (ObjectId parent : commit.parents) {
+                    reference(parent, AS_COMMIT);
+                }
+                break;
+            default:
+                Data.forEachChunk(content, chunk -> reference(chunk,
+                    AS_BLOB));
+        }
+    }
+
+    /** Records a reference to ID, expected to be of the kind AS. */
+    private void reference(ObjectId id, byte as) {
+        int i = objects.indexOf(id);
+        if (i < 0) {
+            missing.putIfAbsent(id, as == AS_TREE ? "tree" : as == AS_COMMIT
+                ? "commit" : "blob");
+            return;
+        }
+        REFS.getAndBitwiseOr(refs, i, (byte) (REFERENCED | as));
+    }
+
+    /** Records the references of the refs and of the HEADs and the indexes
+     * of the worktrees. */
+    private void checkRoots() {
+        List<Worktree> worktrees = Worktree.list();
+        for (Worktree worktree : worktrees) {
+            reference(worktree.headCommit(), AS_COMMIT);
+        }
+        // the branches, local or fetched, point to commits
+        Data.refs().forEach("refs/", name -> reference(Data.getRef("refs/"
+            + name), name.startsWith("tags/") ? REFERENCED : AS_COMMIT));
+        for (Worktree worktree : worktrees) {
+            worktree.index().forEach((path, id) -> reference(id, AS_BLOB));
+        }
+    }
+
+    /** @return the lines of the report. */
+    private List<String> report() {
+        List<String> dangling = new ArrayList<>();
+        for (int i = 0; i < objects.size(); i += 1) {
+            ObjectId id = objects.idAt(i);
+            byte type = types[i];
+            if (type == INVALID) {
+                continue;
+            }
+            String expected = checkType(type, refs[i]);
+            if (expected != null) {
+                errors.put(id, String.format("is a %s, referenced as a %s",
+                    TYPE_NAMES[type], expected));
+            } else if (refs[i] == 0) {
+                dangling.add(String.format("dangling %s %s", TYPE_NAMES[type],
+                    id));
+            }
+        }
+        List<String> report = new ArrayList<>();
+        new TreeMap<>(errors).forEach((id, message) -> report.add(String
+            .format("error: %s: %s", id, message)));
+        List<String> missingLines = new ArrayList<>();
+        missing.forEach((id, type) -> missingLines.add(String.format(
+            "missing %s %s", type, id)));
+        Collections.sort(missingLines);
+        report.addAll(missingLines);
+        report.addAll(dangling);
+        return report;
+    }
+
+    /** @return the kind an object of type TYPE is referenced as, according
+     * to REF, without being of that kind, or null if it is as expected. */
+    private static String checkType(byte type, byte ref) {
+        if ((ref & AS_BLOB) != 0 && type != BLOB && type != CHUNKED) {
+            return "blob";
+        } else if ((ref & AS_TREE) != 0 && type != TREE) {
+            return "tree";
+        } else if ((ref & AS_COMMIT) != 0 && type != COMMIT) {
+            return "commit";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,18 @@
+/* This exception is thrown by the commands which fail, e.g. on a bad
+ * operand or a conflict with the working directory. Its message is the one
+ * the command line prints before exiting with status 1. The I/O errors are
+ * thrown as a GitletIOException, which keeps the IOException as its cause. */
+
+package gitlet;
+
+public class GitletException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public GitletException(String message) {
+        super(message);
+    }
+
+    public GitletException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,19 @@
+/* This exception is thrown by the commands which fail on an I/O error, e.g.
+ * a full disk or a file they may not read. Its message is the one of the
+ * IOException, which is kept as its cause. */
+
+package gitlet;
+
+import java.io.IOException;
+
+public class GitletIOException extends GitletException {
+    private static final long serialVersionUID = 1L;
+
+    public GitletIOException(IOException cause) {
+        this(cause.getMessage(), cause);
+    }
+
+    public GitletIOException(String message, IOException cause) {
+        super(message, cause);
+    }
+}
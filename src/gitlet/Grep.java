@@ -0,0 +1,92 @@
+/* This class searches the files of a commit for a regular expression,
+ * reading the blobs from the store instead of a checkout. The tree is walked
+ * first, and each distinct blob is then searched once, however many paths
+ * have it, as a task of a work-stealing pool which keeps all the cores busy.
+ * A blob with a NULL byte among its first BINARY_CHECK bytes is binary and
+ * is skipped, as git does.
+ * The matches are printed in the order of the paths, as "path:line". The
+ * results of a path are printed as soon as its blob is searched, while the
+ * pool goes on with the next blobs. */
+
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+public class Grep {
+    private static final int BINARY_CHECK = 8000;
+
+    /** Prints the lines of the files of COMMIT matching PATTERN to OUT.
+     * @return the number of lines printed. */
+    public static int search(Pattern pattern, ObjectId commit, PrintStream
+        out) {
+        List<String> paths = new ArrayList<>();
+        List<ObjectId> blobs = new ArrayList<>();
+        collect(Data.getCommitTree(commit), "", paths, blobs);
+        ExecutorService pool = Executors.newWorkStealingPool();
+        Map<ObjectId, CompletableFuture<List<String>>> results =
+            new HashMap<>();
+        try {
+            for (ObjectId blob : blobs) {
+                results.computeIfAbsent(blob, id -> CompletableFuture
+                    .supplyAsync(Context.wrap(() -> search(pattern, id)),
+                    pool));
+            }
+            int count = 0;
+            for (int i = 0; i < paths.size(); i += 1) {
+                for (String line : results.get(blobs.get(i)).join()) {
+                    out.println(paths.get(i) + ":" + line);
+                    count += 1;
+                }
+            }
+            return count;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Adds the files of the tree ID, whose path is PREFIX, to PATHS and
+     * their blobs to BLOBS, in the order of the tree. */
+    private static void collect(ObjectId id, String prefix, List<String>
+        paths, List<ObjectId> blobs) {
+        Data.forEachTreeEntry(id, (type, oid, name) -> {
+            if ("tree".equals(type)) {
+                collect(oid, prefix + name + "/", paths, blobs);
+            } else {
+                paths.add(prefix + name);
+                blobs.add(oid);
+            }
+        });
+    }
+
+    /** @return the lines of the blob ID which match PATTERN, none if the
+     * blob is binary. */
+    private static List<String> search(Pattern pattern, ObjectId id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Data.copyBlob(id, Channels.newChannel(out));
+        byte[] content = out.toByteArray();
+        List<String> matches = new ArrayList<>();
+        for (int i = 0; i < Math.min(content.length, BINARY_CHECK); i += 1) {
+            if (content[i] == 0) {
+                return matches;
+            }
+        }
+        String text = new String(content, StandardCharsets.UTF_8);
+        for (String line : text.split("\n")) {
+            if (pattern.matcher(line).find()) {
+                matches.add(line);
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,163 @@
+/* This class implements the lock-file protocol used to replace the files of
+ * the .gitlet directory, e.g. the index, HEAD and the refs. The new content
+ * is written to "<file>.lock", which is created exclusively, flushed to disk
+ * according to the durability level and then atomically renamed over the
+ * target. A crash therefore leaves either the old or the new file, never a
+ * truncated one.
+ * The lock file is also the mutex between concurrent gitlet processes: a
+ * writer which finds the lock held backs off exponentially and retries until
+ * "core.lockTimeout" milliseconds have passed. Readers never take locks, the
+ * atomic rename guarantees that they see a complete file. */
+
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static gitlet.Utils.*;
+
+public class LockFile {
+    public static final String LOCK_SUFFIX = ".lock";
+    private static final long DEFAULT_TIMEOUT_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 64;
+    /* The locks held by this process, released if the process exits. */
+    private static final Set<LockFile> HELD = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (LockFile lockFile : HELD) {
+                lockFile.rollback();
+            }
+        }));
+    }
+
+    private final File target;
+    private final File lock;
+    private FileChannel channel;
+
+    public LockFile(File target) {
+        this.target = target;
+        this.lock = new File(target.getPath() + LOCK_SUFFIX);
+    }
+
+    /** Replaces the content of TARGET atomically. */
+    public static void write(File target, byte[] content) {
+        LockFile lockFile = new LockFile(target);
+        lockFile.lock();
+        try {
+            lockFile.write(content);
+            lockFile.commit();
+        } finally {
+            lockFile.rollback();    // no-op if committed
+        }
+    }
+
+    public static void write(File target, String content) {
+        write(target, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Creates the lock file exclusively. If another process holds the
+     * lock, retries with a randomized exponential backoff and fails once the
+     * lock timeout has passed. */
+    public void lock() {
+        long timeout = Config.getLong("core.lockTimeout", DEFAULT_TIMEOUT_MS);
+        long deadline = System.currentTimeMillis() + timeout;
+        long backoff = 1;
+        target.getParentFile().mkdirs();
+        while (!tryLock()) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                error(String.format("Unable to create '%s': File exists.",
+                    lock.getPath()));
+            }
+            long delay = Math.min(backoff + ThreadLocalRandom.current()
+                .nextLong(backoff), deadline - now);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error("Interrupted while waiting for " + lock.getPath());
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    /** Creates the lock file exclusively, without waiting.
+     * @return true if the lock file was created by this call, false if
+     * another process holds the lock. */
+    public boolean tryLock() {
+        try {
+            channel = FileChannel.open(lock.toPath(), StandardOpenOption
+                .CREATE_NEW, StandardOpenOption.WRITE);
+            HELD.add(this);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    public void write(byte[] content) {
+        assert channel != null : "Lock not held: " + lock.getPath();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            rollback();
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** Flushes the lock file and renames it over the target. The objects
+     * written by this command are made durable first, so the new content
+     * never refers to an object which may be lost. The lock is released
+     * if the commit fails. */
+    public void commit() {
+        assert channel != null : "Lock not held: " + lock.getPath();
+        try {
+            Transaction.flushObjects();
+            if (Transaction.durability() != Transaction.Durability.NONE) {
+                channel.force(true);
+            }
+            channel.close();
+            channel = null;
+            Files.move(lock.toPath(), target.toPath(), StandardCopyOption
+                .ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            HELD.remove(this);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        } finally {
+            rollback();     // no-op if committed
+        }
+        Transaction.syncDirectory(target.getParentFile());
+    }
+
+    /** Releases the lock without touching the target. */
+    public void rollback() {
+        if (!HELD.remove(this)) {
+            return;
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            // the lock file is removed anyway
+        }
+        deleteFile(lock);
+    }
+}
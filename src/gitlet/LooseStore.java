@@ -0,0 +1,155 @@
+/* This class is the default object store: each object is a file of the
+ * objects directory named by its id, written through Transaction, and the
+ * objects imported or kept by gc are in packs, see Pack. A loose object
+ * pending in the transaction of the command is read from its temporary
+ * file. The store of each command lists the packs itself. */
+
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+public class LooseStore implements ObjectStore {
+    private final File dir;
+    private final Pack.Directory packs;
+
+    /** The store of the objects directory DIR. */
+    LooseStore(File dir) {
+        this.dir = dir;
+        this.packs = new Pack.Directory(dir);
+    }
+
+    /** @return the packs of the store. */
+    Pack.Directory packs() {
+        return packs;
+    }
+
+    private File objectFile(ObjectId id) {
+        return join(dir, id.toString());
+    }
+
+    /** @return true if the object ID is loose, pending in this transaction
+     * or packed. */
+    @Override
+    public boolean has(ObjectId id) {
+        return Transaction.objectExists(objectFile(id)) || packs.find(id)
+            != null;
+    }
+
+    @Override
+    public void write(ObjectId id, byte[]... parts) {
+        if (!has(id)) {
+            Transaction.writeObject(objectFile(id), parts);
+        } else {
+            // an unreachable object is used again, gc must not prune it, nor
+            // the pack which holds it
+            locate(id).file.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /** @return where the object ID is stored: its loose file, or the
+     * temporary file if it is pending, or else its place in a pack. An
+     * object which is nowhere is given as its loose file, which fails to
+     * open. */
+    private Pack.Entry locate(ObjectId id) {
+        File objFile = Transaction.resolve(objectFile(id));
+        Pack.Entry entry = objFile.exists() ? null : packs.find(id);
+        return entry != null ? entry : Pack.Entry.loose(objFile);
+    }
+
+    @Override
+    public Source open(ObjectId id) throws IOException {
+        Pack.Entry entry = locate(id);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(entry.file.toPath(), StandardOpenOption
+                .READ);
+        } catch (NoSuchFileException e) {
+            // a pending object renamed meanwhile by another thread of the
+            // command, or a pack deleted by a gc
+            packs.reload();
+            entry = locate(id);
+            channel = FileChannel.open(entry.file.toPath(), StandardOpenOption
+                .READ);
+        }
+        return new FileSource(channel, entry.offset, entry.isLoose()
+            ? channel.size() : entry.length, true);
+    }
+
+    /** The temporary files of pending objects are skipped, and so are the
+     * loose objects which are also packed. */
+    @Override
+    public void forEach(Consumer<ObjectId> action) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir
+            .toPath())) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (ObjectId.isHex(name) && packs.find(ObjectId.fromHex(name))
+                    == null) {
+                    action.accept(ObjectId.fromHex(name));
+                }
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+        packs.forEachObject(action);
+    }
+
+    /** The loose objects are deleted, and the packs older than EXPIRE are
+     * rewritten without their objects to DROP. The temporary files are only
+     * deleted once older than Transaction.TMP_MIN_AGE too, even if EXPIRE is
+     * now, since they may be the pending objects of a running command. */
+    @Override
+    public void prune(Predicate<ObjectId> drop, long expire) {
+        long tmpExpire = Math.min(expire, System.currentTimeMillis()
+            - Transaction.TMP_MIN_AGE);
+        File[] files = dir.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.endsWith(Transaction.TMP_SUFFIX)) {
+                if (file.lastModified() < tmpExpire) {
+                    deleteFile(file);
+                }
+            } else if (file.lastModified() < expire && ObjectId.isHex(name)
+                && drop.test(ObjectId.fromHex(name))) {
+                deleteFile(file);
+            }
+        }
+        packs.prune(drop, expire);
+        File[] leftovers = join(dir, Pack.DIR_NAME).listFiles((d, name) ->
+            name.endsWith(Transaction.TMP_SUFFIX));
+        for (File file : leftovers == null ? new File[0] : leftovers) {
+            if (file.lastModified() < tmpExpire) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    /** @return a pack, which is only visible once finished. */
+    @Override
+    public Batch batch() {
+        return new Pack.Writer(dir);
+    }
+
+    /** A loose object copied into another loose store is linked. */
+    @Override
+    public void copyTo(ObjectStore to, ObjectId id) {
+        Pack.Entry entry = locate(id);
+        if (entry.isLoose() && to instanceof LooseStore) {
+            Transaction.copyObject(entry.file, ((LooseStore) to).objectFile(
+                id));
+        } else {
+            ObjectStore.super.copyTo(to, id);
+        }
+    }
+}
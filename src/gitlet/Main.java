@@ -1,10 +1,14 @@
-/* This class is the entry point of the program. 
+/* This class is the entry point of the program. It runs the commands
+ * through the API of Repository and prints their results.
  * This class implements the following command line arguments:
- * - init: Initializes the gitlet repository.
- *       Usage: java Main init
+ * - init: Initializes the gitlet repository. The objects are stored in
+ * loose files and packs by default, or in one file with "file".
+ *       Usage: java Main init [--object-store=loose|file]
  * - hash-object: Hashes a file and stores it in the gitlet repository.
  *       Usage: java Main hash-object <file>
- * - cat-file: Displays the contents of a git object.
+ * - cat-file: Displays the contents of a git object. The type is one of
+ * blob, tree, commit and chunked; a chunked blob is shown reassembled as a
+ * blob, and a tree as a line "<type> <id> <name>" per entry.
  *       Usage: java Main cat-file <type> <object>
  * - add: Stages a file to the gitlet repository.
  *       Usage: java Main add <file>
@@ -35,84 +39,256 @@
  *       Usage: java Main merge-base <branch/commit/tag> <branch/commit/tag>
  * - merge: Merges two branches or commits.
  *       Usage: java Main merge <branch>
+ * - pack-refs: Moves the loose refs into the packed-refs file.
+ *       Usage: java Main pack-refs
+ * - gc: Packs the refs and deletes the objects which are not reachable from
+ * the refs, the HEAD or the index and are older than "gc.pruneExpire"
+ * seconds (two weeks by default). Saves reachability bitmaps for the next
+ * run.
+ *       Usage: java Main gc
+ * - prune: Deletes all the unreachable objects, whatever their age.
+ *       Usage: java Main prune
+ * - fsck: Rehashes every object in parallel and checks the references of
+ * the trees and commits. Reports the corrupt, missing and dangling objects.
+ *       Usage: java Main fsck
+ * - stats: Measures the object store, scanning the objects in parallel: the
+ * number and the bytes of the objects by type, loose and packed, the
+ * largest blobs, the entries of the trees, the depth of the history, and
+ * the estimated savings of compressing, packing and pruning. count-objects
+ * is the same command.
+ *       Usage: java Main stats [--format=text|json]
+ * - remote add: Registers another repository, given by its path, as a remote.
+ *       Usage: java Main remote add <name> <path>
+ * - clone: Copies a repository into the current directory, which must not
+ * be a repository, registers it as the remote "origin" and checks out its
+ * current branch. Objects are hardlinked on the same filesystem.
+ *       Usage: java Main clone <path>
+ * - fetch: Copies the missing objects of a remote and updates the branches
+ * "<remote>/<branch>" and the tags.
+ *       Usage: java Main fetch <remote>
+ * - push: Copies the missing objects of a branch to a remote and
+ * fast-forwards the branch of the same name in the remote.
+ *       Usage: java Main push <remote> <branch>
+ * - sparse-checkout: Restricts the working directory to some directories,
+ * given relative to the repository root, with their subdirectories and the
+ * files of their parent directories. The other files stay in the index but
+ * are neither written nor scanned. Lists the directories, or goes back to
+ * the full working directory.
+ *       Usage: java Main sparse-checkout set <dir> ...
+ *              java Main sparse-checkout list
+ *              java Main sparse-checkout disable
+ * - worktree: Creates, lists or deletes the linked worktrees: working
+ * directories with their own HEAD and index, which share the objects and
+ * the refs. A branch can be checked out in only one worktree.
+ *       Usage: java Main worktree add <path> <branch>
+ *              java Main worktree list
+ *              java Main worktree remove <path>
+ * - blame: Shows, for each line of a file in the HEAD, the commit which last
+ * changed it. The result is cached for the next blames of the file.
+ *       Usage: java Main blame <file>
+ * - fast-import: Reads blob, commit, reset and checkpoint records, in a
+ * subset of the format of git fast-import, from the standard input. The
+ * objects are written to a pack, and the refs are updated at the end and at
+ * each checkpoint.
+ *       Usage: java Main fast-import < <stream>
+ * - archive: Writes the files of a commit to the standard output as a tar
+ * (the default) or a zip archive, without touching the working directory.
+ *       Usage: java Main archive <branch/commit/tag> [--format=tar|zip]
+ * - grep: Prints the lines of the files of a commit, the HEAD by default,
+ * which match a regular expression, as "path:line". Binary files are
+ * skipped.
+ *       Usage: java Main grep <pattern> [<branch/commit/tag>]
 */
 
 package gitlet;
 
+import java.io.File;
+import java.util.Arrays;
+
 import static gitlet.Utils.*;
 
 public class Main {
+    /** Runs the command ARGS on the repository of the current directory,
+     * printing its results. A command which fails prints its message to
+     * the standard error and exits with status 1. */
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (GitletException e) {
+            System.out.flush();
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void run(String[] args) {
         switch (args[0]) {
             case "init":
-                validateArgs(args, 1);
-                Repository.init();
+                validateArgs(args, 1, 2);
+                String backend = args.length == 2 ? option(args[1],
+                    "--object-store=") : null;
+                // a memory store would be lost when this command exits
+                assertCondition(backend == null || !ObjectStore.isBackend(
+                    backend) || ObjectStore.isPersistent(backend),
+                    "The object store '" + backend + "' does not outlive "
+                    + "the command.");
+                Repository.init(cwd(), backend);
                 break;
             case "hash-object":
                 validateArgs(args, 2);
-                Repository.hashObject(args[1]);
+                System.out.println(open().hashObject(args[1]));
                 break;
             case "cat-file":
                 validateArgs(args, 3);
-                Repository.catFile(args[2], args[1]);
+                open().catFile(args[2], args[1], stdoutChannel());
                 break;
             case "add":
                 validateArgs(args, 2);
-                Repository.add(args[1]);
+                open().add(args[1]);
                 break;
             case "rm":
                 validateArgs(args, 2);
-                Repository.rm(args[1]);
+                open().rm(args[1]);
                 break;
             case "write-tree":
                 validateArgs(args, 1);
-                Repository.writeTree();
+                System.out.println(open().writeTree());
                 break;
             case "commit":
                 validateArgs(args, 2);
-                Repository.commit(args[1]);
+                System.out.println(open().commit(args[1]));
                 break;
             case "log":
                 validateArgs(args, 1);
-                Repository.log();
+                System.out.print(open().log());
                 break;
             case "ls-tree":
                 validateArgs(args, 2);
-                Repository.lsTree(args[1]);
+                System.out.println(open().lsTree(args[1]));
                 break;
             case "checkout":
                 validateArgs(args, 2);
-                Repository.checkout(args[1]);
+                System.out.println(open().checkout(args[1]));
                 break;
             case "status":
                 validateArgs(args, 1);
-                Repository.status();
+                System.out.print(open().status());
                 break;
             case "tag":
                 validateArgs(args, 1, 3);
                 if (args.length == 1) {
-                    Repository.tag();
+                    open().tags().forEach(System.out::println);
                 } else if (args.length == 2) {
-                    Repository.tag(args[1]);
+                    open().tag(args[1]);
                 } else {
-                    Repository.tag(args[1], args[2]);
+                    open().tag(args[1], args[2]);
                 }
                 break;
             case "branch":
                 validateArgs(args, 1, 2);
                 if (args.length == 1) {
-                    Repository.branch();
+                    open().branches().forEach(System.out::println);
                 } else {
-                    Repository.branch(args[1]);
+                    open().branch(args[1]);
                 }
                 break;
             case "merge-base":
                 validateArgs(args, 3);
-                Repository.mergeBase(args[1], args[2]);
+                System.out.println(open().mergeBase(args[1], args[2]));
                 break;
             case "merge":
                 validateArgs(args, 2);
-                Repository.merge(args[1]);
+                System.out.println(open().merge(args[1]));
+                break;
+            case "pack-refs":
+                validateArgs(args, 1);
+                open().packRefs();
+                break;
+            case "gc":
+                validateArgs(args, 1);
+                open().gc();
+                break;
+            case "prune":
+                validateArgs(args, 1);
+                open().prune();
+                break;
+            case "fsck":
+                validateArgs(args, 1);
+                if (!open().fsck(System.out::println)) {
+                    System.exit(1);
+                }
+                break;
+            case "stats":
+            case "count-objects":
+                validateArgs(args, 1, 2);
+                String format = args.length == 2 ? option(args[1],
+                    "--format=") : "text";
+                assertCondition("text".equals(format) || "json".equals(
+                    format), "Unknown format '" + format + "'");
+                Stats stats = open().stats();
+                System.out.print("json".equals(format) ? stats.toJson()
+                    : stats.format());
+                break;
+            case "remote":
+                validateArgs(args, 4);
+                assertCondition("add".equals(args[1]), "Incorrect operands.");
+                open().remoteAdd(args[2], args[3]);
+                break;
+            case "clone":
+                validateArgs(args, 2);
+                System.out.print(Repository.clone(cwd(), args[1]));
+                break;
+            case "fetch":
+                validateArgs(args, 2);
+                System.out.print(open().fetch(args[1]));
+                break;
+            case "push":
+                validateArgs(args, 3);
+                System.out.print(open().push(args[1], args[2]));
+                break;
+            case "sparse-checkout":
+                validateArgs(args, 2, Integer.MAX_VALUE);
+                if ("set".equals(args[1]) && args.length > 2) {
+                    open().sparseCheckoutSet(Arrays.asList(args).subList(2,
+                        args.length));
+                } else if ("list".equals(args[1]) && args.length == 2) {
+                    open().sparseCheckoutList().forEach(System.out::println);
+                } else if ("disable".equals(args[1]) && args.length == 2) {
+                    open().sparseCheckoutDisable();
+                } else {
+                    error("Incorrect operands.");
+                }
+                break;
+            case "worktree":
+                validateArgs(args, 2, 4);
+                if ("add".equals(args[1]) && args.length == 4) {
+                    open().worktreeAdd(args[2], args[3]);
+                } else if ("list".equals(args[1]) && args.length == 2) {
+                    System.out.print(open().worktreeList());
+                } else if ("remove".equals(args[1]) && args.length == 3) {
+                    open().worktreeRemove(args[2]);
+                } else {
+                    error("Incorrect operands.");
+                }
+                break;
+            case "blame":
+                validateArgs(args, 2);
+                System.out.print(open().blame(args[1]));
+                break;
+            case "fast-import":
+                validateArgs(args, 1);
+                System.out.print(open().fastImport(System.in, System.out));
+                break;
+            case "archive":
+                validateArgs(args, 2, 3);
+                Repository repo = open();
+                repo.archive(args[1], option(args.length == 3 ? args[2]
+                    : "--format=tar", "--format="), stdoutChannel());
+                break;
+            case "grep":
+                validateArgs(args, 2, 3);
+                open().grep(args[1], args.length == 3 ? args[2] : "HEAD",
+                    System.out);
                 break;
             default:
                 System.out.println("No command with that name exists.");
@@ -120,6 +296,25 @@ public class Main {
         }
     }
 
+    /** @return the directory the command is run in, read when the
+     * command runs, not when the class is initialized, which may be when a
+     * native image is built. */
+    private static File cwd() {
+        return new File(System.getProperty("user.dir"));
+    }
+
+    /** @return the repository of the current directory. */
+    private static Repository open() {
+        return Repository.open(cwd());
+    }
+
+    /** @return the value of the option ARG, which must start with
+     * PREFIX. */
+    private static String option(String arg, String prefix) {
+        assertCondition(arg.startsWith(prefix), "Incorrect operands.");
+        return arg.substring(prefix.length());
+    }
+
     public static void validateArgs(String[] args, int expectedLen) {
         assertCondition(args.length == expectedLen, "Incorrect operands.");
     }
@@ -128,4 +323,4 @@ public class Main {
         assertCondition(args.length >= minLen && args.length <= maxLen, 
             "Incorrect operands.");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,109 @@
+/* This class keeps the objects in memory, for the tests and the benchmarks
+ * which measure the commands without the cost of the disk. The objects last
+ * as long as the process: a repository with this store only keeps its refs
+ * and its index from one command to the next. There is one store per
+ * objects directory, shared by all its users in the process. */
+
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class MemoryStore implements ObjectStore {
+    private static final Map<File, MemoryStore> STORES =
+        new ConcurrentHashMap<>();
+
+    private final Map<ObjectId, Item> objects = new ConcurrentHashMap<>();
+
+    /** A raw object and the time it was last written. */
+    private static class Item {
+        private final byte[] raw;
+        private volatile long time = System.currentTimeMillis();
+
+        Item(byte[] raw) {
+            this.raw = raw;
+        }
+    }
+
+    /** @return the store of the objects directory DIR. */
+    static MemoryStore open(File dir) {
+        return STORES.computeIfAbsent(dir, d -> new MemoryStore());
+    }
+
+    @Override
+    public boolean has(ObjectId id) {
+        return objects.containsKey(id);
+    }
+
+    @Override
+    public void write(ObjectId id, byte[]... parts) {
+        Item item = objects.get(id);
+        if (item != null) {
+            item.time = System.currentTimeMillis();
+            return;
+        }
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer raw = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            raw.put(part);
+        }
+        objects.putIfAbsent(id, new Item(raw.array()));
+    }
+
+    @Override
+    public Source open(ObjectId id) throws IOException {
+        Item item = objects.get(id);
+        if (item == null) {
+            throw new IOException("Object " + id + " does not exist.");
+        }
+        return new Source() {
+            @Override
+            public long size() {
+                return item.raw.length;
+            }
+
+            @Override
+            public int read(ByteBuffer dst, long position) {
+                if (position >= item.raw.length) {
+                    return -1;
+                }
+                int n = (int) Math.min(dst.remaining(), item.raw.length
+                    - position);
+                dst.put(item.raw, (int) position, n);
+                return n;
+            }
+
+            @Override
+            public long transferTo(long position, long count,
+                WritableByteChannel out) throws IOException {
+                int n = (int) Math.min(count, item.raw.length - position);
+                return out.write(ByteBuffer.wrap(item.raw, (int) position,
+                    n));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void forEach(Consumer<ObjectId> action) {
+        objects.keySet().forEach(action);
+    }
+
+    @Override
+    public void prune(Predicate<ObjectId> drop, long expire) {
+        objects.entrySet().removeIf(e -> e.getValue().time < expire && drop
+            .test(e.getKey()));
+    }
+}
@@ -0,0 +1,184 @@
+/* This class represents the id of a gitlet object, i.e. the 20-byte SHA-1 of
+ * the object with its type header. The id is stored in three primitive
+ * fields, so equals and hashCode never touch an array or a string. The hex
+ * form is only used where ids leave the program: the CLI, file names and the
+ * text formats of the repository. */
+
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public final class ObjectId implements Comparable<ObjectId> {
+    public static final int LENGTH = 20;
+    public static final int HEX_LENGTH = 2 * LENGTH;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /* Maps an ASCII character to its hex value, or -1 if it is not a
+     * lowercase hex digit. */
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < HEX_DIGITS.length; i += 1) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+        }
+    }
+
+    /* MessageDigest is not thread-safe, so each thread reuses its own. */
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal
+        .withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("System does not support "
+                    + "SHA-1");
+            }
+        });
+
+    /* bytes 0-7, 8-15 and 16-19 of the id, big-endian */
+    private final long w1;
+    private final long w2;
+    private final int w3;
+
+    private ObjectId(long w1, long w2, int w3) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /** @return the SHA-1 of the concatenation of PARTS. */
+    public static ObjectId hash(byte[]... parts) {
+        MessageDigest digest = DIGEST.get();
+        for (byte[] part : parts) {
+            digest.update(part);
+        }
+        return fromBytes(digest.digest(), 0);
+    }
+
+    /** @return the thread's SHA-1 digest, reset, for hashing streams. */
+    public static MessageDigest digest() {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
+    /** @return the id given by the 20 bytes of BYTES from OFFSET. */
+    public static ObjectId fromBytes(byte[] bytes, int offset) {
+        return new ObjectId(readLong(bytes, offset), readLong(bytes, offset
+            + 8), (int) (readLong(bytes, offset + 12)));
+    }
+
+    /** @return the id given by the 40 hex digits of HEX. */
+    public static ObjectId fromHex(String hex) {
+        if (!isHex(hex)) {
+            throw new IllegalArgumentException("Invalid object id: " + hex);
+        }
+        return new ObjectId(hexLong(hex, 0, 16), hexLong(hex, 16, 16),
+            (int) hexLong(hex, 32, 8));
+    }
+
+    /** @return true if S is made of exactly 40 lowercase hex digits. */
+    public static boolean isHex(String s) {
+        if (s.length() != HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_LENGTH; i += 1) {
+            char c = s.charAt(i);
+            if (c >= 128 || HEX_VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Writes the 20 bytes of the id into BYTES from OFFSET. */
+    public void copyTo(byte[] bytes, int offset) {
+        writeLong(bytes, offset, w1, 8);
+        writeLong(bytes, offset + 8, w2, 8);
+        writeLong(bytes, offset + 16, w3, 4);
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[LENGTH];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    /** @return the 40 hex digits of the id. */
+    @Override
+    public String toString() {
+        char[] hex = new char[HEX_LENGTH];
+        appendHex(hex, 0, w1, 16);
+        appendHex(hex, 16, w2, 16);
+        appendHex(hex, 32, w3, 8);
+        return new String(hex);
+    }
+
+    public byte[] toHexBytes() {
+        return toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ObjectId)) {
+            return false;
+        }
+        ObjectId other = (ObjectId) o;
+        return w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    /** The bytes of a SHA-1 are uniformly distributed, so any of them makes
+     * a good hash code. */
+    @Override
+    public int hashCode() {
+        return (int) (w1 >>> 32);
+    }
+
+    /** Compares the ids as unsigned bytes, i.e. in the order of their hex
+     * strings. */
+    @Override
+    public int compareTo(ObjectId other) {
+        int cmp = Long.compareUnsigned(w1, other.w1);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(w2, other.w2);
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w3, other.w3);
+        }
+        return cmp;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i += 1) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value,
+        int length) {
+        for (int i = length - 1; i >= 0; i -= 1) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long hexLong(String hex, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i += 1) {
+            value = (value << 4) | HEX_VALUES[hex.charAt(i)];
+        }
+        return value;
+    }
+
+    private static void appendHex(char[] hex, int offset, long value,
+        int length) {
+        for (int i = offset + length - 1; i >= offset; i -= 1) {
+            hex[i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/* This class holds what the commands which read every object of the store,
+ * fsck and stats, share: the pool on which they read the objects, and the
+ * parsing of the header of an object into its type. The objects are given
+ * by their number in a BitmapIndex, and each thread of the pool takes the
+ * next one from a shared counter, so a large blob does not hold back the
+ * others. */
+
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+public class ObjectScan {
+    /* The types of the objects, indexes of TYPE_NAMES. */
+    static final byte INVALID = -1;
+    static final byte BLOB = 1;
+    static final byte TREE = 2;
+    static final byte COMMIT = 3;
+    static final byte CHUNKED = 4;
+    static final String[] TYPE_NAMES = {null, "blob", "tree", "commit",
+        "chunked"};
+    /* the longest header, of a chunked blob */
+    static final int MAX_HEADER = Data.typeHeader("chunked").length;
+
+    /** Calls ACTION with the numbers 0 to N - 1, in parallel on a pool of
+     * as many threads as the config key THREADSKEY, twice the number of
+     * cores by default, since most of the time is spent waiting for the
+     * disk. */
+    static void forEach(String threadsKey, int n, IntConsumer action) {
+        // at least one thread, else no object would be read
+        int threads = Math.max(1, (int) Config.getLong(threadsKey, 2
+            * Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t += 1) {
+            workers.add(pool.submit(Context.wrap(() -> {
+                for (int i = next.getAndIncrement(); i < n;
+                    i = next.getAndIncrement()) {
+                    action.accept(i);
+                }
+            })));
+        }
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            // the error of the worker, e.g. a GitletIOException, as is
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitletException("Interrupted while reading the objects");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** @return the length of the header at the start of the first LIMIT
+     * bytes of RAW, NULL byte included, or -1 if there is no NULL byte
+     * among the first MAX_HEADER bytes. */
+    static int headerLength(byte[] raw, int limit) {
+        int max = Math.min(limit, MAX_HEADER);
+        for (int j = 0; j < max; j += 1) {
+            if (raw[j] == 0) {
+                return j + 1;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the type given by the header at the start of the first
+     * LIMIT bytes of RAW, or INVALID if it is not a known type followed by
+     * the NULL byte. */
+    static byte readType(byte[] raw, int limit) {
+        int length = headerLength(raw, limit);
+        if (length < 0) {
+            return INVALID;
+        }
+        String name = new String(raw, 0, length - 1, StandardCharsets.UTF_8);
+        for (byte t = BLOB; t <= CHUNKED; t += 1) {
+            if (TYPE_NAMES[t].equals(name)) {
+                return t;
+            }
+        }
+        return INVALID;
+    }
+}
@@ -0,0 +1,237 @@
+/* This interface is the object store of a repository, where Data reads and
+ * writes the objects. The backend is chosen per repository by the key
+ * "core.objectStore" of its config, set by "init --object-store=<backend>":
+ * - loose (default): LooseStore, a file per object, and the packs,
+ * - file: FileStore, one append-only file with a hash index, for the
+ *   filesystems where many small files are slow, e.g. overlay and network
+ *   mounts,
+ * - memory: MemoryStore, which lasts as long as the process, for the tests
+ *   and the benchmarks which use the API; the command line refuses it,
+ *   since its objects would be lost when the command exits.
+ * An object is stored raw, its type header followed by its content, and is
+ * read through a Source, which gives positional reads over these bytes
+ * whatever the backend. */
+
+package gitlet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+public interface ObjectStore {
+    String CONFIG_KEY = "core.objectStore";
+
+    /** @return the object store of the repository whose shared .gitlet
+     * directory is GITLETDIR. */
+    static ObjectStore open(File gitletDir) {
+        String backend = Config.get(gitletDir, CONFIG_KEY, "loose");
+        File dir = join(gitletDir, "objects");
+        switch (backend) {
+            case "loose":
+                return new LooseStore(dir);
+            case "file":
+                return FileStore.open(dir);
+            case "memory":
+                return MemoryStore.open(dir);
+            default:
+                error("Unknown object store '" + backend + "'");
+                return null;
+        }
+    }
+
+    /** @return true if BACKEND names an object store. */
+    static boolean isBackend(String backend) {
+        return "loose".equals(backend) || "file".equals(backend) || "memory"
+            .equals(backend);
+    }
+
+    /** @return true if the objects of the store BACKEND outlive the
+     * process. */
+    static boolean isPersistent(String backend) {
+        return "loose".equals(backend) || "file".equals(backend);
+    }
+
+    /** @return true if the store has the object ID. */
+    boolean has(ObjectId id);
+
+    /** Stores the object ID made of its header and content PARTS, unless
+     * the store has it, in which case it is marked as just written, so gc
+     * keeps it for its grace period. */
+    void write(ObjectId id, byte[]... parts);
+
+    /** @return the raw bytes of the object ID, which fail to read if the
+     * store does not have it. */
+    Source open(ObjectId id) throws IOException;
+
+    /** Calls ACTION once with the id of every object, in no particular
+     * order. */
+    void forEach(Consumer<ObjectId> action);
+
+    /** Deletes the objects to DROP which were last written before EXPIRE,
+     * in milliseconds since the epoch, and the leftovers of the commands
+     * which crashed before it and before Transaction.TMP_MIN_AGE. */
+    void prune(Predicate<ObjectId> drop, long expire);
+
+    /** Releases the files the store holds open, once the command which
+     * opened it is over. */
+    default void close() {
+    }
+
+    /** @return a batch adding many objects to the store at once. */
+    default Batch batch() {
+        return new Direct(this);
+    }
+
+    /** Copies the object ID of this store into TO. */
+    default void copyTo(ObjectStore to, ObjectId id) {
+        try (Source source = open(id)) {
+            ByteBuffer raw = ByteBuffer.allocate((int) source.size());
+            while (raw.hasRemaining()) {
+                if (source.read(raw, raw.position()) < 0) {
+                    throw new IOException("Truncated object " + id);
+                }
+            }
+            to.write(id, raw.array());
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /* The raw bytes of an object, its header followed by its content, read
+     * by position from 0. */
+    interface Source extends Closeable {
+        long size() throws IOException;
+
+        /** Reads bytes from POSITION into DST.
+         * @return the number of bytes read, or -1 at the end. */
+        int read(ByteBuffer dst, long position) throws IOException;
+
+        /** Sends COUNT bytes from POSITION to OUT.
+         * @return the number of bytes sent. */
+        long transferTo(long position, long count, WritableByteChannel out)
+            throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /* A batch of objects, e.g. the history of fast-import. The objects may
+     * only become visible in the store at finish, and are read back from the
+     * batch until then. */
+    interface Batch {
+        boolean contains(ObjectId id);
+
+        /** Adds the object ID made of its header and content PARTS. */
+        void add(ObjectId id, byte[]... parts);
+
+        /** @return the raw bytes of the object ID if it is in the batch and
+         * not yet visible in the store, or else null. */
+        Source open(ObjectId id) throws IOException;
+
+        /** @return the number of objects added. */
+        int size();
+
+        /** Makes the objects added durable and visible. */
+        void finish();
+
+        /** Drops the objects added, if they are not yet visible. */
+        void abort();
+    }
+
+    /* A batch which writes each object to the store as it is added. */
+    class Direct implements Batch {
+        private final ObjectStore store;
+        private int size;
+
+        Direct(ObjectStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public boolean contains(ObjectId id) {
+            return false;       // the store has it
+        }
+
+        @Override
+        public void add(ObjectId id, byte[]... parts) {
+            store.write(id, parts);
+            size += 1;
+        }
+
+        @Override
+        public Source open(ObjectId id) {
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    /* The range of a file holding an object, LENGTH bytes from OFFSET. The
+     * channel is closed with the source if the source OWNS it. */
+    class FileSource implements Source {
+        private final FileChannel channel;
+        private final long offset;
+        private final long length;
+        private final boolean owns;
+
+        FileSource(FileChannel channel, long offset, long length, boolean
+            owns) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+            this.owns = owns;
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position >= length) {
+                return -1;
+            }
+            int limit = dst.limit();
+            dst.limit((int) Math.min(limit, dst.position() + length
+                - position));
+            try {
+                return channel.read(dst, offset + position);
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public long transferTo(long position, long count,
+            WritableByteChannel out) throws IOException {
+            return channel.transferTo(offset + position, Math.min(count,
+                length - position), out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (owns) {
+                channel.close();
+            }
+        }
+    }
+}
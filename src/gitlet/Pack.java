@@ -0,0 +1,445 @@
+/* This class stores objects in packs, "objects/pack/pack-<sha1>.pack", which
+ * hold many objects in one file instead of one file per object. A pack is
+ * written once, by fast-import or by gc, and never changed: a gc which drops
+ * some of its objects writes a new pack with the others.
+ * A pack holds the objects one after the other, each exactly as its loose
+ * file, the type header followed by the content, so an object is read the
+ * same way from both. Its index "pack-<sha1>.idx" gives the place of each
+ * object in the pack. The index is memory-mapped and searched by binary
+ * search, so opening a pack costs nothing whatever its size. A pack is only
+ * used once its index exists, and the index is written after the pack is
+ * durable, so a crash never leaves an index to missing objects.
+ * Pack layout: the magic "GPCK", then the objects.
+ * Index layout: the magic "GIDX", the number of objects, their raw ids in
+ * sorted order, then for each id the offset and the length of the object in
+ * the pack, as longs. The <sha1> of the name is the SHA-1 of the sorted
+ * ids.
+ * The packs of an objects directory are listed by the store of each
+ * command, see Directory, and listed again when an object is not found and
+ * the directory changed, so a pack written by another command is found. */
+
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+public class Pack {
+    public static final String DIR_NAME = "pack";
+    private static final byte[] PACK_MAGIC = "GPCK".getBytes(StandardCharsets
+        .US_ASCII);
+    private static final byte[] INDEX_MAGIC = "GIDX".getBytes(
+        StandardCharsets.US_ASCII);
+    private static final int INDEX_HEADER = 8;
+    /* the age, in milliseconds, of a listing of the packs after the last
+     * change of their directory from which it is trusted */
+    private static final long RACY_MS = 2000;
+
+    private final File packFile;
+    private final File indexFile;
+    private final ByteBuffer index;
+    private final int count;
+
+    /** The place of an object: a range of a pack, or a loose file, whose
+     * LENGTH is -1 as the object takes the whole file. */
+    public static class Entry {
+        public final File file;
+        public final long offset;
+        public final long length;
+
+        Entry(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public static Entry loose(File file) {
+            return new Entry(file, 0, -1);
+        }
+
+        public boolean isLoose() {
+            return length < 0;
+        }
+    }
+
+    private Pack(File indexFile) throws IOException {
+        this.indexFile = indexFile;
+        String name = indexFile.getName();
+        this.packFile = new File(indexFile.getParentFile(), name.substring(0,
+            name.length() - ".idx".length()) + ".pack");
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(),
+            StandardOpenOption.READ)) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                .size());
+        }
+        byte[] magic = new byte[INDEX_MAGIC.length];
+        index.get(0, magic);
+        if (!Arrays.equals(magic, INDEX_MAGIC)) {
+            throw new IOException("Invalid pack index: " + indexFile);
+        }
+        count = index.getInt(INDEX_MAGIC.length);
+    }
+
+    /* This class holds the packs of an objects directory for the store of
+     * one command. They are listed when first used, and listed again when
+     * an object is not found and the pack directory changed since, or
+     * changed less than RACY_MS before it was listed, on a filesystem whose
+     * clock is coarse. The packs still there are kept open. */
+    public static class Directory {
+        private final File objectsDir;
+        private final File packDir;
+        private volatile Listing listing;
+
+        /** The packs, and the mtime of their directory and the time when
+         * they were listed. */
+        private static class Listing {
+            private final long modified;
+            private final long listed;
+            private final List<Pack> packs;
+
+            Listing(long modified, long listed, List<Pack> packs) {
+                this.modified = modified;
+                this.listed = listed;
+                this.packs = packs;
+            }
+        }
+
+        /** The packs of the objects directory OBJECTSDIR. */
+        public Directory(File objectsDir) {
+            this.objectsDir = objectsDir;
+            this.packDir = join(objectsDir, DIR_NAME);
+        }
+
+        /** @return the packs, sorted by name. */
+        public List<Pack> list() {
+            Listing current = listing;
+            return (current != null ? current : refresh()).packs;
+        }
+
+        /** Lists the packs again if their directory may have changed since
+         * they were listed.
+         * @return the listing, the same one if it still holds. */
+        private synchronized Listing refresh() {
+            Listing current = listing;
+            long modified = packDir.lastModified();
+            if (current != null && current.modified == modified
+                && current.listed - modified >= RACY_MS) {
+                return current;
+            }
+            long listed = System.currentTimeMillis();
+            listing = new Listing(modified, listed, open(current == null
+                ? new ArrayList<>() : current.packs));
+            return listing;
+        }
+
+        /** @return the packs of the directory, sorted by name, the ones of
+         * OLD which are still there reused. */
+        private List<Pack> open(List<Pack> old) {
+            Map<File, Pack> opened = new HashMap<>();
+            for (Pack pack : old) {
+                opened.put(pack.indexFile, pack);
+            }
+            List<Pack> packs = new ArrayList<>();
+            File[] files = packDir.listFiles((d, name) -> name.endsWith(
+                ".idx"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    Pack pack = opened.get(file);
+                    try {
+                        packs.add(pack != null ? pack : new Pack(file));
+                    } catch (NoSuchFileException e) {
+                        // deleted by a gc meanwhile
+                    } catch (IOException e) {
+                        throw new GitletIOException(e);
+                    }
+                }
+            }
+            return packs;
+        }
+
+        /** Forgets the packs, which are listed again when next used, e.g.
+         * once one of them was deleted. */
+        public void reload() {
+            listing = null;
+        }
+
+        /** @return the place of the object ID in the packs, or null if no
+         * pack has it. */
+        public Entry find(ObjectId id) {
+            Listing current = listing;
+            if (current == null) {
+                current = refresh();
+            }
+            Entry entry = find(current.packs, id);
+            if (entry == null) {
+                Listing again = refresh();
+                if (again != current) {
+                    entry = find(again.packs, id);
+                }
+            }
+            return entry;
+        }
+
+        private static Entry find(List<Pack> packs, ObjectId id) {
+            for (Pack pack : packs) {
+                Entry entry = pack.find(id);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        /** Calls ACTION with the id of every packed object, once even if
+         * several packs have it. */
+        public void forEachObject(Consumer<ObjectId> action) {
+            List<Pack> packs = refresh().packs;
+            for (int p = 0; p < packs.size(); p += 1) {
+                Pack pack = packs.get(p);
+                for (int i = 0; i < pack.count; i += 1) {
+                    ObjectId id = pack.idAt(i);
+                    if (!inPacks(packs.subList(0, p), id)) {
+                        action.accept(id);
+                    }
+                }
+            }
+        }
+
+        private static boolean inPacks(List<Pack> packs, ObjectId id) {
+            for (Pack pack : packs) {
+                if (pack.indexOf(id) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Rewrites the packs last written before EXPIRE, in milliseconds
+         * since the epoch, which have objects to DROP: the other objects
+         * are copied into a new pack, and the old pack is deleted. */
+        public void prune(Predicate<ObjectId> drop, long expire) {
+            for (Pack pack : refresh().packs) {
+                if (pack.packFile.lastModified() >= expire) {
+                    continue;
+                }
+                List<Integer> kept = new ArrayList<>();
+                for (int i = 0; i < pack.count; i += 1) {
+                    if (!drop.test(pack.idAt(i))) {
+                        kept.add(i);
+                    }
+                }
+                if (kept.size() == pack.count) {
+                    continue;
+                }
+                Writer writer = new Writer(objectsDir);
+                for (int i : kept) {
+                    writer.add(pack.idAt(i), pack.readEntry(i));
+                }
+                writer.finish();
+                pack.delete();
+            }
+            reload();
+        }
+    }
+
+    /** Deletes the index, which hides the pack, then the pack. */
+    private void delete() {
+        deleteFile(indexFile);
+        deleteFile(packFile);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public ObjectId idAt(int i) {
+        byte[] bytes = new byte[ObjectId.LENGTH];
+        index.get(INDEX_HEADER + i * ObjectId.LENGTH, bytes);
+        return ObjectId.fromBytes(bytes, 0);
+    }
+
+    /** @return the number of ID in the index, or -1 if it is not in the
+     * pack. */
+    private int indexOf(ObjectId id) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = idAt(mid).compareTo(id);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the place of the object ID, or null if it is not in the
+     * pack. */
+    public Entry find(ObjectId id) {
+        int i = indexOf(id);
+        if (i < 0) {
+            return null;
+        }
+        int position = INDEX_HEADER + count * ObjectId.LENGTH + i * 16;
+        return new Entry(packFile, index.getLong(position), index.getLong(
+            position + 8));
+    }
+
+    /** @return the raw object I, header included. */
+    private byte[] readEntry(int i) {
+        Entry entry = find(idAt(i));
+        ByteBuffer buffer = ByteBuffer.allocate((int) entry.length);
+        try (FileChannel channel = FileChannel.open(packFile.toPath(),
+            StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.offset + buffer.position())
+                    < 0) {
+                    throw new IOException("Truncated pack: " + packFile);
+                }
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+        return buffer.array();
+    }
+
+    /* This class writes a new pack. The objects are appended to a temporary
+     * file as they are added, and can be read back from it, so the pack is
+     * never held in memory. Nothing is visible until finish. */
+    public static class Writer implements ObjectStore.Batch {
+        private final File dir;
+        private final File tmp;
+        private final FileChannel channel;
+        /* the offset and the length of each object */
+        private final Map<ObjectId, long[]> entries = new HashMap<>();
+        private long position;
+
+        /** Starts a pack in the objects directory OBJECTSDIR. */
+        public Writer(File objectsDir) {
+            this.dir = objectsDir;
+            File packDir = join(objectsDir, DIR_NAME);
+            packDir.mkdirs();
+            this.tmp = Transaction.tmpFile(join(packDir, "pack"));
+            try {
+                channel = FileChannel.open(tmp.toPath(), StandardOpenOption
+                    .CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                throw new GitletIOException(e);
+            }
+            write(PACK_MAGIC);
+        }
+
+        @Override
+        public boolean contains(ObjectId id) {
+            return entries.containsKey(id);
+        }
+
+        /** @return the object ID from the pack being written, or null if
+         * it was not added. */
+        @Override
+        public ObjectStore.Source open(ObjectId id) throws IOException {
+            long[] entry = entries.get(id);
+            return entry == null ? null : new ObjectStore.FileSource(
+                FileChannel.open(tmp.toPath(), StandardOpenOption.READ),
+                entry[0], entry[1], true);
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        /** Appends the object ID, made of its header and its content
+         * PARTS, unless it is already in the pack. */
+        @Override
+        public void add(ObjectId id, byte[]... parts) {
+            if (entries.containsKey(id)) {
+                return;
+            }
+            long start = position;
+            for (byte[] part : parts) {
+                write(part);
+            }
+            entries.put(id, new long[] {start, position - start});
+        }
+
+        private void write(byte[] bytes) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                abort();
+                throw new GitletIOException(e);
+            }
+            position += bytes.length;
+        }
+
+        /** Makes the pack durable, writes its index and makes it visible.
+         * An empty pack is discarded. */
+        @Override
+        public void finish() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new GitletIOException(e);
+            }
+            if (entries.isEmpty()) {
+                deleteFile(tmp);
+                return;
+            }
+            ObjectId[] ids = entries.keySet().toArray(new ObjectId[0]);
+            Arrays.sort(ids);
+            MessageDigest digest = ObjectId.digest();
+            ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER + ids.length
+                * (ObjectId.LENGTH + 16));
+            index.put(INDEX_MAGIC).putInt(ids.length);
+            for (ObjectId id : ids) {
+                byte[] bytes = id.toBytes();
+                digest.update(bytes);
+                index.put(bytes);
+            }
+            for (ObjectId id : ids) {
+                long[] entry = entries.get(id);
+                index.putLong(entry[0]).putLong(entry[1]);
+            }
+            String name = "pack-" + ObjectId.fromBytes(digest.digest(), 0);
+            File packDir = join(dir, DIR_NAME);
+            Transaction.install(tmp, join(packDir, name + ".pack"));
+            File indexTmp = Transaction.tmpFile(join(packDir, name + ".idx"));
+            writeContents(indexTmp, index.array());
+            Transaction.install(indexTmp, join(packDir, name + ".idx"));
+        }
+
+        /** Deletes the pack being written. */
+        @Override
+        public void abort() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // deleted anyway
+            }
+            deleteFile(tmp);
+        }
+    }
+}
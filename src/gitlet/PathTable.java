@@ -0,0 +1,445 @@
+/* This class implements a compact, immutable map from paths to object ids,
+ * used for the index, the flattened trees and the working directory.
+ * The paths are kept sorted by their UTF-8 bytes and front-coded: each entry
+ * only stores the length of the prefix it shares with the previous path and
+ * the remaining bytes, so a directory prefix is stored once per block
+ * instead of once per file. Every RESTART_INTERVAL-th entry stores its full
+ * path, which allows binary search. The ids are stored as raw 20-byte values
+ * in one parallel array. No object is allocated per entry.
+ * Entry layout: varint shared length, varint suffix length, suffix bytes. */
+
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+public final class PathTable {
+    private static final int RESTART_INTERVAL = 16;
+    public static final PathTable EMPTY = new Builder().build();
+
+    private final byte[] data;
+    private final int[] restarts;
+    private final byte[] ids;
+    private final int size;
+
+    private PathTable(byte[] data, int[] restarts, byte[] ids, int size) {
+        this.data = data;
+        this.restarts = restarts;
+        this.ids = ids;
+        this.size = size;
+    }
+
+    /** Visits the union of the paths of two tables in sorted order. */
+    public interface JoinVisitor {
+        /** @param a the id of the path in the first table, or null.
+         * @param b the id of the path in the second table, or null. */
+        void visit(String path, ObjectId a, ObjectId b);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static PathTable of(Map<String, ObjectId> map) {
+        Builder builder = new Builder();
+        map.forEach(builder::add);
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** @return the id of PATH, or null if the path is not in the table. */
+    public ObjectId get(String path) {
+        byte[] key = utf8(path);
+        Cursor cursor = seek(key, size);
+        return cursor.next() && cursor.keyEquals(key) ? cursor.id() : null;
+    }
+
+    public boolean contains(String path) {
+        return get(path) != null;
+    }
+
+    /** @return a cursor over all the entries in sorted order. */
+    public Cursor cursor() {
+        return new Cursor(0, size);
+    }
+
+    /** @return a cursor over the entries whose paths start with PREFIX.
+     * Both ends of the range are found with binary search. */
+    public Cursor cursor(String prefix) {
+        byte[] key = utf8(prefix);
+        return seek(key, lowerBound(upperBound(key)));
+    }
+
+    /** @return a key which is greater than all the paths starting with
+     * PREFIX and less than all the other greater paths. No UTF-8 string
+     * contains the byte 0xff. */
+    private static byte[] upperBound(byte[] prefix) {
+        byte[] upper = Arrays.copyOf(prefix, prefix.length + 1);
+        upper[prefix.length] = (byte) 0xff;
+        return upper;
+    }
+
+    public void forEach(BiConsumer<String, ObjectId> action) {
+        for (Cursor c = cursor(); c.next();) {
+            action.accept(c.path(), c.id());
+        }
+    }
+
+    /** @return the paths starting with PREFIX in sorted order. */
+    public List<String> paths(String prefix) {
+        List<String> paths = new ArrayList<>();
+        for (Cursor c = cursor(prefix); c.next();) {
+            paths.add(c.path());
+        }
+        return paths;
+    }
+
+    public List<String> paths() {
+        return paths("");
+    }
+
+    /** @return the paths of the file PATH and of the files under the
+     * directory PATH in sorted order. Every path is under "". */
+    public List<String> tree(String path) {
+        if (path.isEmpty()) {
+            return paths();
+        }
+        List<String> paths = new ArrayList<>();
+        if (contains(path)) {
+            paths.add(path);
+        }
+        paths.addAll(paths(path + "/"));
+        return paths;
+    }
+
+    /** @return a new table without the file PATH and the files under the
+     * directory PATH. "a" removes "a" and "a/b" but keeps "a.txt". */
+    public PathTable removeTree(String path) {
+        if (path.isEmpty()) {
+            return EMPTY;
+        }
+        byte[] file = utf8(path);
+        byte[] dir = utf8(path + "/");
+        int fileIndex = lowerBound(file);
+        int start = lowerBound(dir);
+        int end = lowerBound(upperBound(dir));
+        Builder builder = new Builder();
+        for (Cursor c = cursor(); c.next();) {
+            boolean removed = c.index == fileIndex && c.keyEquals(file)
+                || c.index >= start && c.index < end;
+            if (!removed) {
+                builder.add(c.key, c.keyLength, c.id());
+            }
+        }
+        return builder.build();
+    }
+
+    /** @return a new table with the entries whose paths satisfy
+     * PREDICATE. */
+    public PathTable filter(Predicate<String> predicate) {
+        Builder builder = new Builder();
+        for (Cursor c = cursor(); c.next();) {
+            if (predicate.test(c.path())) {
+                builder.add(c.key, c.keyLength, c.id());
+            }
+        }
+        return builder.build();
+    }
+
+    /** @return a new table with the entries of both tables, the entries of
+     * OTHER override the ones of this table. */
+    public PathTable putAll(PathTable other) {
+        Builder builder = new Builder();
+        mergeJoin(this, other, (path, a, b) -> builder.add(path, b != null
+            ? b : a));
+        return builder.build();
+    }
+
+    /** Walks the two sorted tables side by side and calls VISITOR once for
+     * every path in either table. */
+    public static void mergeJoin(PathTable t1, PathTable t2, JoinVisitor
+        visitor) {
+        Cursor c1 = t1.cursor();
+        Cursor c2 = t2.cursor();
+        boolean has1 = c1.next();
+        boolean has2 = c2.next();
+        while (has1 || has2) {
+            int cmp = !has1 ? 1 : !has2 ? -1 : compare(c1.key, c1.keyLength,
+                c2.key, c2.keyLength);
+            if (cmp == 0) {
+                visitor.visit(c1.path(), c1.id(), c2.id());
+                has1 = c1.next();
+                has2 = c2.next();
+            } else if (cmp < 0) {
+                visitor.visit(c1.path(), c1.id(), null);
+                has1 = c1.next();
+            } else {
+                visitor.visit(c2.path(), null, c2.id());
+                has2 = c2.next();
+            }
+        }
+    }
+
+    /** @return the index of the first entry not less than KEY. */
+    private int lowerBound(byte[] key) {
+        Cursor cursor = seek(key, size);
+        return cursor.next() ? cursor.index : size;
+    }
+
+    /** @return a cursor whose next entry is the first entry not less than
+     * KEY, ending before the entry END. */
+    private Cursor seek(byte[] key, int end) {
+        // binary search the last restart point whose path is <= KEY
+        int lo = 0;
+        int hi = restarts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (compareRestart(mid, key) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        Cursor cursor = new Cursor(lo * RESTART_INTERVAL, end);
+        // then scan the block linearly
+        while (cursor.index + 1 < cursor.end && cursor.peekLess(key)) {
+            cursor.next();
+        }
+        return cursor;
+    }
+
+    /** Compares the full path of the restart point I with KEY. */
+    private int compareRestart(int i, byte[] key) {
+        int offset = restarts[i];
+        int shared = data[offset];      // always 0 at a restart point
+        assert shared == 0;
+        long header = readVarint(data, offset + 1);
+        int length = (int) header;
+        int start = (int) (header >>> 32);
+        return compare(data, start, length, key, 0, key.length);
+    }
+
+    /** A forward cursor over the entries of the table. The path of the
+     * current entry is decoded in place into a reused buffer. */
+    public final class Cursor {
+        /* the index of the current entry, -1 + start before the first
+         * call to next */
+        private int index;
+        private final int end;
+        private int offset;
+        private byte[] key = new byte[64];
+        private int keyLength;
+
+        private Cursor(int start, int end) {
+            this.end = Math.min(end, size);
+            if (start >= size) {
+                this.index = start - 1;
+                return;
+            }
+            // decode from the restart point of the block up to START
+            int restart = start / RESTART_INTERVAL;
+            this.index = restart * RESTART_INTERVAL - 1;
+            this.offset = restarts[restart];
+            while (index + 1 < start) {
+                decodeNext();
+            }
+        }
+
+        /** Moves to the next entry.
+         * @return false if there are no more entries. */
+        public boolean next() {
+            if (index + 1 >= end) {
+                return false;
+            }
+            decodeNext();
+            return true;
+        }
+
+        private void decodeNext() {
+            long shared = readVarint(data, offset);
+            int pos = (int) (shared >>> 32);
+            long suffix = readVarint(data, pos);
+            int length = (int) suffix;
+            pos = (int) (suffix >>> 32);
+            int newLength = (int) shared + length;
+            if (newLength > key.length) {
+                key = Arrays.copyOf(key, Math.max(newLength, 2 * key
+                    .length));
+            }
+            System.arraycopy(data, pos, key, (int) shared, length);
+            keyLength = newLength;
+            offset = pos + length;
+            index += 1;
+        }
+
+        /** @return true if the entry after the current one is less than
+         * KEY. The cursor is not moved. */
+        private boolean peekLess(byte[] target) {
+            long shared = readVarint(data, offset);
+            int common = (int) shared;
+            long suffix = readVarint(data, (int) (shared >>> 32));
+            int length = (int) suffix;
+            int pos = (int) (suffix >>> 32);
+            // the next path is the first COMMON bytes of the current path
+            // followed by the suffix
+            int n = Math.min(common, target.length);
+            int cmp = compare(key, 0, n, target, 0, n);
+            if (cmp != 0 || target.length < common) {
+                return cmp < 0;
+            }
+            return compare(data, pos, length, target, common, target.length
+                - common) < 0;
+        }
+
+        private boolean keyEquals(byte[] target) {
+            return compare(key, keyLength, target, target.length) == 0;
+        }
+
+        public String path() {
+            return new String(key, 0, keyLength, StandardCharsets.UTF_8);
+        }
+
+        public ObjectId id() {
+            return ObjectId.fromBytes(ids, index * ObjectId.LENGTH);
+        }
+    }
+
+    /** Builds a table. Entries added in sorted order are encoded as they
+     * come; if an entry is out of order or repeated, the builder falls back
+     * to sorting all the entries, the last id of a path wins. */
+    public static final class Builder {
+        private byte[] data = new byte[256];
+        private int length;
+        private int[] restarts = new int[16];
+        private byte[] ids = new byte[16 * ObjectId.LENGTH];
+        private int size;
+        private byte[] last = new byte[64];
+        private int lastLength;
+        private TreeMap<byte[], ObjectId> unsorted;
+
+        public Builder add(String path, ObjectId id) {
+            byte[] key = utf8(path);
+            return add(key, key.length, id);
+        }
+
+        private Builder add(byte[] key, int keyLength, ObjectId id) {
+            if (unsorted == null && size > 0 && compare(last, lastLength, key,
+                keyLength) >= 0) {
+                PathTable table = build();
+                unsorted = new TreeMap<>((x, y) -> compare(x, x.length, y,
+                    y.length));
+                for (Cursor c = table.cursor(); c.next();) {
+                    unsorted.put(Arrays.copyOf(c.key, c.keyLength), c.id());
+                }
+            }
+            if (unsorted != null) {
+                unsorted.put(Arrays.copyOf(key, keyLength), id);
+                return this;
+            }
+            int shared = 0;
+            if (size % RESTART_INTERVAL == 0) {
+                if (size / RESTART_INTERVAL == restarts.length) {
+                    restarts = Arrays.copyOf(restarts, 2 * restarts.length);
+                }
+                restarts[size / RESTART_INTERVAL] = length;
+            } else {
+                int max = Math.min(lastLength, keyLength);
+                while (shared < max && last[shared] == key[shared]) {
+                    shared += 1;
+                }
+            }
+            ensureData(10 + keyLength - shared);
+            length = writeVarint(data, length, shared);
+            length = writeVarint(data, length, keyLength - shared);
+            System.arraycopy(key, shared, data, length, keyLength - shared);
+            length += keyLength - shared;
+            if ((size + 1) * ObjectId.LENGTH > ids.length) {
+                ids = Arrays.copyOf(ids, 2 * ids.length);
+            }
+            id.copyTo(ids, size * ObjectId.LENGTH);
+            if (keyLength > last.length) {
+                last = Arrays.copyOf(last, Math.max(keyLength, 2 * last
+                    .length));
+            }
+            System.arraycopy(key, 0, last, 0, keyLength);
+            lastLength = keyLength;
+            size += 1;
+            return this;
+        }
+
+        private void ensureData(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(length + extra, 2 * data
+                    .length));
+            }
+        }
+
+        public PathTable build() {
+            if (unsorted != null) {
+                Builder sorted = new Builder();
+                unsorted.forEach((key, id) -> sorted.add(key, key.length,
+                    id));
+                return sorted.build();
+            }
+            int restartCount = (size + RESTART_INTERVAL - 1)
+                / RESTART_INTERVAL;
+            return new PathTable(Arrays.copyOf(data, length), Arrays.copyOf(
+                restarts, restartCount), Arrays.copyOf(ids, size * ObjectId
+                .LENGTH), size);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Compares two byte strings as unsigned bytes. */
+    private static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+        return compare(a, 0, aLength, b, 0, bLength);
+    }
+
+    private static int compare(byte[] a, int aStart, int aLength, byte[] b,
+        int bStart, int bLength) {
+        return Arrays.compareUnsigned(a, aStart, aStart + aLength, b, bStart,
+            bStart + bLength);
+    }
+
+    /** @return the value of the varint at OFFSET in the low 32 bits and the
+     * offset after it in the high 32 bits. */
+    private static long readVarint(byte[] bytes, int offset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[offset];
+            offset += 1;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return ((long) offset << 32) | (value & 0xffffffffL);
+    }
+
+    /** @return the offset after the varint. */
+    private static int writeVarint(byte[] bytes, int offset, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[offset] = (byte) ((value & 0x7f) | 0x80);
+            offset += 1;
+            value >>>= 7;
+        }
+        bytes[offset] = (byte) value;
+        return offset + 1;
+    }
+}
@@ -0,0 +1,118 @@
+/* This class represents a repository taking part in a transfer of objects,
+ * either the current repository or another one given by its path, e.g. the
+ * origin of a clone. It gives access to the object files and the refs of the
+ * repository without going through the paths of Data, which always refer to
+ * the current repository. Each repository has its own backend of
+ * ObjectStore. */
+
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+import static gitlet.Utils.*;
+
+public class Peer {
+    private final File gitletDir;
+    private final ObjectStore objects;
+    private final RefDB refs;
+
+    private Peer(File gitletDir, ObjectStore objects, RefDB refs) {
+        this.gitletDir = gitletDir;
+        this.objects = objects;
+        this.refs = refs;
+    }
+
+    /** @return the current repository. */
+    public static Peer local() {
+        return new Peer(Data.commonDir(), Data.store(), Data.refs());
+    }
+
+    /** @return the repository whose working directory, or .gitlet
+     * directory, is PATH. The HEAD is the one of the worktree PATH. */
+    public static Peer open(String path) {
+        File dir = join(Data.file(path).getAbsolutePath());
+        File worktreeDir = join(dir, ".gitlet");
+        worktreeDir = worktreeDir.exists() ? Data.readGitletFile(worktreeDir)
+            : dir;
+        File gitletDir = Data.findCommonDir(worktreeDir);
+        assertCondition(join(gitletDir, "objects").isDirectory() && join(
+            worktreeDir, "HEAD").isFile(), String.format("'%s' does not "
+            + "appear to be a gitlet repository", path));
+        return new Peer(gitletDir, Context.current().openStore(gitletDir),
+            new RefDB(gitletDir, worktreeDir));
+    }
+
+    /** @return the absolute path of the working directory. */
+    public String path() {
+        return gitletDir.getParentFile().getAbsolutePath();
+    }
+
+    /** @return true if the repository has the object ID. */
+    public boolean has(ObjectId id) {
+        return objects.has(id);
+    }
+
+    public byte[] read(ObjectId id, String type) {
+        try (ObjectStore.Source source = objects.open(id)) {
+            return Data.readObject(source, id, type);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    public String type(ObjectId id) {
+        try (ObjectStore.Source source = objects.open(id)) {
+            return Data.getObjectType(source, id);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** Copies the object ID of this repository into TO, see
+     * ObjectStore.copyTo. */
+    public void copyTo(Peer to, ObjectId id) {
+        objects.copyTo(to.objects, id);
+    }
+
+    /** @return the id REF points to, following symbolic refs, or null if
+     * the ref does not exist. */
+    public ObjectId resolve(String ref) {
+        String content = refs.read(ref);
+        if (content == null) {
+            return null;
+        } else if (content.startsWith(Data.REF_PREFIX)) {
+            return resolve(content.substring(Data.REF_PREFIX_LEN));
+        }
+        return ObjectId.fromHex(content);
+    }
+
+    /** @return the branch the HEAD points to, e.g. "master", or null if the
+     * HEAD is detached. */
+    public String headBranch() {
+        String content = refs.read("HEAD");
+        String prefix = Data.REF_PREFIX + "refs/heads/";
+        return content != null && content.startsWith(prefix) ? content
+            .substring(prefix.length()) : null;
+    }
+
+    /** @return true if BRANCH is checked out in one of the worktrees. */
+    public boolean isCheckedOut(String branch) {
+        return Worktree.checkedOut(gitletDir, branch) != null;
+    }
+
+    /** Calls ACTION with the name, relative to PREFIX, and the id of every
+     * ref under PREFIX, in sorted order. */
+    public void forEachRef(String prefix, BiConsumer<String, ObjectId>
+        action) {
+        refs.forEach(prefix, name -> action.accept(name, resolve(prefix
+            + name)));
+    }
+
+    /** Moves REF from EXPECTED, null if it must not exist, to ID. */
+    public void updateRef(String ref, ObjectId expected, ObjectId id) {
+        refs.compareAndSwap(ref, expected == null ? null : expected
+            .toString(), id.toString());
+    }
+}
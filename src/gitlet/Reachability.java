@@ -0,0 +1,170 @@
+/* This class computes the sets of objects reachable from commits, as bitmaps
+ * over the objects of a BitmapIndex. A walk marks a commit, the trees and
+ * blobs of its snapshot and then its parents. It stops at every object which
+ * is already marked, since everything reachable from a marked object is
+ * marked too, and at every commit which has a bitmap, either in the index
+ * or in the index of the previous gc, whose bitmap is merged instead. So
+ * only the commits made since the last gc are walked. */
+
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class Reachability {
+    private final BitmapIndex index;
+    private final BitmapIndex previous;
+    /* maps the numbers of PREVIOUS to the numbers of INDEX, lazily */
+    private int[] previousMap;
+
+    /** @param index the objects to number, the computed bitmaps are added
+     * to it.
+     * @param previous the index of the last gc, whose bitmaps are reused. */
+    public Reachability(BitmapIndex index, BitmapIndex previous) {
+        this.index = index;
+        this.previous = previous;
+    }
+
+    /** Computes the bitmaps of COMMITS and adds them to the index. The
+     * commits are handled in topological order, so the walk from a commit
+     * stops at the bitmaps of its ancestors among COMMITS. */
+    public void addBitmaps(Collection<ObjectId> commits) {
+        Set<ObjectId> wanted = new HashSet<>(commits);
+        for (ObjectId commit : topologicalOrder(commits)) {
+            if (wanted.contains(commit) && index.get(commit) == null) {
+                BitSet bits = new BitSet(index.size());
+                walk(commit, bits);
+                index.put(commit, bits);
+            }
+        }
+    }
+
+    /** @return the objects reachable from COMMIT. */
+    public BitSet commit(ObjectId commit) {
+        BitSet bits = new BitSet(index.size());
+        walk(commit, bits);
+        return bits;
+    }
+
+    /** Marks in BITS the objects reachable from the object ID of any
+     * type. Objects missing from the index are ignored. */
+    public void mark(ObjectId id, BitSet bits) {
+        if (index.indexOf(id) < 0) {
+            return;
+        }
+        switch (Data.getObjectType(id)) {
+            case "commit":
+                walk(id, bits);
+                break;
+            case "tree":
+                markTree(id, bits);
+                break;
+            default:
+                markBlob(id, bits);
+        }
+    }
+
+    /** Marks in BITS the objects reachable from the commit START. */
+    private void walk(ObjectId start, BitSet bits) {
+        Deque<ObjectId> commits = new ArrayDeque<>();
+        commits.push(start);
+        while (!commits.isEmpty()) {
+            ObjectId commit = commits.pop();
+            int i = index.indexOf(commit);
+            if (i < 0 || bits.get(i)) {
+                continue;
+            }
+            BitSet known = known(commit);
+            if (known != null) {
+                bits.or(known);
+                continue;
+            }
+            bits.set(i);
+            markTree(Data.getCommitTree(commit), bits);
+            for (ObjectId parent : Data.getCommitParents(commit)) {
+                commits.push(parent);
+            }
+        }
+    }
+
+    private void markTree(ObjectId tree, BitSet bits) {
+        int i = index.indexOf(tree);
+        if (i < 0 || bits.get(i)) {
+            return;
+        }
+        bits.set(i);
+        for (TreeFormat.Cursor c = Data.treeCursor(tree); c.next();) {
+            if (c.isTree()) {
+                markTree(c.id(), bits);
+            } else {
+                markBlob(c.id(), bits);
+            }
+        }
+    }
+
+    /** Marks the blob ID, and its chunks if it is a chunked blob. */
+    private void markBlob(ObjectId blob, BitSet bits) {
+        int i = index.indexOf(blob);
+        if (i < 0 || bits.get(i)) {
+            return;
+        }
+        bits.set(i);
+        if ("chunked".equals(Data.getObjectType(blob))) {
+            Data.forEachChunk(blob, chunk -> markBlob(chunk, bits));
+        }
+    }
+
+    /** @return the bitmap of COMMIT in the index or in the previous index,
+     * or null if it has none. */
+    private BitSet known(ObjectId commit) {
+        BitSet bitmap = index.get(commit);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        BitSet old = previous.get(commit);
+        if (old == null) {
+            return null;
+        }
+        if (previousMap == null) {
+            previousMap = previous.mapTo(index);
+        }
+        bitmap = BitmapIndex.translate(old, previousMap);
+        index.put(commit, bitmap);
+        return bitmap;
+    }
+
+    /** @return COMMITS and their ancestors without a bitmap, parents before
+     * children. The commits with a bitmap end the walk. */
+    private List<ObjectId> topologicalOrder(Collection<ObjectId> commits) {
+        List<ObjectId> order = new ArrayList<>();
+        Set<ObjectId> entered = new HashSet<>();
+        Set<ObjectId> done = new HashSet<>();
+        Deque<ObjectId> stack = new ArrayDeque<>(commits);
+        while (!stack.isEmpty()) {
+            ObjectId commit = stack.peek();
+            if (done.contains(commit)) {
+                stack.pop();
+            } else if (entered.add(commit)) {
+                // the parents are finished before the commit is popped again
+                if (index.indexOf(commit) >= 0 && known(commit) == null) {
+                    for (ObjectId parent : Data.getCommitParents(commit)) {
+                        if (!entered.contains(parent)) {
+                            stack.push(parent);
+                        }
+                    }
+                }
+            } else {
+                stack.pop();
+                done.add(commit);
+                order.add(commit);
+            }
+        }
+        return order;
+    }
+}
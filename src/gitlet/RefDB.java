@@ -0,0 +1,283 @@
+/* This class implements the ref database of a gitlet repository.
+ * A ref is either a loose file under the .gitlet directory, e.g.
+ * .gitlet/refs/tags/v1, or a line of the packed-refs file. The packed-refs
+ * file is sorted by ref name, so it is loaded once per command into two
+ * parallel arrays and searched with binary search. Loose refs always override
+ * the packed ones.
+ * Refs are updated with compare-and-swap under the lock of the ref, so two
+ * processes can never silently overwrite each other's update.
+ * The refs are shared by all the worktrees of a repository, except HEAD,
+ * which each worktree keeps in its own directory. */
+
+package gitlet;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import static gitlet.Utils.*;
+
+public class RefDB {
+    public static final String PACKED_REFS = "packed-refs";
+    private static final String PACKED_HEADER = "# pack-refs with: sorted\n";
+
+    private final File gitletDir;
+    /* the directory of the HEAD of the worktree */
+    private final File worktreeDir;
+    private final File packedFile;
+    /* The sorted names and the corresponding values of the packed refs,
+     * loaded lazily. */
+    private String[] packedNames;
+    private String[] packedValues;
+    /* The modification time and the length of the loaded packed-refs. */
+    private long packedModified;
+    private long packedLength;
+    /* Caches the loose refs which have been read or written. A null value
+     * means that the loose ref does not exist. */
+    private final Map<String, String> looseCache = new HashMap<>();
+
+    public RefDB(File gitletDir) {
+        this(gitletDir, gitletDir);
+    }
+
+    /** @param gitletDir the directory of the shared refs.
+     * @param worktreeDir the directory of the HEAD. */
+    public RefDB(File gitletDir, File worktreeDir) {
+        this.gitletDir = gitletDir;
+        this.worktreeDir = worktreeDir;
+        this.packedFile = join(gitletDir, PACKED_REFS);
+    }
+
+    /** @return the file of the loose ref REF. */
+    private File refFile(String ref) {
+        return join("HEAD".equals(ref) ? worktreeDir : gitletDir, ref);
+    }
+
+    /** @param ref the path of the ref, relative to the .gitlet directory,
+     * e.g. "refs/heads/master".
+     * @return the raw content of the ref, or null if the ref does not exist.
+     */
+    public String read(String ref) {
+        String loose = readLoose(ref);
+        if (loose != null) {
+            return loose;
+        }
+        String packed = readPacked(ref);
+        if (packed == null && refreshPacked()) {
+            // the ref may have been packed by another process meanwhile
+            packed = readPacked(ref);
+        }
+        return packed;
+    }
+
+    public boolean exists(String ref) {
+        return read(ref) != null;
+    }
+
+    /** Writes the content to the loose ref, which overrides the packed ref
+     * with the same name. */
+    public void write(String ref, String content) {
+        LockFile.write(refFile(ref), content);
+        looseCache.put(ref, content);
+    }
+
+    /** Writes the content to the ref only if the current content of the ref
+     * is EXPECTED, and fails cleanly otherwise. The ref is locked while it is
+     * compared, so the check and the update are atomic across processes.
+     * @param expected the expected content, or null if the ref must not
+     * exist yet. */
+    public void compareAndSwap(String ref, String expected, String content) {
+        LockFile lock = new LockFile(refFile(ref));
+        lock.lock();
+        try {
+            looseCache.remove(ref);
+            refreshPacked();
+            String actual = read(ref);
+            if (!Objects.equals(actual, expected)) {
+                error(expected == null ? String.format("ref '%s' already "
+                    + "exists", ref) : String.format("cannot update ref '%s': "
+                    + "is at %s but expected %s", ref, actual, expected));
+            }
+            lock.write(content.getBytes(StandardCharsets.UTF_8));
+            lock.commit();
+        } finally {
+            lock.rollback();    // no-op if committed
+        }
+        looseCache.put(ref, content);
+    }
+
+    private String readLoose(String ref) {
+        if (looseCache.containsKey(ref)) {
+            return looseCache.get(ref);
+        }
+        File file = refFile(ref);
+        String content = file.isFile() ? readContentsAsString(file)
+            : null;
+        looseCache.put(ref, content);
+        return content;
+    }
+
+    private String readPacked(String ref) {
+        loadPacked();
+        int i = Arrays.binarySearch(packedNames, ref);
+        return i >= 0 ? packedValues[i] : null;
+    }
+
+    private void loadPacked() {
+        if (packedNames != null) {
+            return;
+        }
+        packedModified = packedFile.lastModified();
+        packedLength = packedFile.length();
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        if (packedFile.isFile()) {
+            String content = readContentsAsString(packedFile);
+            for (String line : content.split("\n")) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');     // oid name
+                values.add(line.substring(0, space));
+                names.add(line.substring(space + 1));
+            }
+        }
+        packedNames = names.toArray(new String[0]);
+        packedValues = values.toArray(new String[0]);
+    }
+
+    /** Reloads the packed refs if the packed-refs file has been replaced
+     * since it was loaded.
+     * @return true if the packed refs were reloaded. */
+    private boolean refreshPacked() {
+        long modified = packedFile.lastModified();
+        long length = packedFile.length();
+        if (packedNames != null && modified == packedModified && length
+            == packedLength) {
+            return false;
+        }
+        packedNames = null;
+        packedModified = modified;
+        packedLength = length;
+        loadPacked();
+        return true;
+    }
+
+    /** Calls ACTION with the names of all the refs under PREFIX in sorted
+     * order. The names are relative to the prefix, e.g. forEach("refs/tags/",
+     * ...) gives "v1", "v2", ... The packed refs and the loose refs are
+     * merged on the fly, so nothing but the loose names is collected. */
+    public void forEach(String prefix, Consumer<String> action) {
+        loadPacked();
+        List<String> loose = listLoose(prefix);
+        int i = lowerBound(prefix);
+        int j = 0;
+        while (j < loose.size() || i < packedNames.length
+            && packedNames[i].startsWith(prefix)) {
+            String packed = i < packedNames.length && packedNames[i]
+                .startsWith(prefix) ? packedNames[i].substring(prefix
+                .length()) : null;
+            String next = j < loose.size() ? loose.get(j) : null;
+            int cmp = packed == null ? 1 : next == null ? -1 : packed
+                .compareTo(next);
+            if (cmp <= 0) {
+                action.accept(packed);
+                i += 1;
+                j += cmp == 0 ? 1 : 0;
+            } else {
+                action.accept(next);
+                j += 1;
+            }
+        }
+    }
+
+    /** @return the index of the first packed ref which is not less than
+     * NAME. */
+    private int lowerBound(String name) {
+        int lo = 0;
+        int hi = packedNames.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (packedNames[mid].compareTo(name) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** @return the sorted names of the loose refs under PREFIX, relative to
+     * the prefix. */
+    private List<String> listLoose(String prefix) {
+        File dir = join(gitletDir, prefix);
+        int base = dir.getAbsolutePath().length() + 1;
+        List<String> names = new ArrayList<>();
+        for (File file : getFiles(dir)) {
+            if (!file.getName().endsWith(LockFile.LOCK_SUFFIX)) {
+                names.add(file.getAbsolutePath().substring(base));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /** Moves all the loose refs under refs/ into the packed-refs file.
+     * Symbolic refs are left loose. A loose ref is only deleted if it has not
+     * been updated by another process since it was packed. */
+    public void pack() {
+        LockFile packedLock = new LockFile(packedFile);
+        packedLock.lock();
+        Map<String, String> refs = new HashMap<>();
+        List<String> packedLoose = new ArrayList<>();
+        try {
+            looseCache.clear();
+            refreshPacked();
+            forEach("refs/", name -> refs.put("refs/" + name, read("refs/"
+                + name)));
+            List<String> names = new ArrayList<>();
+            for (String name : refs.keySet()) {
+                if (refs.get(name).startsWith(Data.REF_PREFIX)) {
+                    continue;
+                }
+                names.add(name);
+                if (join(gitletDir, name).isFile()) {
+                    packedLoose.add(name);
+                }
+            }
+            Collections.sort(names);
+            StringBuilder content = new StringBuilder(PACKED_HEADER);
+            for (String name : names) {
+                content.append(refs.get(name)).append(' ').append(name)
+                    .append('\n');
+            }
+            packedLock.write(content.toString().getBytes(StandardCharsets
+                .UTF_8));
+            packedLock.commit();
+        } finally {
+            packedLock.rollback();    // no-op if committed
+        }
+        for (String name : packedLoose) {
+            File loose = join(gitletDir, name);
+            LockFile lock = new LockFile(loose);
+            lock.lock();
+            try {
+                if (loose.isFile() && readContentsAsString(loose).equals(refs
+                    .get(name))) {
+                    deleteFile(loose);
+                }
+            } finally {
+                lock.rollback();
+            }
+        }
+        packedNames = null;
+        looseCache.clear();
+    }
+}
@@ -1,10 +1,31 @@
-/* This class implements the repository operations. */
+/* This class implements the repository operations. It is the API of Gitlet,
+ * used by the command line, see Main, and by the programs which embed it.
+ * A Repository is opened on a directory, the root of a worktree or any
+ * directory under it, and the relative paths given to its methods are
+ * relative to that directory. Each method runs as one command: in a context
+ * of its own, see Context, committing the transaction of its writes, or
+ * rolling it back if it fails. The methods return their results instead of
+ * printing them, and throw a GitletException instead of exiting. A
+ * repository may be used by several threads at once, which share nothing
+ * but the files, as processes would, and a process may open any number of
+ * repositories. */
 
 package gitlet;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.regex.*;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static gitlet.Utils.*;
 import static gitlet.Wrapper.*;
@@ -16,143 +37,360 @@ public class Repository {
         validTypes.add("commit");
         validTypes.add("tree");
         validTypes.add("blob");
+        validTypes.add("chunked");
     }
 
-    // init
-    public static void init() {
-        Data.assertNotInitialized();
-        Base.init();
+    /* the directory the repository is opened on */
+    private final File dir;
+
+    private Repository(File dir) {
+        this.dir = dir.getAbsoluteFile();
+    }
+
+    /** @return the repository containing the directory DIR. */
+    public static Repository open(File dir) {
+        Repository repo = new Repository(dir);
+        repo.run(() -> { });
+        return repo;
+    }
+
+    /** Runs COMMAND in a new context of the directory DIR, which may not be
+     * in a repository yet, and ends its transaction: it is committed if
+     * COMMAND returns, and rolled back if it throws.
+     * @return the result of COMMAND. */
+    private static <T> T call(File dir, Supplier<T> command) {
+        Context context = new Context(dir);
+        try {
+            return context.call(() -> {
+                T result;
+                try {
+                    result = command.get();
+                } catch (RuntimeException | Error e) {
+                    Transaction.rollback();
+                    throw e;
+                }
+                Transaction.commit();
+                return result;
+            });
+        } finally {
+            context.close();
+        }
+    }
+
+    /** Runs COMMAND on this repository, see call.
+     * @return the result of COMMAND. */
+    private <T> T call(Supplier<T> command) {
+        return call(dir, () -> {
+            Data.assertInitialized();
+            return command.get();
+        });
+    }
+
+    private void run(Runnable command) {
+        call(() -> {
+            command.run();
+            return null;
+        });
+    }
+
+    /** init - Creates a repository in DIR, whose objects are stored by
+     * BACKEND, see ObjectStore, or by the default store if it is null. */
+    public static Repository init(File dir, String backend) {
+        call(dir, () -> {
+            Data.assertNotInitialized();
+            assertCondition(backend == null || ObjectStore.isBackend(backend),
+                "Unknown object store '" + backend + "'");
+            Base.init(backend == null ? "loose" : backend);
+            return null;
+        });
+        return new Repository(dir);
     }
 
     // hash-object
-    public static void hashObject(String filename) {
-        Data.assertInitialized();
-        System.out.println(Base.hashBlob(filename));
+    public ObjectId hashObject(String filename) {
+        return call(() -> Base.hashBlob(filename));
+    }
+
+    /** cat-file - Writes the content of the object NAME of TYPE to OUT. */
+    public void catFile(String name, String type, WritableByteChannel out) {
+        run(() -> {
+            assertCondition(validTypes.contains(type), "Invalid type: "
+                + type);
+            ObjectId oid = parseOid(name);
+            Data.assertObjectExists(oid);
+            if ("blob".equals(type)) {      // reassembles chunked blobs
+                Data.copyBlob(oid, out);
+            } else if ("tree".equals(type)) {   // binary, written as text
+                StringBuilder text = new StringBuilder();
+                Data.forEachTreeEntry(oid, (entryType, id, entryName) -> text
+                    .append(String.format("%s %s %s\n", entryType, id,
+                    entryName)));
+                writeFully(out, text.toString());
+            } else {
+                Data.transferObject(oid, type, out);
+            }
+        });
     }
 
-    // cat-file
-    public static void catFile(String oid, String type) {
-        Data.assertInitialized();
-        assertCondition(validTypes.contains(type), "Invalid type: " + type);
-        Data.assertObjectExists(oid);
-        writeContents(System.out, Data.readObject(oid, type));
+    private static void writeFully(WritableByteChannel out, String text) {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets
+            .UTF_8));
+        try {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
     }
 
-    /* add - Stages a file to the gitlet repository. Staging an already-staged 
-     * file overwrites the previous entry in the staging area with the new 
+    /* add - Stages a file to the gitlet repository. Staging an already-staged
+     * file overwrites the previous entry in the staging area with the new
      * contents. */
-    public static void add(String filename) {
-        Data.assertInitialized();
-        Base.add(filename);
+    public void add(String filename) {
+        run(() -> Base.add(filename));
     }
 
     /* rm - Unstages a file from the gitlet repository and remove the file from
-     * the working directory if the user has not already done so. */  
-    public static void rm(String filename) {
-        Data.assertInitialized();
-        Base.rm(filename);
+     * the working directory if the user has not already done so. */
+    public void rm(String filename) {
+        run(() -> Base.rm(filename));
     }
 
-    /* write-tree - Create a tree object from the current index, and print the
-     * id of the new tree object. */
-    public static void writeTree() {
-        Data.assertInitialized();
-        System.out.println(Base.writeTree());
+    /* write-tree - Create a tree object from the current index.
+     * @return the id of the new tree object. */
+    public ObjectId writeTree() {
+        return call(Base::writeTree);
     }
 
     // commit
-    public static void commit(String message) {
-        Data.assertInitialized();
-        System.out.println(Base.commit(message));
+    public ObjectId commit(String message) {
+        return call(() -> Base.commit(message));
     }
 
     // log
-    public static void log() {
-        Data.assertInitialized();
-        System.out.print(Base.log());
+    public String log() {
+        return call(Base::log);
     }
 
     /** ls-tree - List the contents of a tree object recursively. This command
      * implements the git ls-tree -r command. */
-    public static void lsTree(String oid) {
-        Data.assertInitialized();
-        Data.assertObjectExists(oid);
-        System.out.println(Base.lsTree(oid));
+    public String lsTree(String name) {
+        return call(() -> {
+            ObjectId oid = parseOid(name);
+            Data.assertObjectExists(oid);
+            return Base.lsTree(oid);
+        });
     }
 
     /** checkout - Convert the working directory to the specified commit.
      * Only when all the files that will be overwritten have been staged, the
-     * checkout operation will succeed, other files will be left unchanged. */
-    public static void checkout(String name) {
-        Data.assertInitialized();
-        if (Data.isBranch(name)) {
-            Base.checkoutBranch(name);
-            System.out.printf("Switched to branch '%s'.\n", name);
-        } else if (Data.isTag(name)) {
-            String oid = getTag(name);
-            Base.checkoutCommit(oid);
-            System.out.printf("Switched to tag '%s'.\n", name);
-        } else if (Data.isCommitId(name)) {
-            Data.assertObjectExists(name);
-            Base.checkoutCommit(name);
-            System.out.printf("Switched to commit '%s'.\n", name);
-        } else {
+     * checkout operation will succeed, other files will be left unchanged.
+     * @return the message telling what is checked out. */
+    public String checkout(String name) {
+        return call(() -> {
+            if (Data.isBranch(name)) {
+                Base.checkoutBranch(name);
+                return String.format("Switched to branch '%s'.", name);
+            } else if (Data.isTag(name)) {
+                ObjectId oid = getTag(name);
+                Base.checkoutCommit(oid);
+                return String.format("Switched to tag '%s'.", name);
+            } else if (Data.isCommitId(name)) {
+                ObjectId oid = ObjectId.fromHex(name);
+                Data.assertObjectExists(oid);
+                Base.checkoutCommit(oid);
+                return String.format("Switched to commit '%s'.", name);
+            }
             error(String.format("pathspec '%s' did not match any file(s) "
                     + "known to gitlet", name));
-        }
+            return null;
+        });
     }
 
     // status
-    public static void status() {
-        Data.assertInitialized();
-        System.out.print(Base.status());
+    public String status() {
+        return call(Base::status);
     }
 
-    // tag 
-    public static void tag(String name) {
-        Data.assertInitialized();
-        Base.createTag(name, Data.getHead());
+    // tag
+    public void tag(String name) {
+        run(() -> Base.createTag(name, Data.getHead()));
     }
 
     // tag
-    public static void tag(String tagname, String name) {
-        Data.assertInitialized();
-        String oid = getOid(name);
-        Data.assertObjectExists(oid);
-        Base.createTag(tagname, oid);
+    public void tag(String tagname, String name) {
+        run(() -> {
+            ObjectId oid = getOid(name);
+            Data.assertObjectExists(oid);
+            Base.createTag(tagname, oid);
+        });
     }
 
     // tag-list
-    public static void tag() {
-        Data.assertInitialized();
-        System.out.print(Base.tagList());
+    public List<String> tags() {
+        return call(() -> {
+            List<String> tags = new ArrayList<>();
+            Base.forEachTag(tags::add);
+            return tags;
+        });
     }
 
     // branch-list
-    public static void branch() {
-        Data.assertInitialized();
-        System.out.print(Base.branchList());
+    public List<String> branches() {
+        return call(() -> {
+            List<String> branches = new ArrayList<>();
+            Base.forEachBranch(branches::add);
+            return branches;
+        });
     }
 
     // branch
-    public static void branch(String name) {
-        Data.assertInitialized();
-        Base.createBranch(name, Data.getHead());
+    public void branch(String name) {
+        run(() -> Base.createBranch(name, Data.getHead()));
+    }
+
+    /** merge-base - @return the common ancestor of the commits NAME1 and
+     * NAME2, or null if they have none. */
+    public ObjectId mergeBase(String name1, String name2) {
+        return call(() -> {
+            ObjectId oid1 = getOid(name1);
+            ObjectId oid2 = getOid(name2);
+            Data.assertObjectExists(oid1);
+            Data.assertObjectExists(oid2);
+            return Base.mergeBase(oid1, oid2);
+        });
+    }
+
+    /** pack-refs - Moves the loose refs into the sorted packed-refs file,
+     * which is loaded once and searched with binary search. */
+    public void packRefs() {
+        run(Data::packRefs);
+    }
+
+    /** gc - Packs the refs and deletes the unreachable objects which are
+     * older than the grace period "gc.pruneExpire", in seconds. */
+    public void gc() {
+        run(Base::gc);
+    }
+
+    /** prune - Deletes all the unreachable objects now. */
+    public void prune() {
+        run(() -> Base.prune(System.currentTimeMillis()));
+    }
+
+    /** fsck - Verifies the hash, the header and the references of every
+     * object and gives the corrupt, missing and dangling objects to REPORT.
+     * @return true if no object is corrupt or missing. */
+    public boolean fsck(Consumer<String> report) {
+        return call(() -> Fsck.check(report));
+    }
+
+    /** stats - Measures the object store: the objects by type and by
+     * storage, the largest blobs, the trees, the depth of the history and the
+     * estimated savings, see Stats. */
+    public Stats stats() {
+        return call(Stats::collect);
+    }
+
+    /** remote add - Registers the repository at PATH as the remote NAME. */
+    public void remoteAdd(String name, String path) {
+        run(() -> Base.addRemote(name, path));
+    }
+
+    /** clone - Copies the repository at PATH into the directory DIR, which
+     * must not be a repository. The objects are hardlinked when both are on
+     * the same filesystem.
+     * @return the report of the transfer. */
+    public static String clone(File dir, String path) {
+        return call(dir, () -> {
+            Data.assertNotInitialized();
+            return Base.clone(path);
+        });
+    }
+
+    /** fetch - Copies the objects of the remote NAME which are missing here
+     * and updates the remote-tracking branches. */
+    public String fetch(String name) {
+        return call(() -> Base.fetch(name));
+    }
+
+    /** push - Copies the objects of BRANCH which are missing in the remote
+     * NAME and fast-forwards the branch of the remote. */
+    public String push(String name, String branch) {
+        return call(() -> Base.push(name, branch));
+    }
+
+    /** sparse-checkout set - Restricts the working directory to the files
+     * of DIRS, their subdirectories and the parent directories. */
+    public void sparseCheckoutSet(List<String> dirs) {
+        run(() -> Base.sparseCheckout(SparseCheckout.of(dirs)));
+    }
+
+    /** sparse-checkout disable - Writes back all the files of the index. */
+    public void sparseCheckoutDisable() {
+        run(() -> Base.sparseCheckout(SparseCheckout.ALL));
+    }
+
+    // sparse-checkout list
+    public List<String> sparseCheckoutList() {
+        return call(() -> SparseCheckout.read().dirs());
+    }
+
+    /** worktree add - Checks out BRANCH in a new linked worktree in PATH,
+     * which shares the objects and the refs of the repository. */
+    public void worktreeAdd(String path, String branch) {
+        run(() -> Base.addWorktree(path, branch));
+    }
+
+    // worktree list
+    public String worktreeList() {
+        return call(Base::listWorktrees);
+    }
+
+    /** worktree remove - Deletes the linked worktree in PATH, which must
+     * not have changes. */
+    public void worktreeRemove(String path) {
+        run(() -> Base.removeWorktree(path));
+    }
+
+    /** blame - @return each line of FILENAME in the HEAD with the commit
+     * which last changed it. */
+    public String blame(String filename) {
+        return call(() -> Base.blame(filename));
+    }
+
+    /** fast-import - Imports blobs and commits from IN into a pack and
+     * updates the refs of the imported branches. The progress records are
+     * printed to PROGRESS. */
+    public String fastImport(InputStream in, PrintStream progress) {
+        return call(() -> Base.fastImport(in, progress));
+    }
+
+    /** archive - Writes the snapshot of the commit NAME to OUT as an
+     * archive of FORMAT, "tar" or "zip". */
+    public void archive(String name, String format, WritableByteChannel
+        out) {
+        run(() -> Archive.write(getOid(name), format, out));
     }
 
-    // merge-base
-    public static void mergeBase(String name1, String name2) {
-        Data.assertInitialized();
-        String oid1 = getOid(name1);
-        String oid2 = getOid(name2);
-        Data.assertObjectExists(oid1);
-        Data.assertObjectExists(oid2);
-        System.out.println(Base.mergeBase(oid1, oid2));
+    /** grep - Prints to OUT the lines matching the regular expression
+     * PATTERN in the files of the commit NAME, as "path:line".
+     * @return the number of lines printed. */
+    public int grep(String pattern, String name, PrintStream out) {
+        return call(() -> {
+            Pattern regex = null;
+            try {
+                regex = Pattern.compile(pattern);
+            } catch (PatternSyntaxException e) {
+                error("Invalid pattern: " + pattern);
+            }
+            return Grep.search(regex, getOid(name), out);
+        });
     }
 
     // merge
-    public static void merge(String name) {
-        Data.assertInitialized();
-        System.out.println(Base.merge(name));
+    public String merge(String name) {
+        return call(() -> Base.merge(name));
     }
 }
@@ -0,0 +1,150 @@
+/* This class reads the sparse checkout patterns of
+ * ".gitlet/info/sparse-checkout", one directory per line, relative to the
+ * repository root. The patterns have the semantics of the cone mode of git:
+ * the working directory contains the files of the root directory, all the
+ * files under a listed directory and the files directly in the parents of a
+ * listed directory. Whether a path is in the cone only depends on its
+ * directories, so a whole directory outside of the cone is skipped without
+ * looking at its files.
+ * The entries of the index outside of the cone are skip-worktree: they are
+ * never written to the working directory nor scanned by status, and checkout,
+ * add, commit and merge keep them as they are in the index. Without the
+ * file, every path is in the cone. */
+
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+public class SparseCheckout {
+    /* the full checkout */
+    public static final SparseCheckout ALL = new SparseCheckout(null);
+
+    /* the listed directories, or null for the full checkout */
+    private final Set<String> dirs;
+    /* the root directory "" and the parents of the listed directories */
+    private final Set<String> parents = new HashSet<>();
+
+    private SparseCheckout(Collection<String> dirs) {
+        this.dirs = dirs == null ? null : new TreeSet<>(dirs);
+        parents.add("");
+        if (dirs != null) {
+            for (String dir : dirs) {
+                for (int i = dir.indexOf('/'); i >= 0; i = dir.indexOf('/', i
+                    + 1)) {
+                    parents.add(dir.substring(0, i));
+                }
+            }
+        }
+    }
+
+    /** @return the file of the patterns of the worktree whose directory
+     * is GITLETDIR. */
+    private static File file(File gitletDir) {
+        return join(gitletDir, "info", "sparse-checkout");
+    }
+
+    /** @return the patterns of the worktree. */
+    public static SparseCheckout read() {
+        return readFile(file(Data.gitletDir()));
+    }
+
+    /** @return the patterns of the worktree whose directory is GITLETDIR,
+     * each worktree has its own. */
+    public static SparseCheckout read(File gitletDir) {
+        return readFile(file(gitletDir));
+    }
+
+    private static SparseCheckout readFile(File file) {
+        if (!file.isFile()) {
+            return ALL;
+        }
+        List<String> dirs = new ArrayList<>();
+        for (String line : readContentsAsString(file).split("\n")) {
+            if (!line.isBlank()) {
+                dirs.add(line.trim());
+            }
+        }
+        return new SparseCheckout(dirs);
+    }
+
+    /** @return the cone of the directories DIRS, given relative to the
+     * repository root, e.g. "src/main" or "src/main/". */
+    public static SparseCheckout of(Collection<String> dirs) {
+        List<String> normalized = new ArrayList<>();
+        for (String dir : dirs) {
+            String path = dir.replaceAll("^(\\./)+|/+$", "");
+            assertCondition(!path.isEmpty() && !path.startsWith("/") && !path
+                .startsWith("../"), String.format("'%s' is not a directory "
+                + "of the repository", dir));
+            normalized.add(path);
+        }
+        return new SparseCheckout(normalized);
+    }
+
+    /** Saves the patterns, or deletes the file for the full checkout. */
+    public void write() {
+        File file = file(Data.gitletDir());
+        if (dirs == null) {
+            deleteFile(file);
+        } else {
+            LockFile.write(file, String.join("\n", dirs) + "\n");
+        }
+    }
+
+    public boolean isFull() {
+        return dirs == null;
+    }
+
+    /** @return the listed directories in sorted order. */
+    public List<String> dirs() {
+        return dirs == null ? List.of() : new ArrayList<>(dirs);
+    }
+
+    /** @return true if the file PATH is in the cone. */
+    public boolean contains(String path) {
+        if (dirs == null) {
+            return true;
+        }
+        int slash = path.lastIndexOf('/');
+        if (parents.contains(slash < 0 ? "" : path.substring(0, slash))) {
+            return true;
+        }
+        return underListedDir(path);
+    }
+
+    /** @return true if the directory DIR may contain files of the cone. */
+    public boolean containsDir(String dir) {
+        return dirs == null || parents.contains(dir) || dirs.contains(dir)
+            || underListedDir(dir);
+    }
+
+    /** @return true if one of the directories of PATH is listed. */
+    private boolean underListedDir(String path) {
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i
+            + 1)) {
+            if (dirs.contains(path.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the entries of TABLE in the cone. */
+    public PathTable filter(PathTable table) {
+        return dirs == null ? table : table.filter(this::contains);
+    }
+
+    /** @return the skip-worktree entries of TABLE, outside of the cone. */
+    public PathTable skipped(PathTable table) {
+        return dirs == null ? PathTable.EMPTY : table.filter(path
+            -> !contains(path));
+    }
+}
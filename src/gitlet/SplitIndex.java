@@ -0,0 +1,271 @@
+/* This class implements the split index, enabled by "index.split = true"
+ * in the config, for the scripts which stage many files one at a time.
+ * The entries are kept in a base, "sharedindex.<sha1>" next to the index,
+ * named by the hash of its content and never changed, and the index file
+ * becomes a journal of the changes made since:
+ *     sharedindex.<sha1>
+ *     D <path>             removes the file or the directory PATH
+ *     A <id> <path>        puts the entry PATH
+ *     .                    ends a change
+ * The first line names the base, and can not be an entry, which always has
+ * a space. A change, e.g. an add of a directory, is several records ended by
+ * a line ".", and counts only once its end is written. add and rm append
+ * their change to the journal under the lock of the index, without reading
+ * the index, so their cost depends on the size of the change and not of the
+ * index. Once the journal is larger than a
+ * quarter of its base, and than JOURNAL_MIN bytes, it is folded: the entries
+ * are written to a new base and the index is replaced by an empty journal
+ * naming it, at once, by the lock file. Each entry is thus rewritten a
+ * bounded number of times on average. The other writers of the index, e.g.
+ * checkout, always write a new base.
+ * A reader which reads the journal during an append, or after a crash
+ * during one, finds an incomplete last change, which it ignores and which
+ * the next append cuts. A reader which finds that its base was
+ * just deleted by a fold reads the index again. */
+
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+public class SplitIndex {
+    public static final String CONFIG_KEY = "index.split";
+    static final String BASE_PREFIX = "sharedindex.";
+    private static final long JOURNAL_MIN = 4096;
+    /* ends a change, with the newline of the line before */
+    private static final String END = "\n.\n";
+    /* the length of the first line of a journal */
+    private static final int HEADER_LENGTH = BASE_PREFIX.length()
+        + ObjectId.HEX_LENGTH + 1;
+
+    /** @return true if the index of the repository is to be split. */
+    public static boolean enabled() {
+        return Config.getBoolean(CONFIG_KEY, false);
+    }
+
+    /** @return true if CONTENT, read from an index file, is a journal. */
+    static boolean isJournal(String content) {
+        int end = content.indexOf('\n');
+        String first = end < 0 ? content : content.substring(0, end);
+        return first.startsWith(BASE_PREFIX) && first.indexOf(' ') < 0;
+    }
+
+    /** @return the entries of the index FILE, whose content is the journal
+     * CONTENT. */
+    static PathTable read(File file, String content) {
+        while (true) {
+            File base = join(file.getParentFile(), content.substring(0,
+                content.indexOf('\n')));
+            try {
+                byte[] bytes = Files.readAllBytes(base.toPath());
+                return apply(Data.parseIndex(new String(bytes,
+                    StandardCharsets.UTF_8)), content);
+            } catch (NoSuchFileException e) {
+                String again = readContentsAsString(file);
+                assertCondition(!again.equals(content), "Missing shared "
+                    + "index: " + base.getPath());
+                if (!isJournal(again)) {
+                    return Data.parseIndex(again);
+                }
+                content = again;    // folded meanwhile
+            } catch (IOException e) {
+                throw new GitletIOException(e);
+            }
+        }
+    }
+
+    /** @return the entries of BASE changed by the complete changes of the
+     * JOURNAL. */
+    private static PathTable apply(PathTable base, String journal) {
+        TreeMap<String, ObjectId> added = new TreeMap<>();
+        Set<String> removed = new HashSet<>();
+        int pathStart = 2 + ObjectId.HEX_LENGTH + 1;     // A <id> <path>
+        int start = journal.indexOf('\n') + 1;
+        int complete = journal.lastIndexOf(END);
+        complete = complete < start - 1 ? start : complete + END.length();
+        for (int end = journal.indexOf('\n', start); end >= 0 && end
+            < complete; end = journal.indexOf('\n', start)) {
+            String line = journal.substring(start, end);
+            if (line.equals(".")) {
+                // the end of a change, applied with the changes before
+            } else if (line.startsWith("A ") && line.length() > pathStart) {
+                added.put(line.substring(pathStart), ObjectId.fromHex(line
+                    .substring(2, pathStart - 1)));
+            } else if (line.startsWith("D ")) {
+                String path = line.substring(2);
+                if (path.isEmpty()) {
+                    added.clear();
+                } else {
+                    added.remove(path);
+                    // '0' is the character after '/'
+                    added.subMap(path + "/", path + "0").clear();
+                }
+                removed.add(path);
+            } else {
+                error("Invalid index journal entry: " + line);
+            }
+            start = end + 1;
+        }
+        if (!removed.isEmpty()) {
+            base = base.filter(path -> !isRemoved(removed, path));
+        }
+        return added.isEmpty() ? base : base.putAll(PathTable.of(added));
+    }
+
+    /** @return true if the file PATH or one of its directories was
+     * REMOVED. */
+    private static boolean isRemoved(Set<String> removed, String path) {
+        if (removed.contains("") || removed.contains(path)) {
+            return true;
+        }
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i
+            + 1)) {
+            if (removed.contains(path.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Removes the file or the directory PATH from the index FILE and puts
+     * ENTRIES, through LOCK, which must be held. The change is appended to
+     * the journal, unless the index is not split yet or the journal is due
+     * to be folded. */
+    static void append(File file, LockFile lock, String path, PathTable
+        entries) {
+        StringBuilder records = new StringBuilder("D ").append(path).append(
+            '\n');
+        for (PathTable.Cursor c = entries.cursor(); c.next();) {
+            records.append("A ").append(c.id()).append(' ').append(c.path())
+                .append('\n');
+        }
+        records.append(".\n");
+        byte[] bytes = records.toString().getBytes(StandardCharsets.UTF_8);
+        File base = readBase(file);
+        if (base == null || file.length() + bytes.length > Math.max(
+            JOURNAL_MIN, base.length() / 4)) {
+            write(file, lock, Data.readIndex(file).removeTree(path).putAll(
+                entries));
+            return;
+        }
+        Transaction.flushObjects();     // the entries refer to the new blobs
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = completeLength(channel);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                end += channel.write(buffer, end);
+            }
+            if (Transaction.durability() != Transaction.Durability.NONE) {
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** @return the base named by the journal FILE, from its first line
+     * only, or null if FILE is not a journal. */
+    private static File readBase(File file) {
+        byte[] header = new byte[HEADER_LENGTH];
+        int n = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                n = buffer.position();
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+        String first = new String(header, 0, n, StandardCharsets.UTF_8);
+        if (n < HEADER_LENGTH || !isJournal(first)) {
+            return null;
+        }
+        return join(file.getParentFile(), first.trim());
+    }
+
+    /** @return the length of the complete changes of the journal CHANNEL,
+     * which is cut there if a crash left a part of a change after them. */
+    private static long completeLength(FileChannel channel) throws
+        IOException {
+        long size = channel.size();
+        byte[] end = END.getBytes(StandardCharsets.UTF_8);
+        // the newline of the first line also ends the changes before
+        long first = HEADER_LENGTH - 1;
+        long complete = HEADER_LENGTH;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (long limit = size; limit - first >= end.length;) {
+            long start = Math.max(first, limit - buffer.capacity());
+            buffer.clear().limit((int) (limit - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException("Truncated index journal");
+                }
+            }
+            int found = lastIndexOf(buffer, end);
+            if (found >= 0) {
+                complete = start + found + end.length;
+                break;
+            }
+            // the windows overlap, for an end across two of them
+            limit = start == first ? first : start + end.length - 1;
+        }
+        if (complete < size) {
+            channel.truncate(complete);
+        }
+        return complete;
+    }
+
+    /** @return the position of the last PATTERN in BUFFER, up to its limit,
+     * or -1 if there is none. */
+    private static int lastIndexOf(ByteBuffer buffer, byte[] pattern) {
+        for (int i = buffer.limit() - pattern.length; i >= 0; i -= 1) {
+            int j = 0;
+            while (j < pattern.length && buffer.get(i + j) == pattern[j]) {
+                j += 1;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Writes INDEX to a new base and replaces the index FILE by an empty
+     * journal naming it, through LOCK, which must be held. */
+    static void write(File file, LockFile lock, PathTable index) {
+        byte[] content = Data.formatIndex(index).getBytes(StandardCharsets
+            .UTF_8);
+        String name = BASE_PREFIX + ObjectId.hash(content);
+        File base = join(file.getParentFile(), name);
+        if (!base.isFile()) {
+            LockFile.write(base, content);
+        }
+        lock.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+        lock.commit();
+        deleteBases(file, name);
+    }
+
+    /** Deletes the bases next to the index FILE, but the base KEPT, which
+     * may be null. */
+    static void deleteBases(File file, String kept) {
+        File[] bases = file.getParentFile().listFiles((dir, name) -> name
+            .startsWith(BASE_PREFIX) && !name.equals(kept) && !name.endsWith(
+            LockFile.LOCK_SUFFIX));
+        for (File base : bases == null ? new File[0] : bases) {
+            deleteFile(base);
+        }
+    }
+}
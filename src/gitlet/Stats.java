@@ -0,0 +1,447 @@
+/* This class measures the object store, to size a repository. Every object
+ * is opened once, on a pool of "stats.threads" threads, see ObjectScan:
+ * only the header of a blob is read, while
+ * the trees, commits and chunk manifests are read whole and parsed for their
+ * references. The report is then computed in memory:
+ * - the number and the bytes of the objects of each type, and by where they
+ *   are stored: loose or packed, or the backend of the store,
+ * - the largest blobs, a chunked blob counting its reassembled size and its
+ *   chunks not counting on their own,
+ * - the number of entries of the trees, and the length of the longest
+ *   chain of commits,
+ * - estimated savings: from compressing the objects, by deflating a sample
+ *   of about SAMPLE objects, from packing the loose objects, which each
+ *   waste the end of a filesystem block, and from pruning the objects which
+ *   are not reachable from the refs, the HEADs and the indexes.
+ * The bytes are the raw objects, header included, as the stores keep
+ * them. */
+
+package gitlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+import static gitlet.ObjectScan.*;
+
+public class Stats {
+    private static final int TOP = 10;
+    private static final int SAMPLE = 4096;
+    /* the bytes of a sampled object which are deflated */
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    private static final long BLOCK_SIZE = 4096;
+    private static final int[] NONE = new int[0];
+
+    private final BitmapIndex objects;
+    /* whether the objects are loose or packed, else stored by BACKEND */
+    private final boolean loose;
+    /* the packs of a loose store, else null */
+    private final Pack.Directory packs;
+    private final String backend;
+    private final byte[] types;
+    private final long[] sizes;
+    /* the reassembled size of the chunked blobs */
+    private final long[] blobSizes;
+    private final BitSet packed = new BitSet();
+    private final BitSet chunks = new BitSet();
+    /* the objects referenced by each object, and the parents of commits */
+    private final int[][] references;
+    private final int[][] parents;
+    /* the number of entries of each tree, the missing objects included */
+    private final int[] treeSizes;
+    /* every SAMPLEEVERY-th object is deflated */
+    private final int sampleEvery;
+    private final LongAdder sampledRaw = new LongAdder();
+    private final LongAdder sampledDeflated = new LongAdder();
+    /* computed in the context of the command, the results are printed
+     * after it */
+    private Report report;
+
+    private Stats(BitmapIndex objects) {
+        this.objects = objects;
+        this.backend = Config.get(ObjectStore.CONFIG_KEY, "loose");
+        this.loose = "loose".equals(backend);
+        this.packs = loose ? ((LooseStore) Data.store()).packs() : null;
+        int n = objects.size();
+        this.types = new byte[n];
+        this.sizes = new long[n];
+        this.blobSizes = new long[n];
+        this.references = new int[n][];
+        this.parents = new int[n][];
+        this.treeSizes = new int[n];
+        this.sampleEvery = Math.max(1, n / SAMPLE);
+    }
+
+    /** @return the statistics of the object store. */
+    public static Stats collect() {
+        Stats stats = new Stats(BitmapIndex.ofStore());
+        stats.scanObjects();
+        stats.report = stats.new Report();
+        return stats;
+    }
+
+    /** Reads all the objects in parallel, as fsck does. */
+    private void scanObjects() {
+        ObjectScan.forEach("stats.threads", objects.size(), this::scanObject);
+        for (int i = 0; i < objects.size(); i += 1) {
+            if (types[i] == CHUNKED) {
+                for (int chunk : references[i]) {
+                    chunks.set(chunk);
+                }
+            }
+        }
+    }
+
+    /** Records the type, the size and the references of the object I. */
+    private void scanObject(int i) {
+        ObjectId id = objects.idAt(i);
+        if (loose && packs.find(id) != null) {
+            synchronized (packed) {
+                packed.set(i);
+            }
+        }
+        boolean sampled = i % sampleEvery == 0;
+        byte[] head;
+        try (ObjectStore.Source source = Data.store().open(id)) {
+            sizes[i] = source.size();
+            head = read(source, Math.min(sizes[i], Math.max(MAX_HEADER,
+                sampled ? SAMPLE_BYTES : 0)));
+            byte type = readType(head, head.length);
+            types[i] = type;
+            if (type == INVALID) {
+                return;
+            }
+            int length = headerLength(head, head.length);
+            blobSizes[i] = sizes[i] - length;
+            if (type != BLOB) {
+                byte[] raw = head.length == sizes[i] ? head : read(source,
+                    sizes[i]);
+                parse(i, type, raw, length);
+            }
+        } catch (IOException | RuntimeException e) {
+            types[i] = INVALID;
+            return;
+        }
+        if (sampled) {
+            deflate(head);
+        }
+    }
+
+    /** @return the first N bytes of SOURCE. */
+    private static byte[] read(ObjectStore.Source source, long n) throws
+        IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) n);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, buffer.position()) < 0) {
+                throw new IOException("Truncated object");
+            }
+        }
+        return buffer.array();
+    }
+
+    /** Records the references of the object I of type TYPE, whose content
+     * starts at START in RAW. */
+    private void parse(int i, byte type, byte[] raw, int start) {
+        byte[] content = Arrays.copyOfRange(raw, start, raw.length);
+        List<ObjectId> refs = new ArrayList<>();
+        switch (type) {
+            case TREE:
+                for (TreeFormat.Cursor c = new TreeFormat.Cursor(content); c
+                    .next();) {
+                    refs.add(c.id());
+                }
+                treeSizes[i] = refs.size();
+                break;
+            case COMMIT:
+                Data.Commit commit = Data.parseCommit(content);
+                parents[i] = indexes(commit.parents);
+                refs.add(commit.tree);
+                refs.addAll(commit.parents);
+                break;
+            default:
+                Data.forEachChunk(content, refs::add);
+                blobSizes[i] = Data.manifestSize(content);
+        }
+        references[i] = indexes(refs);
+    }
+
+    /** @return the numbers of the objects IDS which are in the store. */
+    private int[] indexes(List<ObjectId> ids) {
+        int[] result = new int[ids.size()];
+        int n = 0;
+        for (ObjectId id : ids) {
+            int j = objects.indexOf(id);
+            if (j >= 0) {
+                result[n] = j;
+                n += 1;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private void deflate(byte[] raw) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] out = new byte[SAMPLE_BYTES];
+        long deflated = 0;
+        while (!deflater.finished()) {
+            deflated += deflater.deflate(out);
+        }
+        deflater.end();
+        sampledRaw.add(raw.length);
+        sampledDeflated.add(deflated);
+    }
+
+    /** @return the objects reachable from the refs, the HEADs and the
+     * indexes of the worktrees. */
+    private BitSet reachable() {
+        BitSet marked = new BitSet(objects.size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        List<Worktree> worktrees = Worktree.list();
+        List<ObjectId> roots = new ArrayList<>();
+        for (Worktree worktree : worktrees) {
+            roots.add(worktree.headCommit());
+            worktree.index().forEach((path, id) -> roots.add(id));
+        }
+        Data.refs().forEach("refs/", name -> roots.add(Data.getRef("refs/"
+            + name)));
+        for (ObjectId root : roots) {
+            int i = root == null ? -1 : objects.indexOf(root);
+            if (i >= 0 && !marked.get(i)) {
+                marked.set(i);
+                stack.push(i);
+            }
+        }
+        while (!stack.isEmpty()) {
+            int[] refs = references[stack.pop()];
+            for (int j : refs == null ? NONE : refs) {
+                if (!marked.get(j)) {
+                    marked.set(j);
+                    stack.push(j);
+                }
+            }
+        }
+        return marked;
+    }
+
+    /** @return the number of commits of the longest chain of ancestors. The
+     * depths are computed parents first, with a stack, since the history
+     * may be deeper than the call stack. */
+    private int historyDepth() {
+        int[] depth = new int[objects.size()];
+        int max = 0;
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int i = 0; i < objects.size(); i += 1) {
+            if (types[i] != COMMIT || depth[i] > 0) {
+                continue;
+            }
+            stack.push(i);
+            while (!stack.isEmpty()) {
+                int c = stack.peek();
+                if (depth[c] > 0) {     // reached twice, through a merge
+                    stack.pop();
+                    continue;
+                }
+                int deepest = 0;
+                boolean ready = true;
+                for (int p : parents[c]) {
+                    if (depth[p] == 0 && types[p] == COMMIT) {
+                        stack.push(p);
+                        ready = false;
+                    }
+                    deepest = Math.max(deepest, depth[p]);
+                }
+                if (ready) {
+                    stack.pop();
+                    depth[c] = deepest + 1;
+                    max = Math.max(max, depth[c]);
+                }
+            }
+        }
+        return max;
+    }
+
+    /** @return the numbers of the TOP largest blobs, largest first, then by
+     * id. */
+    private List<Integer> largestBlobs() {
+        // the smallest first, and among equal sizes the last id
+        PriorityQueue<Integer> top = new PriorityQueue<>((a, b) -> blobSizes[a]
+            != blobSizes[b] ? Long.compare(blobSizes[a], blobSizes[b])
+            : Integer.compare(b, a));
+        for (int i = 0; i < objects.size(); i += 1) {
+            if ((types[i] == BLOB || types[i] == CHUNKED) && !chunks.get(i)) {
+                top.add(i);
+                if (top.size() > TOP) {
+                    top.poll();
+                }
+            }
+        }
+        List<Integer> result = new ArrayList<>();
+        while (!top.isEmpty()) {
+            result.add(0, top.poll());
+        }
+        return result;
+    }
+
+    /** The numbers of the report, in the order they are printed. */
+    private class Report {
+        final long[] typeCounts = new long[TYPE_NAMES.length];
+        final long[] typeBytes = new long[TYPE_NAMES.length];
+        long count;
+        long bytes;
+        long invalid;
+        long packedCount;
+        long packedBytes;
+        long slack;
+        int trees;
+        long treeEntries;
+        int widest = -1;
+        long unreachableCount;
+        long unreachableBytes;
+        long compression;
+        final List<Integer> largest = largestBlobs();
+        final int depth = historyDepth();
+        final int packCount = loose ? packs.list().size() : 0;
+
+        Report() {
+            BitSet marked = reachable();
+            for (int i = 0; i < objects.size(); i += 1) {
+                count += 1;
+                bytes += sizes[i];
+                if (types[i] == INVALID) {
+                    invalid += 1;
+                    continue;
+                }
+                typeCounts[types[i]] += 1;
+                typeBytes[types[i]] += sizes[i];
+                if (packed.get(i)) {
+                    packedCount += 1;
+                    packedBytes += sizes[i];
+                } else if (loose) {
+                    slack += (BLOCK_SIZE - sizes[i] % BLOCK_SIZE)
+                        % BLOCK_SIZE;
+                }
+                if (types[i] == TREE) {
+                    trees += 1;
+                    treeEntries += treeSizes[i];
+                    if (widest < 0 || treeSizes[i] > treeSizes[widest]) {
+                        widest = i;
+                    }
+                }
+                if (!marked.get(i)) {
+                    unreachableCount += 1;
+                    unreachableBytes += sizes[i];
+                }
+            }
+            long raw = sampledRaw.sum();
+            if (raw > 0) {
+                compression = Math.max(0, Math.round(bytes * (1 - (double)
+                    sampledDeflated.sum() / raw)));
+            }
+        }
+    }
+
+    /** @return the report, for a reader. */
+    public String format() {
+        Report r = report;
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("objects: %d (%s)\n", r.count, human(
+            r.bytes)));
+        for (int t = BLOB; t <= CHUNKED; t += 1) {
+            out.append(String.format("    %-8s %8d  %s\n", TYPE_NAMES[t],
+                r.typeCounts[t], human(r.typeBytes[t])));
+        }
+        if (r.invalid > 0) {
+            out.append(String.format("    %-8s %8d\n", "invalid",
+                r.invalid));
+        }
+        if (loose) {
+            out.append(String.format("storage: %d loose (%s), %d packed (%s)"
+                + " in %d packs\n", r.count - r.packedCount, human(r.bytes
+                - r.packedBytes), r.packedCount, human(r.packedBytes),
+                r.packCount));
+        } else {
+            out.append(String.format("storage: %d in the %s store (%s)\n",
+                r.count, backend, human(r.bytes)));
+        }
+        out.append("largest blobs:\n");
+        for (int i : r.largest) {
+            out.append(String.format("    %s %s\n", objects.idAt(i), human(
+                blobSizes[i])));
+        }
+        out.append(String.format("trees: %d, %.1f entries on average", r.trees,
+            r.trees == 0 ? 0.0 : (double) r.treeEntries / r.trees));
+        if (r.widest >= 0) {
+            out.append(String.format(", at most %d in %s", treeSizes[
+                r.widest], objects.idAt(r.widest)));
+        }
+        out.append(String.format("\nhistory: %d commits, %d deep\n",
+            r.typeCounts[COMMIT], r.depth));
+        out.append("estimated savings:\n");
+        out.append(String.format("    compression  %s\n", human(
+            r.compression)));
+        out.append(String.format("    packing      %s\n", human(r.slack)));
+        out.append(String.format("    pruning      %s (%d unreachable "
+            + "objects)\n", human(r.unreachableBytes), r.unreachableCount));
+        return out.toString();
+    }
+
+    /** @return the report as a JSON object, the sizes in bytes. */
+    public String toJson() {
+        Report r = report;
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("{\"objects\": {\"count\": %d, \"bytes\": %d,"
+            + " \"invalid\": %d, \"types\": {", r.count, r.bytes, r.invalid));
+        for (int t = BLOB; t <= CHUNKED; t += 1) {
+            out.append(String.format("%s\"%s\": {\"count\": %d, \"bytes\": "
+                + "%d}", t == BLOB ? "" : ", ", TYPE_NAMES[t], r.typeCounts[t],
+                r.typeBytes[t]));
+        }
+        out.append(String.format("}}, \"storage\": {\"backend\": \"%s\", "
+            + "\"loose\": {\"count\": %d, \"bytes\": %d}, \"packed\": "
+            + "{\"count\": %d, \"bytes\": %d}, \"packs\": %d}", backend,
+            loose ? r.count - r.packedCount : 0, loose ? r.bytes
+            - r.packedBytes : 0, r.packedCount, r.packedBytes,
+            r.packCount));
+        out.append(", \"largestBlobs\": [");
+        for (int k = 0; k < r.largest.size(); k += 1) {
+            int i = r.largest.get(k);
+            out.append(String.format("%s{\"id\": \"%s\", \"size\": %d}", k
+                == 0 ? "" : ", ", objects.idAt(i), blobSizes[i]));
+        }
+        out.append(String.format("], \"trees\": {\"count\": %d, \"entries\": "
+            + "%d, \"maxEntries\": %d, \"widest\": %s}", r.trees,
+            r.treeEntries, r.widest < 0 ? 0 : treeSizes[r.widest],
+            r.widest < 0 ? "null" : "\"" + objects.idAt(r.widest) + "\""));
+        out.append(String.format(", \"history\": {\"commits\": %d, "
+            + "\"depth\": %d}", r.typeCounts[COMMIT], r.depth));
+        out.append(String.format(", \"savings\": {\"compression\": %d, "
+            + "\"packing\": %d, \"pruning\": %d, \"unreachable\": %d}}\n",
+            r.compression, r.slack, r.unreachableBytes, r.unreachableCount));
+        return out.toString();
+    }
+
+    /** @return BYTES with a binary unit, e.g. "1.5 KiB". */
+    private static String human(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KiB", "MiB", "GiB", "TiB"};
+        double value = bytes / 1024.0;
+        int u = 0;
+        while (value >= 1024 && u < units.length - 1) {
+            value /= 1024;
+            u += 1;
+        }
+        return String.format("%.1f %s", value, units[u]);
+    }
+}
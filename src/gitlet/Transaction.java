@@ -0,0 +1,266 @@
+/* This class groups the writes of one command into a transaction. Object
+ * files are written to temporary files next to their final names. Depending
+ * on the durability level, read from "core.fsync" in the config file:
+ * - none: nothing is fsynced, files are only renamed atomically.
+ * - batch (default): the objects of one command are fsynced together and
+ *   renamed before the first ref or index update, and every directory which
+ *   was changed is fsynced once when the command ends.
+ * - full: every file and its directory are fsynced as soon as it is written.
+ * Each command has its own transaction, in its Context, so the objects of a
+ * command are never renamed by another one. A command which fails rolls its
+ * transaction back, which deletes its pending objects; a process killed
+ * meanwhile leaves them to prune.
+ */
+
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static gitlet.Utils.*;
+
+public class Transaction {
+    public enum Durability { NONE, BATCH, FULL }
+
+    public static final String TMP_SUFFIX = ".tmp";
+    /* The age, in milliseconds, under which prune keeps a temporary file
+     * whatever its expire: a running command may still install it. */
+    public static final long TMP_MIN_AGE = 24 * 60 * 60 * 1000;
+    private static final AtomicLong COUNTER = new AtomicLong();
+    /* Maps the final object files to their temporary files. */
+    private final Map<File, File> pending = new ConcurrentHashMap<>();
+    /* The directories whose entries have been changed, fsynced on commit. */
+    private final Set<File> dirtyDirs = ConcurrentHashMap.newKeySet();
+    /* The open files objects were appended to, fsynced with the objects. */
+    private final Set<FileChannel> dirtyFiles = ConcurrentHashMap
+        .newKeySet();
+
+    /** @return the transaction of the current command. */
+    private static Transaction current() {
+        return Context.current().transaction;
+    }
+
+    /** @return the durability level "core.fsync" of the repository of the
+     * command. */
+    public static Durability durability() {
+        String value = Config.get("core.fsync", "batch");
+        try {
+            return Durability.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            error("Invalid core.fsync value: " + value);
+            return Durability.BATCH;
+        }
+    }
+
+    /** @return true if the object file exists or is pending in this
+     * transaction. */
+    public static boolean objectExists(File objFile) {
+        return current().pending.containsKey(objFile) || objFile.exists();
+    }
+
+    /** @return the file which currently holds the content of the object,
+     * i.e. the temporary file if the object is still pending. */
+    public static File resolve(File objFile) {
+        File tmp = current().pending.get(objFile);
+        return tmp != null ? tmp : objFile;
+    }
+
+    /** Writes a new immutable object file with the concatenation of
+     * PARTS. */
+    public static void writeObject(File objFile, byte[]... parts) {
+        File tmp = tmpFile(objFile);
+        writeFile(tmp, parts, durability() == Durability.FULL);
+        publish(tmp, objFile);
+    }
+
+    /** Copies the object file SOURCE of another repository to OBJFILE. The
+     * objects are immutable, so the file is hardlinked if both are on the
+     * same filesystem, and copied otherwise. */
+    public static void copyObject(File source, File objFile) {
+        File tmp = tmpFile(objFile);
+        try {
+            try {
+                Files.createLink(tmp.toPath(), source.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(source.toPath(), tmp.toPath());
+            }
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+        // a new object for the grace period of gc, even if it is linked
+        tmp.setLastModified(System.currentTimeMillis());
+        if (durability() == Durability.FULL) {
+            fsync(tmp);
+        }
+        publish(tmp, objFile);
+    }
+
+    static File tmpFile(File objFile) {
+        return new File(objFile.getPath() + "." + ProcessHandle.current()
+            .pid() + "." + COUNTER.incrementAndGet() + TMP_SUFFIX);
+    }
+
+    /** Makes the complete file TMP, written outside of the pending objects,
+     * durable and renames it to FILE at once, e.g. a pack which refs are
+     * about to refer to. */
+    public static void install(File tmp, File file) {
+        if (durability() != Durability.NONE) {
+            fsync(tmp);
+        }
+        rename(tmp, file);
+        if (durability() != Durability.NONE) {
+            fsync(file.getParentFile());
+        }
+    }
+
+    /** Renames the complete temporary file TMP to OBJFILE, or leaves it
+     * pending until the objects are flushed. */
+    private static void publish(File tmp, File objFile) {
+        if (durability() == Durability.BATCH) {
+            if (current().pending.putIfAbsent(objFile, tmp) != null) {
+                deleteFile(tmp);    // written concurrently by another thread
+            }
+            return;
+        }
+        rename(tmp, objFile);
+        if (durability() == Durability.FULL) {
+            fsync(objFile.getParentFile());
+        }
+    }
+
+    /** Makes all the pending objects durable and visible under their final
+     * names. The data of the objects is fsynced in parallel, and each
+     * directory is fsynced once at the end of the command. */
+    public static void flushObjects() {
+        current().flush();
+    }
+
+    private synchronized void flush() {
+        for (FileChannel channel : dirtyFiles) {
+            force(channel);
+        }
+        dirtyFiles.clear();
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<File, File>> entries = new ArrayList<>(pending
+            .entrySet());
+        entries.parallelStream().forEach(e -> fsync(e.getValue()));
+        for (Map.Entry<File, File> e : entries) {
+            rename(e.getValue(), e.getKey());
+            pending.remove(e.getKey());
+            dirtyDirs.add(e.getKey().getParentFile());
+        }
+    }
+
+    /** Records that objects were appended to the open file CHANNEL, e.g.
+     * the file of FileStore, which is fsynced at once or with the pending
+     * objects, depending on the durability level. */
+    public static void syncFile(FileChannel channel) {
+        if (durability() == Durability.FULL) {
+            force(channel);
+        } else if (durability() == Durability.BATCH) {
+            current().dirtyFiles.add(channel);
+        }
+    }
+
+    /** Records that the entries of DIR have been changed. */
+    public static void syncDirectory(File dir) {
+        if (durability() == Durability.FULL) {
+            fsync(dir);
+        } else if (durability() == Durability.BATCH) {
+            current().dirtyDirs.add(dir);
+        }
+    }
+
+    /** Ends the transaction of the current command. */
+    public static void commit() {
+        durability();       // fails every command on a bad level
+        Transaction transaction = current();
+        synchronized (transaction) {
+            transaction.flush();
+            for (File dir : transaction.dirtyDirs) {
+                fsync(dir);
+            }
+            transaction.dirtyDirs.clear();
+        }
+    }
+
+    /** Ends the transaction of the current command, which failed: the
+     * temporary files of the objects which were never flushed are
+     * removed. */
+    public static void rollback() {
+        Transaction transaction = current();
+        synchronized (transaction) {
+            for (File tmp : transaction.pending.values()) {
+                deleteFile(tmp);
+            }
+            transaction.pending.clear();
+            transaction.dirtyFiles.clear();
+        }
+    }
+
+    private static void writeFile(File file, byte[][] parts, boolean sync) {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer[] buffers = new ByteBuffer[parts.length];
+            long remaining = 0;
+            for (int i = 0; i < parts.length; i += 1) {
+                buffers[i] = ByteBuffer.wrap(parts[i]);
+                remaining += parts[i].length;
+            }
+            while (remaining > 0) {     // gathering write
+                remaining -= channel.write(buffers);
+            }
+            if (sync) {
+                channel.force(true);
+            }
+        } catch (FileAlreadyExistsException e) {
+            throw new GitletIOException("File exists: " + file, e);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    private static void rename(File from, File to) {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption
+                .ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    private static void force(FileChannel channel) {
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            throw new GitletIOException(e);
+        }
+    }
+
+    /** Fsyncs the file or the directory. Directories can not be opened on
+     * every platform, in which case this is a no-op. */
+    private static void fsync(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (!file.isDirectory()) {
+                throw new GitletIOException(e);
+            }
+        }
+    }
+}
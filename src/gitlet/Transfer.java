@@ -0,0 +1,153 @@
+/* This class copies objects between two repositories. The sender walks the
+ * history back from the commits the receiver wants, and for every commit asks
+ * the receiver whether it has it. A commit the receiver has is a common
+ * commit: the receiver also has its ancestors and their snapshots, since
+ * objects are only ever added after everything they refer to, so the walk
+ * stops there. The same holds for trees, whose walk stops at the first tree
+ * the receiver has. The cost of a transfer is therefore proportional to the
+ * new history, not to the size of the repositories. */
+
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class Transfer {
+    private final Peer from;
+    private final Peer to;
+    /* the objects already copied or known to be in TO */
+    private final Set<ObjectId> done = new HashSet<>();
+    private int copied;
+
+    private Transfer(Peer from, Peer to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /** Copies into TO the objects of FROM which are reachable from WANTS
+     * and which TO does not have.
+     * @return the number of objects copied. */
+    public static int copyObjects(Peer from, Peer to, Collection<ObjectId>
+        wants) {
+        Transfer transfer = new Transfer(from, to);
+        List<ObjectId> commits = new ArrayList<>();
+        for (ObjectId want : wants) {
+            if (to.has(want)) {
+                continue;
+            }
+            switch (from.type(want)) {
+                case "commit":
+                    commits.add(want);
+                    break;
+                case "tree":
+                    transfer.copyTree(want);
+                    break;
+                default:
+                    transfer.copyBlob(want);
+            }
+        }
+        transfer.copyCommits(commits);
+        return transfer.copied;
+    }
+
+    /** Copies the commits reachable from WANTS which TO does not have. A
+     * commit is copied after all its parents, and after its snapshot, so TO
+     * never has an object whose references it lacks, even if the transfer
+     * is interrupted. */
+    private void copyCommits(Collection<ObjectId> wants) {
+        Map<ObjectId, Data.Commit> missing = new HashMap<>();
+        Deque<ObjectId> queue = new ArrayDeque<>(wants);
+        while (!queue.isEmpty()) {
+            ObjectId commit = queue.poll();
+            if (to.has(commit) || !done.add(commit)) {
+                continue;       // a common commit or a commit seen before
+            }
+            Data.Commit content = Data.parseCommit(from.read(commit,
+                "commit"));
+            missing.put(commit, content);
+            queue.addAll(content.parents);
+        }
+        // a depth-first walk, which copies a commit once its parents are
+        Set<ObjectId> entered = new HashSet<>();
+        Deque<ObjectId> stack = new ArrayDeque<>(wants);
+        while (!stack.isEmpty()) {
+            ObjectId commit = stack.peek();
+            Data.Commit content = missing.get(commit);
+            if (content == null) {
+                stack.pop();    // in TO, or copied already
+            } else if (entered.add(commit)) {
+                for (ObjectId parent : content.parents) {
+                    if (!entered.contains(parent)) {
+                        stack.push(parent);
+                    }
+                }
+            } else {
+                stack.pop();
+                missing.remove(commit);
+                copyTree(content.tree);
+                copy(commit);
+            }
+        }
+    }
+
+    private void copyTree(ObjectId tree) {
+        if (done.contains(tree) || to.has(tree)) {
+            return;
+        }
+        done.add(tree);
+        for (TreeFormat.Cursor c = new TreeFormat.Cursor(from.read(tree,
+            "tree")); c.next();) {
+            if (c.isTree()) {
+                copyTree(c.id());
+            } else {
+                copyBlob(c.id());
+            }
+        }
+        copy(tree);
+    }
+
+    /** Copies the blob, and its chunks if it is a chunked blob. */
+    private void copyBlob(ObjectId blob) {
+        if (done.contains(blob) || to.has(blob)) {
+            return;
+        }
+        done.add(blob);
+        if ("chunked".equals(from.type(blob))) {
+            Data.forEachChunk(from.read(blob, "chunked"), this::copyBlob);
+        }
+        copy(blob);
+    }
+
+    private void copy(ObjectId id) {
+        from.copyTo(to, id);
+        copied += 1;
+    }
+
+    /** @return true if the commit ANCESTOR is DESCENDANT or one of its
+     * ancestors in the repository PEER. The walk ends as soon as ANCESTOR
+     * is found. */
+    public static boolean isAncestor(Peer peer, ObjectId ancestor, ObjectId
+        descendant) {
+        Set<ObjectId> visited = new HashSet<>();
+        Deque<ObjectId> queue = new ArrayDeque<>();
+        queue.add(descendant);
+        while (!queue.isEmpty()) {
+            ObjectId commit = queue.poll();
+            if (commit.equals(ancestor)) {
+                return true;
+            }
+            if (visited.add(commit)) {
+                queue.addAll(Data.parseCommit(peer.read(commit, "commit"))
+                    .parents);
+            }
+        }
+        return false;
+    }
+}
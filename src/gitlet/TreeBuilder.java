@@ -0,0 +1,121 @@
+/* This class writes the tree objects of an index. The directories are first
+ * collected in one pass over the sorted paths, then hashed bottom-up. A tree
+ * only depends on its subtrees, so the directories form a DAG: every
+ * directory is scheduled as soon as all of its subtrees are written, and the
+ * trees of sibling directories are hashed and written concurrently. Small
+ * indexes are written serially, which avoids the cost of the scheduling. Both
+ * ways format the trees with the same code, so they produce the same ids.
+ * The entries of a tree are in the order of the sorted paths, i.e. sorted by
+ * name with subtrees ordered as "name/", the order of TreeFormat. */
+
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static gitlet.Utils.*;
+
+public class TreeBuilder {
+    /* Below this number of directories, the trees are written serially. */
+    private static final int PARALLEL_THRESHOLD = 16;
+
+    /** A directory of the index. ENTRIES holds the formatted entries of the
+     * directory, with a null in place of each subtree, whose entry can only
+     * be formatted once the subtree is written. */
+    private static class Node {
+        private final String name;
+        private final List<byte[]> entries = new ArrayList<>();
+        private final List<Node> subtrees = new ArrayList<>();
+        private ObjectId id;
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+
+    /** Writes the tree objects of the sorted INDEX.
+     * @return the hash of the root tree. */
+    public static ObjectId write(PathTable index) {
+        List<Node> dirs = new ArrayList<>();
+        Node root = collect(index, dirs);
+        if (dirs.size() < PARALLEL_THRESHOLD) {
+            writeSerial(root);
+        } else {
+            schedule(root).join();
+        }
+        return root.id;
+    }
+
+    /** Builds the directories of INDEX with a stack of the directories on
+     * the path of the current file, and adds them all to DIRS.
+     * @return the root directory. */
+    private static Node collect(PathTable index, List<Node> dirs) {
+        List<String> prefixes = new ArrayList<>();     // "" or "a/b/"
+        List<Node> stack = new ArrayList<>();
+        prefixes.add("");
+        stack.add(new Node(""));
+        dirs.add(stack.get(0));
+        for (PathTable.Cursor c = index.cursor(); c.next();) {
+            String file = c.path();
+            // leave the directories which do not contain the file
+            while (!file.startsWith(prefixes.get(prefixes.size() - 1))) {
+                prefixes.remove(prefixes.size() - 1);
+                stack.remove(stack.size() - 1);
+            }
+            // enter the directories between the last one and the file
+            String dir = prefixes.get(prefixes.size() - 1);
+            for (int slash = file.indexOf('/', dir.length()); slash >= 0;
+                slash = file.indexOf('/', slash + 1)) {
+                Node parent = stack.get(stack.size() - 1);
+                Node node = new Node(basename(file.substring(0, slash)));
+                parent.entries.add(null);
+                parent.subtrees.add(node);
+                prefixes.add(file.substring(0, slash + 1));
+                stack.add(node);
+                dirs.add(node);
+            }
+            stack.get(stack.size() - 1).entries.add(TreeFormat.entry(false,
+                c.id(), basename(file)));
+        }
+        return stack.get(0);
+    }
+
+    private static void writeSerial(Node node) {
+        for (Node subtree : node.subtrees) {
+            writeSerial(subtree);
+        }
+        writeNode(node);
+    }
+
+    /** @return a future which completes when NODE is written, i.e. after
+     * the futures of its subtrees. */
+    private static CompletableFuture<Void> schedule(Node node) {
+        CompletableFuture<?>[] subtrees = new CompletableFuture<?>[node
+            .subtrees.size()];
+        for (int i = 0; i < subtrees.length; i += 1) {
+            subtrees[i] = schedule(node.subtrees.get(i));
+        }
+        if (subtrees.length == 0) {
+            return CompletableFuture.runAsync(Context.wrap(() -> writeNode(
+                node)));
+        }
+        return CompletableFuture.allOf(subtrees).thenRunAsync(Context.wrap(
+            () -> writeNode(node)));
+    }
+
+    /** Formats the entries of NODE, whose subtrees are already written, and
+     * writes its tree object. */
+    private static void writeNode(Node node) {
+        int subtree = 0;
+        for (int i = 0; i < node.entries.size(); i += 1) {
+            if (node.entries.get(i) == null) {
+                Node child = node.subtrees.get(subtree);
+                subtree += 1;
+                node.entries.set(i, TreeFormat.entry(true, child.id, child
+                    .name));
+            }
+        }
+        node.id = Data.hashObject(TreeFormat.join(node.entries), "tree");
+    }
+}
@@ -0,0 +1,188 @@
+/* This class writes and reads the content of tree objects. A tree is the
+ * list of its entries, sorted by name with the subtrees ordered as "name/",
+ * i.e. in the order of the paths of the index, so the same files always give
+ * the same tree. Each entry is
+ *     <mode> SP <name> NUL <id>
+ * where the mode is "40000" for a tree and "100644" for a blob, in octal
+ * ASCII, the name is in UTF-8, and the id is raw, 20 bytes.
+ * The trees written before this format are text, a line "<type> <hex id>
+ * <name>" per entry. A tree starts with a digit in the new format and with a
+ * letter in the old one, so the format of a tree is told by its first byte,
+ * and both are read. The empty tree is the same in both.
+ * A Cursor walks the entries over the bytes of the tree, keeping only the
+ * bounds of the current entry: nothing is allocated for an entry unless its
+ * id or its name is asked for, so the walks which only need the types, or
+ * look for one name, cost no garbage. */
+
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class TreeFormat {
+    private static final byte[] TREE_MODE = "40000 ".getBytes(
+        StandardCharsets.US_ASCII);
+    private static final byte[] BLOB_MODE = "100644 ".getBytes(
+        StandardCharsets.US_ASCII);
+    /* the types of the text entries */
+    private static final byte[] TREE_TYPE = "tree ".getBytes(
+        StandardCharsets.US_ASCII);
+    private static final byte[] BLOB_TYPE = "blob ".getBytes(
+        StandardCharsets.US_ASCII);
+
+    /** @return the entry NAME of the object ID, which is a tree if TREE
+     * and a blob otherwise. */
+    public static byte[] entry(boolean tree, ObjectId id, String name) {
+        byte[] mode = tree ? TREE_MODE : BLOB_MODE;
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] entry = new byte[mode.length + bytes.length + 1
+            + ObjectId.LENGTH];
+        System.arraycopy(mode, 0, entry, 0, mode.length);
+        System.arraycopy(bytes, 0, entry, mode.length, bytes.length);
+        id.copyTo(entry, mode.length + bytes.length + 1);
+        return entry;
+    }
+
+    /** @return the key ordering the entry NAME in a tree, compared as
+     * unsigned bytes: the name, followed by a slash if it is a TREE. */
+    public static byte[] sortKey(boolean tree, String name) {
+        return (tree ? name + "/" : name).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** @return the content of the tree of ENTRIES, in order. */
+    public static byte[] join(Collection<byte[]> entries) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (byte[] entry : entries) {
+            content.writeBytes(entry);
+        }
+        return content.toByteArray();
+    }
+
+    /* A cursor over the entries of a tree, before the first one until next
+     * is called. */
+    public static class Cursor {
+        private final byte[] bytes;
+        private final boolean binary;
+        /* the start of the current entry and of the next one */
+        private int start;
+        private int position;
+        private boolean tree;
+        private int nameStart;
+        private int nameEnd;
+        private int idStart;
+
+        /** A cursor over the CONTENT of a tree object. */
+        public Cursor(byte[] content) {
+            this.bytes = content;
+            this.binary = content.length > 0 && content[0] >= '0'
+                && content[0] <= '9';
+        }
+
+        /** Moves to the next entry.
+         * @return false if there is none. */
+        public boolean next() {
+            if (position >= bytes.length) {
+                return false;
+            }
+            start = position;
+            if (binary) {
+                nextBinary();
+            } else {
+                nextText();
+            }
+            if (nameStart == nameEnd) {
+                throw invalid();
+            }
+            return true;
+        }
+
+        private void nextBinary() {
+            if (startsWith(TREE_MODE)) {
+                tree = true;
+                nameStart = position + TREE_MODE.length;
+            } else if (startsWith(BLOB_MODE)) {
+                tree = false;
+                nameStart = position + BLOB_MODE.length;
+            } else {
+                throw invalid();
+            }
+            nameEnd = indexOf((byte) 0, nameStart);
+            if (nameEnd < 0 || nameEnd + 1 + ObjectId.LENGTH > bytes.length) {
+                throw invalid();
+            }
+            idStart = nameEnd + 1;
+            position = idStart + ObjectId.LENGTH;
+        }
+
+        /** Reads the line "<type> <hex id> <name>", whose line break may be
+         * missing at the end of the tree. */
+        private void nextText() {
+            tree = startsWith(TREE_TYPE);
+            if (!tree && !startsWith(BLOB_TYPE)) {
+                throw invalid();
+            }
+            idStart = position + TREE_TYPE.length;
+            nameStart = idStart + ObjectId.HEX_LENGTH + 1;
+            if (nameStart > bytes.length || bytes[nameStart - 1] != ' ') {
+                throw invalid();
+            }
+            nameEnd = indexOf((byte) '\n', nameStart);
+            if (nameEnd < 0) {
+                nameEnd = bytes.length;
+            }
+            position = nameEnd + 1;
+        }
+
+        private boolean startsWith(byte[] prefix) {
+            return Arrays.equals(bytes, position, Math.min(position + prefix
+                .length, bytes.length), prefix, 0, prefix.length);
+        }
+
+        private int indexOf(byte b, int from) {
+            for (int i = from; i < bytes.length; i += 1) {
+                if (bytes[i] == b) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private IllegalArgumentException invalid() {
+            int end = Math.min(bytes.length, start + 64);
+            return new IllegalArgumentException("Invalid tree entry: "
+                + new String(bytes, start, end - start,
+                StandardCharsets.UTF_8));
+        }
+
+        public boolean isTree() {
+            return tree;
+        }
+
+        /** @return "tree" or "blob". */
+        public String type() {
+            return tree ? "tree" : "blob";
+        }
+
+        public ObjectId id() {
+            if (binary) {
+                return ObjectId.fromBytes(bytes, idStart);
+            }
+            return ObjectId.fromHex(new String(bytes, idStart, ObjectId
+                .HEX_LENGTH, StandardCharsets.US_ASCII));
+        }
+
+        public String name() {
+            return new String(bytes, nameStart, nameEnd - nameStart,
+                StandardCharsets.UTF_8);
+        }
+
+        /** @return true if the name of the entry is the UTF-8 bytes
+         * NAME. */
+        public boolean nameEquals(byte[] name) {
+            return Arrays.equals(bytes, nameStart, nameEnd, name, 0, name
+                .length);
+        }
+    }
+}
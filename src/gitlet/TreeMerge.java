@@ -0,0 +1,127 @@
+/* This class merges two trees with their common ancestor. The three trees
+ * are walked together, directory by directory: a directory which is the
+ * same on both sides, or which only one side changed, is taken whole by its
+ * id, without being read. Only the directories both sides changed are read
+ * and written again, so the cost of a merge is the size of the area changed
+ * on both sides, not the size of the repository.
+ * In a directory changed on both sides, each entry is merged the same way.
+ * An entry changed on both sides is a conflict, unless both sides made the
+ * same change or both are directories, which are merged recursively. A
+ * directory which becomes empty is dropped, as it would be from an index.
+ * The entries of a merged tree are sorted like the ones of TreeBuilder, so
+ * the tree has the id writeTree gives for the same files. */
+
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+public class TreeMerge {
+    /* the paths of the conflicts */
+    private final List<String> conflicts = new ArrayList<>();
+
+    /** An entry of a tree. Two entries are equal if they have the same
+     * object, ids of different types never being equal. */
+    private static class Entry {
+        private final String type;
+        private final ObjectId id;
+
+        Entry(String type, ObjectId id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        boolean isTree() {
+            return "tree".equals(type);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry && id.equals(((Entry) other).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
+
+    /** Merges the trees LOCAL and REMOTE, whose common ancestor is BASE.
+     * @return the id of the merged tree. */
+    public static ObjectId merge(ObjectId base, ObjectId local, ObjectId
+        remote) {
+        TreeMerge merge = new TreeMerge();
+        ObjectId tree = merge.mergeTrees(base, local, remote, "");
+        assertCondition(merge.conflicts.isEmpty(), "Conflicts existed.");
+        return tree != null ? tree : Data.hashObject(new byte[0], "tree");
+    }
+
+    /** Merges the directory PATH, which is BASE, null if it is new, in the
+     * ancestor, LOCAL and REMOTE.
+     * @return the id of the merged tree, or null if it is empty. */
+    private ObjectId mergeTrees(ObjectId base, ObjectId local, ObjectId
+        remote, String path) {
+        if (local.equals(remote) || remote.equals(base)) {
+            return local;
+        } else if (local.equals(base)) {
+            return remote;
+        }
+        Map<String, Entry> baseEntries = readTree(base);
+        Map<String, Entry> localEntries = readTree(local);
+        Map<String, Entry> remoteEntries = readTree(remote);
+        Set<String> names = new LinkedHashSet<>(localEntries.keySet());
+        names.addAll(remoteEntries.keySet());
+        // sorted by name, with the subtrees ordered as "name/"
+        Map<byte[], byte[]> entries = new TreeMap<>(Arrays::compareUnsigned);
+        for (String name : names) {
+            Entry entry = mergeEntries(baseEntries.get(name), localEntries.get(
+                name), remoteEntries.get(name), joinPaths(path, name));
+            if (entry != null) {
+                entries.put(TreeFormat.sortKey(entry.isTree(), name),
+                    TreeFormat.entry(entry.isTree(), entry.id, name));
+            }
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return Data.hashObject(TreeFormat.join(entries.values()), "tree");
+    }
+
+    /** Merges the entry PATH, which is BASE in the ancestor, LOCAL and
+     * REMOTE, each of which is null if there is no such entry.
+     * @return the merged entry, or null if it is deleted or a conflict. */
+    private Entry mergeEntries(Entry base, Entry local, Entry remote, String
+        path) {
+        if (Objects.equals(local, remote) || Objects.equals(base, remote)) {
+            return local;
+        } else if (Objects.equals(base, local)) {
+            return remote;
+        } else if (local != null && remote != null && local.isTree()
+            && remote.isTree()) {
+            ObjectId tree = mergeTrees(base != null && base.isTree() ? base.id
+                : null, local.id, remote.id, path);
+            return tree == null ? null : new Entry("tree", tree);
+        }
+        conflicts.add(path);
+        return null;
+    }
+
+    /** @return the entries of the tree ID by name, none if ID is null. */
+    private static Map<String, Entry> readTree(ObjectId id) {
+        Map<String, Entry> entries = new HashMap<>();
+        if (id != null) {
+            Data.forEachTreeEntry(id, (type, oid, name) -> entries.put(name,
+                new Entry(type, oid)));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,154 @@
+/* This class implements the untracked cache, enabled by
+ * "core.untrackedCache = true" in the config, which spares status and
+ * checkout the listing of the directories of the working directory which
+ * have not changed. It keeps, in ".gitlet/untracked", the names of the files
+ * and the subdirectories of each directory scanned last time, with the mtime
+ * of the directory:
+ *     <mtime> <path>
+ *     \t<name>            a file
+ *     \t<name>/           a subdirectory
+ * A directory whose mtime is the same is not listed again: creating, deleting
+ * or renaming one of its entries would have changed it. The files are still
+ * hashed, since writing a file does not change its directory. All the names
+ * are kept, the ignored ones too, and the ignore patterns are applied to the
+ * result, so editing .gitletignore needs no invalidation.
+ * A directory changed just before it was listed may change again with the
+ * same mtime, on a filesystem whose clock is coarse. Its listing is only
+ * trusted once the cache was written RACY_MS after that mtime, comparing the
+ * mtimes of the same filesystem, so the clock of the process does not
+ * matter. The cache is written back when a directory was listed, if no other
+ * command holds its lock; it is only a hint. */
+
+package gitlet;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+public class UntrackedCache {
+    public static final String CONFIG_KEY = "core.untrackedCache";
+    private static final long RACY_MS = 2000;
+
+    /* whether the cache is enabled, else every directory is listed */
+    private final boolean enabled;
+    /* the listings read from the cache, by the path of their directory */
+    private final Map<String, Listing> old;
+    /* the listings of this scan */
+    private final Map<String, Listing> current = new TreeMap<>();
+    private boolean changed;
+
+    /** The names in a directory with its mtime when they were listed. */
+    private static class Listing {
+        private final long mtime;
+        private final List<String> names;
+
+        Listing(long mtime, List<String> names) {
+            this.mtime = mtime;
+            this.names = names;
+        }
+    }
+
+    private UntrackedCache(boolean enabled, Map<String, Listing> old) {
+        this.enabled = enabled;
+        this.old = old;
+    }
+
+    private static File file() {
+        return join(Data.gitletDir(), "untracked");
+    }
+
+    /** @return the cache of the current worktree, empty if it is disabled
+     * or not written yet. */
+    public static UntrackedCache read() {
+        if (!Config.getBoolean(CONFIG_KEY, false)) {
+            return new UntrackedCache(false, new HashMap<>());
+        }
+        Map<String, Listing> listings = new HashMap<>();
+        File file = file();
+        long written = file.lastModified();     // 0 if there is none
+        String content = file.isFile() ? readContentsAsString(file) : "";
+        List<String> names = null;
+        for (String line : content.split("\n")) {
+            if (line.startsWith("\t")) {
+                if (names != null) {
+                    names.add(line.substring(1));
+                }
+            } else if (!line.isEmpty()) {
+                int space = line.indexOf(' ');
+                long mtime = Long.parseLong(line.substring(0, space));
+                names = new ArrayList<>();
+                if (mtime < written - RACY_MS) {
+                    listings.put(line.substring(space + 1), new Listing(mtime,
+                        names));
+                }
+            }
+        }
+        return new UntrackedCache(true, listings);
+    }
+
+    /** @return the names of the files and, ending with a slash, of the
+     * subdirectories of the directory PATH of the working directory, "" for
+     * its root, or an empty list if it is not a directory. */
+    public List<String> list(String path) {
+        File dir = path.isEmpty() ? new File(Data.basePath()) : join(Data
+            .basePath(), path);
+        long mtime = dir.lastModified();
+        Listing listing = old.get(path);
+        if (listing == null || listing.mtime != mtime || mtime == 0) {
+            listing = new Listing(mtime, listDir(dir));
+            changed = true;
+        }
+        current.put(path, listing);
+        return listing.names;
+    }
+
+    private static List<String> listDir(File dir) {
+        List<String> names = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return names;
+        }
+        for (File file : files) {
+            if (file.isFile()) {
+                names.add(file.getName());
+            } else if (file.isDirectory()) {
+                names.add(file.getName() + "/");
+            }
+        }
+        Collections.sort(names);    // in the same order every time
+        return names;
+    }
+
+    /** Writes the listings of this scan to the cache, if a directory was
+     * listed and no other command is writing it. */
+    public void write() {
+        if (!enabled || !changed && current.size() == old.size()) {
+            return;
+        }
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, Listing> e : current.entrySet()) {
+            content.append(e.getValue().mtime).append(' ').append(e.getKey())
+                .append('\n');
+            for (String name : e.getValue().names) {
+                content.append('\t').append(name).append('\n');
+            }
+        }
+        LockFile lock = new LockFile(file());
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            lock.write(content.toString().getBytes(StandardCharsets.UTF_8));
+            lock.commit();
+        } finally {
+            lock.rollback();    // no-op if committed
+        }
+    }
+}
@@ -11,24 +11,13 @@ import java.util.function.*;
 
 import java.io.*;
 import java.nio.file.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 
 public class Utils {
     
     public static String sha1(byte[] bytes) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            byte[] hashBytes = digest.digest(bytes);
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hashBytes) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException("System does not support SHA-1");
-        }
+        return ObjectId.hash(bytes).toString();
     }
 
     /* Returns the SHA-1 hash of the given string. */
@@ -42,7 +31,7 @@ public class Utils {
                 file.createNewFile();
             }
         } catch (IOException e) {
-            throw new IllegalArgumentException(e.getMessage());
+            throw new GitletIOException(e);
         }
     }
 
@@ -55,6 +44,21 @@ public class Utils {
         file.delete();
     }
 
+    /** Deletes the directory DIR and everything under it. */
+    public static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+
     /** gets all the files in the path. 
      * @return a list of all the files in the path. If the path is a file, 
      * returns a list with that file. If the path is a directory, returns 
@@ -82,14 +86,14 @@ public class Utils {
 
     /** Reads the contents of the given file as a byte array.
      * Assumes the file exists and is a file.
-     * @throws IllegalArgumentException in case of I/O errors. */
+     * @throws GitletIOException in case of I/O errors. */
     public static byte[] readContents(File file) {
         assert file.exists() : "File does not exist: " + file.getPath();
         assert file.isFile() : "Not a file: " + file.getPath();
         try {
             return Files.readAllBytes(file.toPath());
         } catch (IOException e) {
-            throw new IllegalArgumentException(e.getMessage());
+            throw new GitletIOException(e);
         }
     }
 
@@ -99,7 +103,7 @@ public class Utils {
 
     /** Writes the given string to the given file, encoded in UTF-8.
      * Assumes the file exists and is a file.
-     * @throws IllegalArgumentException in case of I/O errors. */
+     * @throws GitletIOException in case of I/O errors. */
     public static void writeContents(File file, String contents) {
         writeContents(file, contents.getBytes(StandardCharsets.UTF_8));
     }
@@ -110,7 +114,7 @@ public class Utils {
         try {
             Files.write(file.toPath(), contents);
         } catch (IOException e) {
-            throw new IllegalArgumentException(e.getMessage());
+            throw new GitletIOException(e);
         }
     }
 
@@ -118,10 +122,18 @@ public class Utils {
         try {
             out.write(contents);
         } catch (IOException e) {
-            throw new IllegalArgumentException(e.getMessage());
+            throw new GitletIOException(e);
         }
     }
 
+    /** @return a channel on the standard output, which lets the kernel
+     * transfer file contents to it directly. System.out is flushed first.
+     * The channel must not be closed. */
+    public static WritableByteChannel stdoutChannel() {
+        System.out.flush();
+        return new FileOutputStream(FileDescriptor.out).getChannel();
+    }
+
     public static File join(String parent, String... others) {
         return Path.of(parent, others).normalize().toFile();
     }
@@ -136,9 +148,10 @@ public class Utils {
         }
     }
 
+    /** Fails the command with MESSAGE.
+     * @throws GitletException always. */
     public static void error(String message) {
-        System.err.println(message);
-        System.exit(1);
+        throw new GitletException(message);
     }
 
     public static void assertFileExists(String filename) {
@@ -0,0 +1,167 @@
+/* This class represents the worktrees of a repository. Besides the main
+ * worktree, the working directory of the .gitlet directory, a repository may
+ * have linked worktrees: working directories with their own HEAD and index,
+ * which share the objects, the refs and the config of the repository.
+ * The .gitlet of a linked worktree is a file with the line
+ * "gitdir: <path>", where the path is its directory ".gitlet/worktrees/<name>"
+ * in the main repository. This directory holds the HEAD, the index, a file
+ * "commondir" with the path of the shared directory relative to it, and a
+ * file "gitdir" with the path of the .gitlet file, which tells where the
+ * worktree is. This directory is written under a temporary name and renamed
+ * once complete, so the other commands never list a part of a worktree.
+ * A branch is checked out in at most one worktree. Every command which
+ * checks out a branch holds the lock of ".gitlet/worktrees" while it checks
+ * the HEADs of the other worktrees and writes its own, so two worktrees can
+ * not take the same branch at the same time. */
+
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+public class Worktree {
+    private static final String HEADS_PREFIX = Data.REF_PREFIX
+        + "refs/heads/";
+
+    /* the directory of the HEAD and the index */
+    private final File gitletDir;
+    private final File workDir;
+
+    private Worktree(File gitletDir, File workDir) {
+        this.gitletDir = gitletDir;
+        this.workDir = workDir;
+    }
+
+    /** @return the worktrees of the repository whose shared directory is
+     * COMMONDIR, the main worktree first and then the linked worktrees
+     * sorted by name. A directory without a "gitdir", e.g. left by a crash,
+     * is not a worktree. */
+    public static List<Worktree> list(File commonDir) {
+        List<Worktree> worktrees = new ArrayList<>();
+        worktrees.add(new Worktree(commonDir, commonDir.getParentFile()));
+        File[] dirs = join(commonDir, "worktrees").listFiles(dir -> dir
+            .isDirectory() && !dir.getName().endsWith(Transaction.TMP_SUFFIX)
+            && join(dir, "gitdir").isFile());
+        if (dirs != null) {
+            Arrays.sort(dirs);
+            for (File dir : dirs) {
+                File dotGitlet = new File(readContentsAsString(join(dir,
+                    "gitdir")).trim());
+                worktrees.add(new Worktree(dir, dotGitlet.getParentFile()));
+            }
+        }
+        return worktrees;
+    }
+
+    public static List<Worktree> list() {
+        return list(Data.commonDir());
+    }
+
+    /** @return the worktree whose working directory is PATH, or null. */
+    public static Worktree find(String path) {
+        File dir = join(Data.file(path).getAbsolutePath());
+        for (Worktree worktree : list()) {
+            if (worktree.workDir.equals(dir)) {
+                return worktree;
+            }
+        }
+        return null;
+    }
+
+    /** @return the worktree of the repository whose shared directory is
+     * COMMONDIR on the local BRANCH, or null if no worktree is on it. */
+    public static Worktree checkedOut(File commonDir, String branch) {
+        for (Worktree worktree : list(commonDir)) {
+            if (branch.equals(worktree.branch())) {
+                return worktree;
+            }
+        }
+        return null;
+    }
+
+    /** @return the lock of the checkouts of branches, which is held but not
+     * committed. The caller rolls it back once its HEAD is written. */
+    public static LockFile lock() {
+        LockFile lock = new LockFile(join(Data.commonDir(), "worktrees"));
+        lock.lock();
+        return lock;
+    }
+
+    /** Creates the directory of a new linked worktree in WORKDIR on BRANCH.
+     * The name of the worktree is the name of WORKDIR, with a number if it
+     * is taken. The lock must be held. */
+    public static Worktree create(File workDir, String branch) {
+        File worktrees = join(Data.commonDir(), "worktrees");
+        String name = workDir.getName();
+        File gitletDir = join(worktrees, name);
+        for (int i = 1; gitletDir.exists(); i += 1) {
+            gitletDir = join(worktrees, name + i);
+        }
+        File tmp = Transaction.tmpFile(gitletDir);
+        createDirectory(tmp);
+        File dotGitlet = join(workDir, ".gitlet");
+        writeContents(join(tmp, "commondir"), "../..\n");
+        writeContents(join(tmp, "gitdir"), dotGitlet.getPath() + "\n");
+        createFile(join(tmp, "index"));
+        writeContents(join(tmp, "HEAD"), HEADS_PREFIX + branch);
+        Transaction.install(tmp, gitletDir);
+        workDir.mkdirs();
+        writeContents(dotGitlet, Data.GITDIR_PREFIX + gitletDir.getPath()
+            + "\n");
+        return new Worktree(gitletDir, workDir);
+    }
+
+    /** Deletes the worktree, its working directory and its directory. */
+    public void delete() {
+        deleteDirectory(workDir);
+        deleteDirectory(gitletDir);
+    }
+
+    public boolean isMain() {
+        return !join(gitletDir, "commondir").isFile();
+    }
+
+    /** @return true if this is the worktree of the current directory. */
+    public boolean isCurrent() {
+        return gitletDir.equals(Data.gitletDir());
+    }
+
+    public File workDir() {
+        return workDir;
+    }
+
+    public File gitletDir() {
+        return gitletDir;
+    }
+
+    public File indexFile() {
+        return join(gitletDir, "index");
+    }
+
+    /** @return the raw content of the HEAD. */
+    public String head() {
+        return readContentsAsString(join(gitletDir, "HEAD")).trim();
+    }
+
+    /** @return the branch the HEAD points to, or null if it is detached. */
+    public String branch() {
+        String head = head();
+        return head.startsWith(HEADS_PREFIX) ? head.substring(HEADS_PREFIX
+            .length()) : null;
+    }
+
+    /** @return the commit of the HEAD. */
+    public ObjectId headCommit() {
+        String head = head();
+        return head.startsWith(Data.REF_PREFIX) ? Data.getRef(head.substring(
+            Data.REF_PREFIX_LEN)) : ObjectId.fromHex(head);
+    }
+
+    public PathTable index() {
+        return Data.readIndex(indexFile());
+    }
+}
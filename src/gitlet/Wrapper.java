@@ -5,47 +5,55 @@ import static gitlet.Utils.*;
 import java.io.File;
 
 public class Wrapper {
-    public static final String BASE_PATH = Data.getBasePath();
-    public static final int BASE_LENGTH = BASE_PATH.length();
 
     /** Just calculate the SHA value of the specified file, without create the
      * blob object in the repository. */
-    public static String restrictedHashBlob(String filename) {
-        File file = join(BASE_PATH, filename);
-        return Data.restrictedHashObject(readContents(file), "blob");
+    public static ObjectId restrictedHashBlob(String filename) {
+        File file = join(Data.basePath(), filename);
+        return Data.hashFile(file, false);
     }
 
     /** gets the relative path of the file from the repository root. */
     public static String getRelativePath(File file) {
-        return file.getAbsolutePath().substring(BASE_LENGTH);
+        return file.getAbsolutePath().substring(Data.basePath()
+            .length());
     }
 
     public static String getRelativePath(String fullPath) {
-        return fullPath.substring(BASE_LENGTH);
+        return fullPath.substring(Data.basePath().length());
     }
 
     /** @return the id of the commit pointed by the given branch */
-    public static String getBranch(String name) {
+    public static ObjectId getBranch(String name) {
         return Data.getRef("refs/heads/" + name);
     }
 
     /** @return the id of the commit pointed by the given tag */
-    public static String getTag(String name) {
+    public static ObjectId getTag(String name) {
         return Data.getRef("refs/tags/" + name);
     }
 
     /** @return the commit id of the given name */
-    public static String getOid(String name) {
+    public static ObjectId getOid(String name) {
         if ("HEAD".equals(name)) {
             return Data.getHead();
         } else if (Data.isBranch(name)) {
             return getBranch(name);
         } else if (Data.isTag(name)) {
             return getTag(name);
+        } else if (Data.isRemoteBranch(name)) {
+            return Data.getRef("refs/remotes/" + name);
         } else if (Data.isCommitId(name)) {
-            return name;
+            return ObjectId.fromHex(name);
         } 
         error("unknown name: " + name);
         return null;
     }
+
+    /** Parses an object id given on the command line. */
+    public static ObjectId parseOid(String hex) {
+        assertCondition(ObjectId.isHex(hex), String.format("Not a valid "
+            + "object name %s", hex));
+        return ObjectId.fromHex(hex);
+    }
 }
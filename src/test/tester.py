@@ -2,6 +2,9 @@
 This file is used to test gitlet.
 Flags:
     -c: clear the working directory after the test.
+    -l: the command which runs gitlet in place of "java -jar gitlet.jar",
+        e.g. the JVM with the class-data-sharing archive, or the native
+        image, see the Makefile.
 """
 
 import sys
@@ -34,6 +37,9 @@ Test-file format:
 SYMBOLS = {}
 # command prefix
 COMMAND_PREFIX = "Execute: "
+# the command running gitlet, replaced by the -l flag
+GITLET_COMMAND = re.compile(r"java -jar (\.\./)?gitlet\.jar")
+LAUNCHER = None
 
 def replace_token(token): 
     """
@@ -90,6 +96,8 @@ def read_tokens(reader):
 
 def do_execute(expression, env):
     cmd, regex_flag, expected = expression
+    if LAUNCHER is not None:
+        cmd = GITLET_COMMAND.sub(lambda m: LAUNCHER, cmd)
     print(COMMAND_PREFIX + cmd)
     out, err, code = execute_cmd(cmd)
 
@@ -264,7 +272,9 @@ def do_test(test_file):
 parser = argparse.ArgumentParser()
 parser.add_argument("file", type=str, nargs="+")
 parser.add_argument("-c", "--clear", action="store_true")
+parser.add_argument("-l", "--launcher", type=str, default=None)
 args = parser.parse_args()
+LAUNCHER = args.launcher
 
 test_files = [f for f in args.file if f.endswith(".in")]
 assert all(is_file_exist(f) for f in test_files), "Input file not found"